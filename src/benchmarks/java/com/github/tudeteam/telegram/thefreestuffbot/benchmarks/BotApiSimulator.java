@@ -0,0 +1,321 @@
+package com.github.tudeteam.telegram.thefreestuffbot.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A local stand-in for the Telegram Bot API, to run the announcements against without touching Telegram.
+ * <p>
+ * It answers {@code sendPhoto}, {@code sendMessage}, {@code getChatMembersCount} and {@code answerInlineQuery}
+ * for any bot token, after a configurable latency, and can inject 429 (flood wait) and 403 (blocked) errors.
+ * The chat types and members counts are derived from the chat ids, the same way as {@link Fixtures}.
+ * <p>
+ * When {@link #fetchPhotos} is set, the photos sent by url are downloaded and decoded before answering,
+ * like Telegram does, while the ones sent by file id are not. It serves a thumbnail of a game's size for that,
+ * at {@link #thumbnailUrl(int)}.
+ * <p>
+ * Run on its own with: {@code BotApiSimulator [port] [latencyMillis] [jitterMillis] [rate429] [rate403]},
+ * then point the bot at it using {@code BOT_API_URL=http://localhost:port/}.
+ */
+public class BotApiSimulator implements AutoCloseable {
+
+    protected static final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * The file id of the photos sent by the simulator.
+     */
+    public static final String photoFileId = "simulated-photo";
+
+    /* Instance Fields */
+
+    protected final HttpServer server;
+    /**
+     * Serves the thumbnail on its own threads, so fetching it doesn't wait for the Bot API requests being handled.
+     */
+    protected final HttpServer thumbnailServer;
+    protected final byte[] thumbnail = thumbnail();
+    protected final HttpClient httpClient = HttpClient.newHttpClient();
+    protected final ScheduledExecutorService responder = Executors.newScheduledThreadPool(4);
+
+    protected final long latencyMillis;
+    protected final long jitterMillis;
+    protected final double rate429;
+    protected final double rate403;
+    protected final int retryAfter;
+
+    /**
+     * Whether the photos sent by url are downloaded and decoded before answering.
+     */
+    public volatile boolean fetchPhotos = false;
+
+    //Statistics.
+
+    /**
+     * The number of requests of each method.
+     */
+    public final Map<String, LongAdder> requests = new ConcurrentHashMap<>();
+    public final LongAdder sent = new LongAdder();
+    public final LongAdder tooManyRequests = new LongAdder();
+    public final LongAdder forbidden = new LongAdder();
+    /**
+     * The times in nanoseconds between receiving the send requests and responding to them.
+     */
+    protected final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+    protected final AtomicLong firstSendAt = new AtomicLong();
+    protected final AtomicLong lastSendAt = new AtomicLong();
+
+    /* Constructor */
+
+    /**
+     * Creates and starts a new simulator.
+     *
+     * @param port          The port to listen on, 0 for any free port.
+     * @param latencyMillis The base latency of the responses in milliseconds.
+     * @param jitterMillis  The maximum random latency added to the base one in milliseconds.
+     * @param rate429       The share of the send requests answered with 429 Too Many Requests.
+     * @param rate403       The share of the send requests answered with 403 Forbidden.
+     * @param retryAfter    The retry after of the 429 responses in seconds.
+     * @throws IOException If the server couldn't be started.
+     */
+    public BotApiSimulator(int port, long latencyMillis, long jitterMillis, double rate429, double rate403, int retryAfter) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.rate429 = rate429;
+        this.rate403 = rate403;
+        this.retryAfter = retryAfter;
+
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 1024);
+        server.createContext("/", this::handle);
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+
+        thumbnailServer = HttpServer.create(new InetSocketAddress("localhost", 0), 1024);
+        thumbnailServer.createContext("/thumbnails/", exchange -> {
+            try (exchange) {
+                exchange.getResponseHeaders().set("Content-Type", "image/jpeg");
+                exchange.sendResponseHeaders(200, thumbnail.length);
+                exchange.getResponseBody().write(thumbnail);
+            }
+        });
+        thumbnailServer.setExecutor(Executors.newFixedThreadPool(2));
+        thumbnailServer.start();
+    }
+
+    /* Instance Methods */
+
+    /**
+     * Gets the url to use as the Bot API url.
+     *
+     * @return The url, ending with a slash.
+     */
+    public String url() {
+        return "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * Gets the url of a game's thumbnail served by the simulator.
+     *
+     * @param id The id of the game.
+     * @return The url.
+     */
+    public String thumbnailUrl(int id) {
+        return "http://localhost:" + thumbnailServer.getAddress().getPort() + "/thumbnails/" + id + ".jpg";
+    }
+
+    /**
+     * Renders a thumbnail of a Steam header's size, with noise so it's about as large as a real one once compressed.
+     *
+     * @return The JPEG encoded thumbnail.
+     */
+    protected static byte[] thumbnail() {
+        BufferedImage image = new BufferedImage(460, 215, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(460);
+        for (int y = 0; y < image.getHeight(); y++)
+            for (int x = 0; x < image.getWidth(); x++)
+                image.setRGB(x, y, (x * 255 / 460) << 16 | (y * 255 / 215) << 8 | random.nextInt(64));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(image, "jpg", output);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Downloads and decodes a photo sent by url.
+     *
+     * @param url The url of the photo.
+     * @return Whether the photo was downloaded and decoded successfully.
+     */
+    protected boolean fetchPhoto(String url) {
+        try {
+            HttpResponse<byte[]> response = httpClient.send(HttpRequest.newBuilder(URI.create(url)).build(),
+                    HttpResponse.BodyHandlers.ofByteArray());
+            return response.statusCode() == 200 && ImageIO.read(new ByteArrayInputStream(response.body())) != null;
+        } catch (IOException | IllegalArgumentException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    protected void handle(HttpExchange exchange) throws IOException {
+        long receivedAt = System.nanoTime();
+
+        //The path is /bot{token}/{method}.
+        String path = exchange.getRequestURI().getPath();
+        String method = path.substring(path.lastIndexOf('/') + 1);
+        JsonNode parameters = objectMapper.readTree(exchange.getRequestBody().readAllBytes());
+        requests.computeIfAbsent(method, ignored -> new LongAdder()).increment();
+
+        String response;
+        switch (method) {
+            case "sendPhoto":
+                String photo = parameters.path("photo").asText();
+                if (fetchPhotos && photo.startsWith("http") && !fetchPhoto(photo))
+                    response = "{\"ok\":false,\"error_code\":400,\"description\":\"Bad Request: wrong file identifier/HTTP URL specified\"}";
+                else
+                    response = sendResponse(parameters.path("chat_id").asLong(), true);
+                break;
+            case "sendMessage":
+                response = sendResponse(parameters.path("chat_id").asLong(), false);
+                break;
+            case "getChatMembersCount":
+                response = "{\"ok\":true,\"result\":" + Fixtures.membersCount(parameters.path("chat_id").asLong()) + "}";
+                break;
+            case "answerInlineQuery":
+                response = "{\"ok\":true,\"result\":true}";
+                break;
+            default:
+                response = "{\"ok\":false,\"error_code\":404,\"description\":\"Not Found: method not found\"}";
+        }
+
+        long delay = latencyMillis + (jitterMillis == 0 ? 0 : ThreadLocalRandom.current().nextLong(jitterMillis + 1));
+        responder.schedule(() -> {
+            respond(exchange, response);
+            if (method.startsWith("send")) {
+                long now = System.nanoTime();
+                latencies.add(now - receivedAt);
+                firstSendAt.compareAndSet(0, receivedAt);
+                lastSendAt.set(now);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    protected String sendResponse(long chatId, boolean photo) {
+        double roll = ThreadLocalRandom.current().nextDouble();
+
+        if (roll < rate429) {
+            tooManyRequests.increment();
+            return "{\"ok\":false,\"error_code\":429,\"description\":\"Too Many Requests: retry after " + retryAfter
+                    + "\",\"parameters\":{\"retry_after\":" + retryAfter + "}}";
+        }
+
+        if (roll < rate429 + rate403) {
+            forbidden.increment();
+            return "{\"ok\":false,\"error_code\":403,\"description\":\"Forbidden: bot was blocked by the user\"}";
+        }
+
+        sent.increment();
+
+        ObjectNode result = objectMapper.createObjectNode();
+        result.put("message_id", ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE));
+        result.put("date", (int) (System.currentTimeMillis() / 1000L));
+        result.putObject("chat").put("id", chatId).put("type", Fixtures.chatType(chatId));
+        if (photo) result.putArray("photo").addObject()
+                .put("file_id", photoFileId).put("file_unique_id", "simulated").put("width", 460).put("height", 215);
+
+        return "{\"ok\":true,\"result\":" + result + "}";
+    }
+
+    protected void respond(HttpExchange exchange, String response) {
+        try (exchange) {
+            byte[] body = response.getBytes(UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Gets a percentile of the send requests latencies.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The latency in milliseconds, 0 if there were no send requests.
+     */
+    public double latencyPercentile(double percentile) {
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+        if (sorted.length == 0) return 0;
+        Arrays.sort(sorted);
+
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+
+    /**
+     * Gets the time between the first send request and the last send response.
+     *
+     * @return The duration in seconds.
+     */
+    public double sendingDuration() {
+        return (lastSendAt.get() - firstSendAt.get()) / 1e9;
+    }
+
+    /**
+     * Gets the number of send requests, of all the results.
+     *
+     * @return The number of requests.
+     */
+    public long sendRequests() {
+        return sent.sum() + tooManyRequests.sum() + forbidden.sum();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        thumbnailServer.stop(0);
+        responder.shutdownNow();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8081;
+        long latency = args.length > 1 ? Long.parseLong(args[1]) : 50;
+        long jitter = args.length > 2 ? Long.parseLong(args[2]) : 50;
+        double rate429 = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+        double rate403 = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+
+        BotApiSimulator simulator = new BotApiSimulator(port, latency, jitter, rate429, rate403, 1);
+        System.out.println("Bot API simulator listening on " + simulator.url());
+    }
+}
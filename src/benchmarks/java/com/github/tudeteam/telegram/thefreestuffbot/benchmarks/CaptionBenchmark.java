@@ -0,0 +1,40 @@
+package com.github.tudeteam.telegram.thefreestuffbot.benchmarks;
+
+import com.github.tudeteam.telegram.thefreestuffbot.structures.ChatConfiguration;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.GameData;
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The captions formatting, done for each variant of each announced game, and for each inline query result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CaptionBenchmark {
+
+    protected GameData gameData;
+    protected ChatConfiguration config;
+
+    @Setup
+    public void setup() {
+        Gson gson = new Gson();
+        gameData = gson.fromJson(Fixtures.gameDocument(1).toJson(), GameData.class);
+        config = gson.fromJson(Fixtures.configDocument(1).toJson(), ChatConfiguration.class);
+    }
+
+    @Benchmark
+    public String formatCaption() {
+        return gameData.info.formatCaption(config);
+    }
+
+    @Benchmark
+    public String formatCaptionWithoutHeaderAndFooter() {
+        return gameData.info.formatCaptionWithoutHeaderAndFooter(config);
+    }
+}
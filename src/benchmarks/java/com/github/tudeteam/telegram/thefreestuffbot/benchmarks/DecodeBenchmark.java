@@ -0,0 +1,88 @@
+package com.github.tudeteam.telegram.thefreestuffbot.benchmarks;
+
+import com.github.tudeteam.telegram.thefreestuffbot.structures.ChatConfiguration;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.GameData;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.codecs.StructuresCodecProvider;
+import com.google.gson.Gson;
+import com.mongodb.MongoClientSettings;
+import org.bson.BsonBinaryReader;
+import org.bson.ByteBuf;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The decoding of the games and chats configurations, starting from the raw BSON bytes as received from MongoDB.
+ * <p>
+ * The {@code gson} benchmarks are the old path: decoding into a {@link Document}, converting it into JSON,
+ * then parsing that with Gson. The {@code codec} benchmarks decode straight into the structures,
+ * through the {@link StructuresCodecProvider} codecs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark {
+
+    protected final Gson gson = new Gson();
+    protected final CodecRegistry registry = StructuresCodecProvider.withStructures(MongoClientSettings.getDefaultCodecRegistry());
+    protected final DecoderContext decoderContext = DecoderContext.builder().build();
+
+    protected Codec<Document> documentCodec;
+    protected Codec<GameData> gameDataCodec;
+    protected Codec<ChatConfiguration> configCodec;
+
+    protected byte[] gameBytes;
+    protected byte[] configBytes;
+
+    @Setup
+    public void setup() {
+        documentCodec = registry.get(Document.class);
+        gameDataCodec = registry.get(GameData.class);
+        configCodec = registry.get(ChatConfiguration.class);
+
+        gameBytes = bytesOf(Fixtures.gameDocument(1));
+        configBytes = bytesOf(Fixtures.configDocument(1));
+    }
+
+    protected byte[] bytesOf(Document document) {
+        ByteBuf buffer = new RawBsonDocument(document, documentCodec).getByteBuffer();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    protected <T> T decode(Codec<T> codec, byte[] bytes) {
+        try (BsonBinaryReader reader = new BsonBinaryReader(ByteBuffer.wrap(bytes))) {
+            return codec.decode(reader, decoderContext);
+        }
+    }
+
+    @Benchmark
+    public GameData gsonGameData() {
+        return gson.fromJson(decode(documentCodec, gameBytes).toJson(), GameData.class);
+    }
+
+    @Benchmark
+    public GameData codecGameData() {
+        return decode(gameDataCodec, gameBytes);
+    }
+
+    @Benchmark
+    public ChatConfiguration gsonChatConfiguration() {
+        return gson.fromJson(decode(documentCodec, configBytes).toJson(), ChatConfiguration.class);
+    }
+
+    @Benchmark
+    public ChatConfiguration codecChatConfiguration() {
+        return decode(configCodec, configBytes);
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.tudeteam.telegram.thefreestuffbot.benchmarks;
+
+import com.github.tudeteam.telegram.thefreestuffbot.TheFreeStuffBot;
+import com.github.tudeteam.telegram.thefreestuffbot.components.Metrics;
+
+import java.io.IOException;
+import java.net.URI;
+
+import static com.mongodb.client.model.Filters.eq;
+
+/**
+ * Runs a full announcement fan-out end-to-end, against the {@link BotApiSimulator} and local MongoDB and redis servers,
+ * then reports its throughput.
+ * <p>
+ * The databases are seeded by the {@link Seeder} (replacing their content), then the bot is started,
+ * and it announces the seeded games through its own trigger, the same way as in production.
+ * <p>
+ * Usage: {@code FanOutBenchmark [chats] [games] [latencyMillis] [jitterMillis] [rate429] [rate403]},
+ * with the bot's environment variables set, and {@code BOT_API_URL} pointing to the simulator's port,
+ * {@code http://localhost:8081/} for example.
+ */
+public class FanOutBenchmark {
+
+    /**
+     * The maximum time to wait for the fan-out to complete in milliseconds.
+     */
+    protected static final long timeout = 60 * 60_000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int chats = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int games = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        long latency = args.length > 2 ? Long.parseLong(args[2]) : 50;
+        long jitter = args.length > 3 ? Long.parseLong(args[3]) : 50;
+        double rate429 = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+        double rate403 = args.length > 5 ? Double.parseDouble(args[5]) : 0;
+
+        String botApiUrl = System.getenv("BOT_API_URL");
+        if (botApiUrl == null) {
+            System.err.println("BOT_API_URL has to point to the simulator's port, http://localhost:8081/ for example.");
+            System.exit(1);
+        }
+
+        try (BotApiSimulator simulator = new BotApiSimulator(URI.create(botApiUrl).getPort(), latency, jitter, rate429, rate403, 1)) {
+            System.out.println("Seeding " + chats + " chats and " + games + " games...");
+            Seeder.seed(chats, games, 0.5);
+
+            long startedAt = System.nanoTime();
+            TheFreeStuffBot bot = new TheFreeStuffBot();
+
+            //Wait for all the games to be marked as announced.
+            long remaining = games;
+            while (remaining != 0 && System.nanoTime() - startedAt < timeout * 1_000_000) {
+                Thread.sleep(1000);
+                remaining = bot.gamesCollection.countDocuments(eq("outgoing.telegram", true));
+            }
+
+            double duration = (System.nanoTime() - startedAt) / 1e9;
+            bot.onClosing();
+
+            System.out.println();
+            System.out.println("Chats: " + chats + ", games: " + games + (remaining == 0 ? "" : " (timed out, " + remaining + " not completed)"));
+            System.out.printf("Total fan-out duration: %.1f s%n", duration);
+            System.out.println("Send requests: " + simulator.sendRequests() + " (sent: " + simulator.sent.sum()
+                    + ", 429: " + simulator.tooManyRequests.sum() + ", 403: " + simulator.forbidden.sum() + ")");
+            System.out.println("Retried (transient failures): " + (long) Metrics.announcementsSent.labels("transient").get());
+            System.out.printf("Throughput: %.1f messages/s%n", simulator.sendRequests() / simulator.sendingDuration());
+            System.out.printf("Send latency (as seen by the simulator): p50 %.1f ms, p99 %.1f ms%n",
+                    simulator.latencyPercentile(50), simulator.latencyPercentile(99));
+            System.out.println("Requests by method: " + simulator.requests);
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,118 @@
+package com.github.tudeteam.telegram.thefreestuffbot.benchmarks;
+
+import org.bson.Document;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Synthetic games and chats, shaped like the documents of the production database.
+ */
+public final class Fixtures {
+
+    /**
+     * The share of the synthetic chats which are private chats, the rest are split between groups, supergroups and channels.
+     */
+    public static final double usersShare = 0.8;
+
+    private Fixtures() {
+    }
+
+    /**
+     * Creates a synthetic game document, set to be announced on Telegram.
+     *
+     * @param id The id of the game.
+     * @return The game document.
+     */
+    public static Document gameDocument(int id) {
+        int currentTime = (int) (System.currentTimeMillis() / 1000L);
+
+        Document info = new Document("title", gameTitle(id))
+                .append("org_price", new Document("euro", 19.99).append("dollar", 24.99))
+                .append("price", new Document("euro", 0.0).append("dollar", 0.0))
+                .append("thumbnail", "https://example.com/thumbnails/" + id + ".png")
+                .append("until", currentTime + 7 * 86400)
+                .append("steamSubids", "")
+                .append("url", "https://example.com/games/" + id)
+                .append("org_url", "https://store.example.com/app/" + id)
+                .append("store", "steam")
+                .append("flags", 0)
+                .append("type", "free");
+
+        return new Document("_id", id)
+                .append("uuid", UUID.randomUUID().toString())
+                .append("published", currentTime)
+                .append("responsible", "benchmarks")
+                .append("status", "published")
+                .append("info", info)
+                .append("outgoing", new Document("telegram", true));
+    }
+
+    /**
+     * Creates the title of a synthetic game, composed of common words of the games titles,
+     * so the searches match a realistic share of the catalogue.
+     *
+     * @param id The id of the game.
+     * @return The title of the game.
+     */
+    public static String gameTitle(int id) {
+        List<String> adjectives = List.of("Dark", "Lost", "Super", "Eternal", "Red", "Hidden", "Last", "Wild", "Iron", "Tiny");
+        List<String> nouns = List.of("Kingdom", "Dungeon", "Racer", "Legends", "Island", "Souls", "Frontier", "Quest", "Tactics", "Farm");
+        List<String> suffixes = List.of("", " II", " Remastered", ": Origins", " Deluxe Edition", " Online", " 3", ": The Benchmark Edition");
+
+        return adjectives.get(id % adjectives.size()) + " " + nouns.get(id / adjectives.size() % nouns.size())
+                + suffixes.get(id / 100 % suffixes.size()) + " #" + id;
+    }
+
+    /**
+     * Creates a synthetic chat configuration document, with the announcements enabled.
+     *
+     * @param chatId The id of the chat.
+     * @return The configuration document.
+     */
+    public static Document configDocument(long chatId) {
+        return new Document("_id", chatId)
+                .append("enabled", true)
+                .append("currency", chatId % 2 == 0 ? "USD" : "EUR")
+                .append("untilFormat", chatId % 3 == 0 ? "DATE" : "WEEKDAY")
+                .append("trash", false)
+                .append("minPrice", 0.0);
+    }
+
+    /**
+     * Gets the id of the n-th synthetic chat, spread over the chat types in the Bot API ids format:
+     * positive for private chats, negative for groups, and -100 prefixed for supergroups and channels.
+     *
+     * @param n     The number of the chat.
+     * @param chats The total number of chats.
+     * @return The id of the chat.
+     */
+    public static long chatId(int n, int chats) {
+        if (n < chats * usersShare) return 100_000_000L + n;
+        if (n % 3 == 0) return -(400_000_000L + n);
+        return -(1_000_000_000_000L + n);
+    }
+
+    /**
+     * Gets the type of a synthetic chat, the same way the Bot API would report it.
+     *
+     * @param chatId The id of the chat.
+     * @return The type: private, group, supergroup or channel.
+     */
+    public static String chatType(long chatId) {
+        if (chatId > 0) return "private";
+        if (chatId > -1_000_000_000_000L) return "group";
+        return chatId % 2 == 0 ? "channel" : "supergroup";
+    }
+
+    /**
+     * Gets the members count of a synthetic group or channel, spread over a few orders of magnitude.
+     *
+     * @param chatId The id of the chat.
+     * @return The members count.
+     */
+    public static int membersCount(long chatId) {
+        List<Integer> sizes = List.of(3, 25, 150, 1_200, 40_000);
+        return sizes.get((int) (Math.abs(chatId) % sizes.size()));
+    }
+}
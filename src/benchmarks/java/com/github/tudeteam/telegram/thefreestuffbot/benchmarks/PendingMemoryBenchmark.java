@@ -0,0 +1,154 @@
+package com.github.tudeteam.telegram.thefreestuffbot.benchmarks;
+
+import com.github.tudeteam.telegram.thefreestuffbot.components.announcements.Announcement;
+import com.github.tudeteam.telegram.thefreestuffbot.components.announcements.ChatIndex;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.ScoredValue;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.sync.RedisCommands;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.output.IntegerOutput;
+import io.lettuce.core.protocol.CommandArgs;
+import io.lettuce.core.protocol.CommandType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Seeds the same chats into the pending keys of an announcement in both layouts, then reports their memory usage,
+ * as measured by redis' {@code MEMORY USAGE} (with all the elements sampled).
+ * <p>
+ * The chats are added the same way as {@link com.github.tudeteam.telegram.thefreestuffbot.components.announcements.CheckDatabase}
+ * seeds them: in the current layout the pending set holds all the chats ids, in the compact layout it holds only the groups'
+ * and channels' {@link ChatIndex} indices, and the private chats go into the pendingUsers bitmap.
+ * The failed sets hold all the chats, as if all of them failed transiently, then only the first 500 (which fit in an intset).
+ * <p>
+ * The indices are reserved in ranges from the {@link ChatIndex} counter, the same way as {@link ChatIndex#assign(java.util.Collection)}
+ * does, but they are not stored in MongoDB, which doesn't change the redis keys.
+ * <p>
+ * Usage: {@code PendingMemoryBenchmark [chats]}, using the local redis server.
+ */
+public class PendingMemoryBenchmark {
+
+    /**
+     * The number of chats added at once.
+     */
+    protected static final int chunkSize = 1000;
+
+    /**
+     * The number of chats in the small failed sets, within redis' default {@code set-max-intset-entries}.
+     */
+    protected static final int smallFailedSize = 500;
+
+    /**
+     * The key of the counter of the last assigned chat index, the same as {@link ChatIndex}'s.
+     */
+    protected static final String chatIndexCounter = "TheFreeStuffBot:chatIndex";
+
+    public static void main(String[] args) {
+        int chats = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+
+        List<Long> chatIds = new ArrayList<>(chats);
+        for (int n = 0; n < chats; n++) chatIds.add(Fixtures.chatId(n, chats));
+
+        RedisClient redisClient = RedisClient.create(Seeder.redisUri);
+
+        try (StatefulRedisConnection<String, String> connection = redisClient.connect()) {
+            RedisCommands<String, String> redisCommands = connection.sync();
+            redisCommands.del(chatIndexCounter);
+
+            //The current layout, by the chats ids.
+            Announcement current = new Announcement("current", List.of());
+            List<String> members = new ArrayList<>(chats);
+            List<ScoredValue<String>> pending = new ArrayList<>(chats);
+            for (long chatId : chatIds) {
+                members.add(String.valueOf(chatId));
+                pending.add(ScoredValue.just(audienceScore(chatId), String.valueOf(chatId)));
+            }
+            addPending(redisCommands, current.keyPrefix + "pending", pending);
+            addFailed(redisCommands, current.keyPrefix, members);
+
+            //The compact layout, by the chats indices.
+            Announcement compact = new Announcement("compact", List.of());
+            members.clear();
+            pending.clear();
+            for (int i = 0; i < chats; i += chunkSize) {
+                List<Long> chunk = chatIds.subList(i, Math.min(i + chunkSize, chats));
+                long next = redisCommands.incrby(chatIndexCounter, chunk.size()) - chunk.size() + 1;
+
+                for (long chatId : chunk) {
+                    long index = next++;
+                    members.add(String.valueOf(index));
+                    if (chatId > 0) //Private chats.
+                        redisCommands.setbit(compact.keyPrefix + "pendingUsers", index, 1);
+                    else
+                        pending.add(ScoredValue.just(audienceScore(chatId), String.valueOf(index)));
+                }
+            }
+            addPending(redisCommands, compact.keyPrefix + "pending", pending);
+            addFailed(redisCommands, compact.keyPrefix, members);
+
+            System.out.println();
+            System.out.println("Chats: " + chats + " (" + (int) (Fixtures.usersShare * 100) + "% private)");
+            System.out.printf("%-26s %12s %12s%n", "Key", "Current", "Compact");
+            long currentTotal = 0, compactTotal = 0;
+            for (String field : new String[]{"pending", "pendingUsers", "failed", "smallFailed"}) {
+                long currentUsage = memoryUsage(redisCommands, current.keyPrefix + field);
+                long compactUsage = memoryUsage(redisCommands, compact.keyPrefix + field);
+                System.out.printf("%-26s %12d %12d%n", field + " (" + encoding(redisCommands, current.keyPrefix + field)
+                        + " / " + encoding(redisCommands, compact.keyPrefix + field) + ")", currentUsage, compactUsage);
+                if (!field.equals("smallFailed")) {
+                    currentTotal += currentUsage;
+                    compactTotal += compactUsage;
+                }
+            }
+            System.out.printf("%-26s %12d %12d%n", "pending, users and failed", currentTotal, compactTotal);
+
+            redisCommands.del(current.keyPrefix + "pending", current.keyPrefix + "failed", current.keyPrefix + "smallFailed",
+                    compact.keyPrefix + "pending", compact.keyPrefix + "pendingUsers", compact.keyPrefix + "failed",
+                    compact.keyPrefix + "smallFailed", chatIndexCounter);
+        } finally {
+            redisClient.shutdown();
+        }
+    }
+
+    /**
+     * Gets the audience score of a seeded chat, as the seeding reads it from the members counts.
+     *
+     * @param chatId The id of the chat.
+     * @return The score.
+     */
+    protected static double audienceScore(long chatId) {
+        return chatId > 0 ? 1 : Fixtures.membersCount(chatId);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static void addPending(RedisCommands<String, String> redisCommands, String key, List<ScoredValue<String>> pending) {
+        for (int i = 0; i < pending.size(); i += chunkSize)
+            redisCommands.zadd(key, pending.subList(i, Math.min(i + chunkSize, pending.size())).toArray(new ScoredValue[0]));
+    }
+
+    protected static void addFailed(RedisCommands<String, String> redisCommands, String keyPrefix, List<String> members) {
+        for (int i = 0; i < members.size(); i += chunkSize)
+            redisCommands.sadd(keyPrefix + "failed", members.subList(i, Math.min(i + chunkSize, members.size())).toArray(new String[0]));
+        redisCommands.sadd(keyPrefix + "smallFailed", members.subList(0, Math.min(smallFailedSize, members.size())).toArray(new String[0]));
+    }
+
+    /**
+     * Gets the memory used by a key, sampling all of its elements.
+     *
+     * @param redisCommands The redis commands.
+     * @param key           The key.
+     * @return The bytes used by the key and its value, 0 if it doesn't exist.
+     */
+    protected static long memoryUsage(RedisCommands<String, String> redisCommands, String key) {
+        Long usage = redisCommands.dispatch(CommandType.MEMORY, new IntegerOutput<>(StringCodec.UTF8),
+                new CommandArgs<>(StringCodec.UTF8).add("USAGE").addKey(key).add("SAMPLES").add(0));
+        return usage == null ? 0 : usage;
+    }
+
+    protected static String encoding(RedisCommands<String, String> redisCommands, String key) {
+        String encoding = redisCommands.objectEncoding(key);
+        return encoding == null ? "-" : encoding;
+    }
+}
@@ -0,0 +1,122 @@
+package com.github.tudeteam.telegram.thefreestuffbot.benchmarks;
+
+import com.github.tudeteam.telegram.thefreestuffbot.components.announcements.RateLimiter;
+import com.github.tudeteam.telegram.thefreestuffbot.components.announcements.TokenBucket;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The rate limiter's consume path, as the announcement workers take it, contended by 5 to 64 threads.
+ * <p>
+ * Each message goes to a new chat, as in an announcement, so the chats' buckets never make it wait,
+ * and the chats and groups maps are kept at their bound by the eviction.
+ * The global rate is high enough that its tokens are never waited for either, so nothing sleeps,
+ * which measures the contention on the buckets' bookkeeping and the wait histogram alone.
+ * <p>
+ * JMH doesn't take the thread count as a parameter, so {@link #main(String[])} runs the suite once for each count,
+ * and writes all the results into a single JSON file:
+ * {@code java -cp target/benchmarks.jar com.github.tudeteam.telegram.thefreestuffbot.benchmarks.RateLimiterBenchmark [results.json]}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(5)
+public class RateLimiterBenchmark {
+
+    /**
+     * The thread counts to run the suite with.
+     */
+    protected static final int[] threadCounts = {5, 8, 16, 32, 64};
+
+    protected TokenBucket bucket;
+    protected RateLimiter rateLimiter;
+    protected RateLimiter.Share share;
+
+    /**
+     * The chats which a thread sends to, each one only once.
+     */
+    @State(Scope.Thread)
+    public static class Chats {
+
+        protected static final AtomicLong threads = new AtomicLong();
+
+        /**
+         * The first id of the thread's chats, far apart from the other threads' ones.
+         */
+        protected final long first = threads.incrementAndGet() * 1_000_000_000_000L;
+        protected long sent = 0;
+
+        /**
+         * Gets the id of the next chat, one out of five is a group.
+         *
+         * @return The id of the chat.
+         */
+        public long next() {
+            long n = sent++;
+            return n % 5 == 4 ? -(first + n) : first + n;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        bucket = new TokenBucket(1_000_000_000, 1, TimeUnit.SECONDS);
+        rateLimiter = new RateLimiter(new TokenBucket(1_000_000_000, 1, TimeUnit.SECONDS),
+                () -> new TokenBucket(1, 1, TimeUnit.SECONDS),
+                () -> new TokenBucket(20, 1, TimeUnit.MINUTES),
+                10_000);
+        share = rateLimiter.openShare(1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        share.close();
+    }
+
+    @Benchmark
+    public void tokenBucketConsume() throws InterruptedException {
+        bucket.consume();
+    }
+
+    @Benchmark
+    public void rateLimiterConsume(Chats chats) throws InterruptedException {
+        rateLimiter.consume(chats.next());
+    }
+
+    @Benchmark
+    public void shareConsume(Chats chats) throws InterruptedException {
+        share.consume(chats.next());
+    }
+
+    public static void main(String[] args) throws RunnerException, FileNotFoundException {
+        String resultsFile = args.length > 0 ? args[0] : "rate-limiter.json";
+
+        List<RunResult> results = new ArrayList<>();
+        for (int threads : threadCounts) {
+            results.addAll(new Runner(new OptionsBuilder()
+                    .include(RateLimiterBenchmark.class.getName())
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .build()).run());
+        }
+
+        try (PrintStream out = new PrintStream(resultsFile)) {
+            ResultFormatFactory.getInstance(ResultFormatType.JSON, out).writeOut(results);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.tudeteam.telegram.thefreestuffbot.benchmarks;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.InsertManyOptions;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.ScanArgs;
+import io.lettuce.core.ScanIterator;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.sync.RedisCommands;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fills a local MongoDB and redis with synthetic chats and games, replacing the existing ones.
+ * <p>
+ * Only meant for a local benchmarking database: it drops the chats configurations and games collections,
+ * and deletes the bot's announcements keys from redis.
+ * <p>
+ * Usage: {@code Seeder [chats] [games] [cachedMembersShare]}, using the {@code BOT_DATABASE} MongoDB connection string
+ * (the local server by default) and the local redis server.
+ */
+public class Seeder {
+
+    public static final String databaseName = "freestuffbot";
+    public static final String redisUri = "redis://localhost:6379";
+
+    /**
+     * The number of documents inserted at once.
+     */
+    protected static final int insertBatchSize = 10_000;
+
+    public static void main(String[] args) {
+        int chats = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int games = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        double cachedMembersShare = args.length > 2 ? Double.parseDouble(args[2]) : 0.5;
+
+        seed(chats, games, cachedMembersShare);
+        System.out.println("Seeded " + chats + " chats and " + games + " games.");
+    }
+
+    /**
+     * Replaces the chats and games of the local databases with synthetic ones.
+     *
+     * @param chats              The number of chats.
+     * @param games              The number of games, all set to be announced.
+     * @param cachedMembersShare The share of the groups and channels which their members counts are already cached.
+     */
+    public static void seed(int chats, int games, double cachedMembersShare) {
+        String connectionString = System.getenv("BOT_DATABASE");
+
+        try (MongoClient mongoClient = connectionString == null ? MongoClients.create() : MongoClients.create(connectionString)) {
+            MongoDatabase database = mongoClient.getDatabase(databaseName);
+
+            MongoCollection<Document> configCollection = database.getCollection("telegram-config");
+            configCollection.drop();
+
+            List<Document> batch = new ArrayList<>(insertBatchSize);
+            for (int n = 0; n < chats; n++) {
+                batch.add(Fixtures.configDocument(Fixtures.chatId(n, chats)));
+                if (batch.size() < insertBatchSize) continue;
+                configCollection.insertMany(batch, new InsertManyOptions().ordered(false));
+                batch.clear();
+            }
+            if (!batch.isEmpty()) configCollection.insertMany(batch, new InsertManyOptions().ordered(false));
+
+            MongoCollection<Document> gamesCollection = database.getCollection("games");
+            gamesCollection.drop();
+            for (int id = 1; id <= games; id++) gamesCollection.insertOne(Fixtures.gameDocument(id));
+        }
+
+        RedisClient redisClient = RedisClient.create(redisUri);
+        try (StatefulRedisConnection<String, String> connection = redisClient.connect()) {
+            RedisCommands<String, String> commands = connection.sync();
+
+            //Delete the leftovers of previous runs.
+            for (String pattern : new String[]{"TheFreeStuffBot:ongoing:*", "TheFreeStuffBot:members:*"}) {
+                ScanIterator<String> keys = ScanIterator.scan(commands, ScanArgs.Builder.matches(pattern).limit(1000));
+                List<String> toDelete = new ArrayList<>();
+                while (keys.hasNext()) toDelete.add(keys.next());
+                for (int i = 0; i < toDelete.size(); i += 1000)
+                    commands.del(toDelete.subList(i, Math.min(i + 1000, toDelete.size())).toArray(new String[0]));
+            }
+            commands.del("TheFreeStuffBot:photos", "TheFreeStuffBot:undeliverable", "TheFreeStuffBot:chatIndex");
+
+            //Cache the members counts of a share of the groups and channels.
+            Map<String, String> counts = new HashMap<>();
+            for (int n = 0; n < chats; n++) {
+                long chatId = Fixtures.chatId(n, chats);
+                if (chatId > 0 || (n % 100) >= cachedMembersShare * 100) continue;
+                counts.put("TheFreeStuffBot:members:" + chatId, String.valueOf(Fixtures.membersCount(chatId)));
+            }
+            if (!counts.isEmpty()) commands.mset(counts);
+        } finally {
+            redisClient.shutdown();
+        }
+    }
+}
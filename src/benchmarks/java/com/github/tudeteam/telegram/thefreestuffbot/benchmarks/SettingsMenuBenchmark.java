@@ -0,0 +1,54 @@
+package com.github.tudeteam.telegram.thefreestuffbot.benchmarks;
+
+import com.github.tudeteam.telegram.thefreestuffbot.TheFreeStuffBot;
+import com.mongodb.client.model.ReplaceOptions;
+import org.openjdk.jmh.annotations.*;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.mongodb.client.model.Filters.eq;
+
+/**
+ * The construction of the settings menu, which queries the chat's configuration, so it includes the MongoDB round trips.
+ * <p>
+ * Needs the same local stack as the {@link FanOutBenchmark}: the bot's environment variables,
+ * and local MongoDB and redis servers. Only the benchmark chats' configurations are touched.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SettingsMenuBenchmark {
+
+    protected static final long enabledChatId = -1_000_000_999_999L;
+    protected static final long missingChatId = -1_000_000_999_998L;
+
+    protected TheFreeStuffBot bot;
+
+    @Setup
+    public void setup() {
+        bot = new TheFreeStuffBot();
+        bot.configCollection.deleteOne(eq("_id", missingChatId));
+        bot.configCollection.replaceOne(eq("_id", enabledChatId), Fixtures.configDocument(enabledChatId),
+                new ReplaceOptions().upsert(true));
+    }
+
+    @TearDown
+    public void tearDown() {
+        bot.configCollection.deleteOne(eq("_id", enabledChatId));
+        bot.onClosing();
+    }
+
+    @Benchmark
+    public InlineKeyboardMarkup enabledChat() {
+        return bot.settingsMenu.constructSettingsMenuMarkup(enabledChatId);
+    }
+
+    @Benchmark
+    public InlineKeyboardMarkup unconfiguredChat() {
+        return bot.settingsMenu.constructSettingsMenuMarkup(missingChatId);
+    }
+}
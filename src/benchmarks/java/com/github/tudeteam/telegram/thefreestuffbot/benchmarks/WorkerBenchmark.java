@@ -0,0 +1,234 @@
+package com.github.tudeteam.telegram.thefreestuffbot.benchmarks;
+
+import com.github.tudeteam.telegram.thefreestuffbot.TheFreeStuffBotOptions;
+import com.github.tudeteam.telegram.thefreestuffbot.components.BotApiClient;
+import com.github.tudeteam.telegram.thefreestuffbot.components.ConfigurationDB;
+import com.github.tudeteam.telegram.thefreestuffbot.components.announcements.*;
+import com.github.tudeteam.telegram.thefreestuffbot.components.announcements.Announcement.Game;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.ChatConfiguration;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.GameData;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.codecs.StructuresCodecProvider;
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.ScoredValue;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.api.sync.RedisCommands;
+import org.telegram.telegrambots.meta.api.objects.ApiResponse;
+import org.telegram.telegrambots.meta.api.objects.Message;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Runs a single announcement worker through a whole announcement, against the {@link BotApiSimulator}
+ * and local MongoDB and redis servers, then reports the database commands it took per 1,000 announcements.
+ * <p>
+ * Unlike the {@link FanOutBenchmark}, the bot itself is not started: the worker is built from its components
+ * the same way as {@link CheckDatabase} builds it, so the commands of the other components are not counted.
+ * The redis commands are counted as they are sent by the worker, and the MongoDB ones by a command listener.
+ * Each command is a request and a response on the connection, whether it's pipelined or not.
+ * The commands which redis executes (including the ones inside the Lua scripts) are reported too, from {@code INFO commandstats}.
+ * <p>
+ * The game's thumbnail is served by the simulator, which downloads and decodes the photos sent by url before answering.
+ * <p>
+ * Usage: {@code WorkerBenchmark [chats] [batchSize] [latencyMillis] [jitterMillis] [reusePhotos]},
+ * using the {@code BOT_DATABASE} MongoDB connection string (the local server by default) and the local redis server.
+ * A batch size of 1 pops, looks up and records the chats one by one,
+ * and {@code reusePhotos} false sends the thumbnail url to each chat, instead of the file id of the first sent photo.
+ */
+public class WorkerBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int chats = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : new TheFreeStuffBotOptions().announcementsBatchSize();
+        long latency = args.length > 2 ? Long.parseLong(args[2]) : 50;
+        long jitter = args.length > 3 ? Long.parseLong(args[3]) : 50;
+        boolean reusePhotos = args.length <= 4 || Boolean.parseBoolean(args[4]);
+
+        System.out.println("Seeding " + chats + " chats...");
+        Seeder.seed(chats, 1, 0.5);
+
+        //Count the MongoDB commands by their names.
+        Map<String, LongAdder> mongoCommands = new ConcurrentHashMap<>();
+        CommandListener listener = new CommandListener() {
+            @Override
+            public void commandStarted(CommandStartedEvent event) {
+                mongoCommands.computeIfAbsent(event.getCommandName(), ignored -> new LongAdder()).increment();
+            }
+        };
+
+        String connectionString = System.getenv("BOT_DATABASE");
+        MongoClientSettings settings = MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString(connectionString == null ? "mongodb://localhost" : connectionString))
+                .addCommandListener(listener)
+                .build();
+
+        RedisClient redisClient = RedisClient.create(Seeder.redisUri);
+
+        try (BotApiSimulator simulator = new BotApiSimulator(0, latency, jitter, 0, 0, 1);
+             MongoClient mongoClient = MongoClients.create(settings);
+             StatefulRedisConnection<String, String> connection = redisClient.connect()) {
+            MongoDatabase database = mongoClient.getDatabase(Seeder.databaseName);
+            database = database.withCodecRegistry(StructuresCodecProvider.withStructures(database.getCodecRegistry()));
+            RedisCommands<String, String> redisCommands = connection.sync();
+
+            simulator.fetchPhotos = true;
+            GameData gameData = database.getCollection("games", GameData.class).find().first();
+            Objects.requireNonNull(gameData).info.thumbnail = URI.create(simulator.thumbnailUrl(gameData._id));
+            Announcement announcement = new Announcement(new Game(gameData._id, gameData.info));
+            queueAnnouncement(redisCommands, announcement, chats);
+
+            TheFreeStuffBotOptions options = new TheFreeStuffBotOptions();
+            BotApiClient botApiClient = new BotApiClient(simulator.url(), "benchmark");
+            ConfigurationDB db = new ConfigurationDB(database.getCollection("telegram-config"), options);
+            //Only the per-chat rate limits, so the worker is bound by the simulator's latency.
+            RateLimiter rateLimiter = new RateLimiter(new TokenBucket(1_000_000, 1, SECONDS),
+                    () -> new TokenBucket(1, 1, SECONDS), () -> new TokenBucket(20, 1, MINUTES), 10_000);
+
+            //Count only the commands of the worker, and of the members counts it reads.
+            Map<String, LongAdder> redisRequests = new ConcurrentHashMap<>();
+            RedisCommands<String, String> countedCommands = counting(RedisCommands.class, redisCommands, redisRequests);
+            RedisAsyncCommands<String, String> countedAsyncCommands = counting(RedisAsyncCommands.class, connection.async(), redisRequests);
+            MemberCountCache memberCountCache = new MemberCountCache(botApiClient, countedAsyncCommands,
+                    options.memberCountsTimeToLive(), options.memberCountsRefreshRate());
+            mongoCommands.clear();
+            redisCommands.configResetstat();
+
+            long startedAt = System.nanoTime();
+            new AnnouncementWorker(announcement, new AnnouncementRenders(announcement), botApiClient, memberCountCache,
+                    null, db, rateLimiter.openShare(1), countedCommands, countedAsyncCommands,
+                    batchSize, options.announcementsWindowSize(), "benchmark", 60_000) {
+                @Override
+                protected CompletableFuture<ApiResponse<Message>> sendGameAnnouncement(long chatId, ChatConfiguration config, Game game) {
+                    if (reusePhotos) return super.sendGameAnnouncement(chatId, config, game);
+
+                    //The url for each chat, without waiting for the first photo to be sent.
+                    String photo = game.info.thumbnail.toString();
+                    photosFileIds.put(game._id, photo);
+                    return botApiClient.sendPhoto(chatId, photo, renders.caption(game, config), renders.markup(game))
+                            .exceptionally(error -> null);
+                }
+            }.run();
+            double duration = (System.nanoTime() - startedAt) / 1e9;
+
+            Map<String, Long> redisExecuted = redisCommandCounts(redisCommands.info("commandstats"));
+            long announcements = simulator.sent.sum();
+            long redisTotal = redisRequests.values().stream().mapToLong(LongAdder::sum).sum();
+            long redisExecutedTotal = redisExecuted.values().stream().mapToLong(Long::longValue).sum();
+            long mongoTotal = mongoCommands.values().stream().mapToLong(LongAdder::sum).sum();
+
+            System.out.println();
+            System.out.println("Chats: " + chats + ", batch size: " + batchSize + ", reuse photos: " + reusePhotos
+                    + ", announcements sent: " + announcements);
+            System.out.printf("Duration: %.1f s, %.1f messages/s%n", duration, announcements / duration);
+            System.out.printf("Redis commands: %d, %.1f per 1,000 announcements %s%n",
+                    redisTotal, redisTotal * 1000.0 / announcements, new TreeMap<>(redisRequests));
+            System.out.printf("Redis commands executed, including the scripts' ones: %d, %.1f per 1,000 announcements %s%n",
+                    redisExecutedTotal, redisExecutedTotal * 1000.0 / announcements, redisExecuted);
+            System.out.printf("MongoDB commands: %d, %.1f per 1,000 announcements %s%n",
+                    mongoTotal, mongoTotal * 1000.0 / announcements, new TreeMap<>(mongoCommands));
+            System.out.printf("Send latency (as seen by the simulator): p50 %.1f ms, p99 %.1f ms%n",
+                    simulator.latencyPercentile(50), simulator.latencyPercentile(99));
+            System.out.println("Requests by method: " + simulator.requests);
+
+            memberCountCache.close();
+            db.close();
+        } finally {
+            redisClient.shutdown();
+        }
+
+        System.exit(0);
+    }
+
+    /**
+     * Wraps redis commands, counting the commands sent through them.
+     *
+     * @param commandsInterface The interface of the commands.
+     * @param commands          The commands to wrap.
+     * @param counts            The counts of the commands, mapped by the commands names, increased with each call.
+     * @param <T>               The type of the commands.
+     * @return The counting commands.
+     */
+    @SuppressWarnings("unchecked")
+    protected static <T> T counting(Class<?> commandsInterface, T commands, Map<String, LongAdder> counts) {
+        return (T) Proxy.newProxyInstance(commandsInterface.getClassLoader(), new Class<?>[]{commandsInterface}, (proxy, method, args) -> {
+            if (method.getDeclaringClass() != Object.class)
+                counts.computeIfAbsent(method.getName(), ignored -> new LongAdder()).increment();
+            try {
+                return method.invoke(commands, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        });
+    }
+
+    /**
+     * Queues an announcement to all the seeded chats, the same way as {@link CheckDatabase} does,
+     * with the groups and channels scored by their members counts.
+     *
+     * @param redisCommands The redis commands.
+     * @param announcement  The announcement.
+     * @param chats         The number of seeded chats.
+     */
+    @SuppressWarnings("unchecked")
+    protected static void queueAnnouncement(RedisCommands<String, String> redisCommands, Announcement announcement, int chats) {
+        List<ScoredValue<String>> pending = new ArrayList<>(chats);
+        for (int n = 0; n < chats; n++) {
+            long chatId = Fixtures.chatId(n, chats);
+            pending.add(ScoredValue.just(chatId > 0 ? 1 : Fixtures.membersCount(chatId), String.valueOf(chatId)));
+        }
+        for (int i = 0; i < pending.size(); i += 1000)
+            redisCommands.zadd(announcement.keyPrefix + "pending",
+                    pending.subList(i, Math.min(i + 1000, pending.size())).toArray(new ScoredValue[0]));
+
+        //The games of the announcement, by their ids as CheckDatabase stores them.
+        StringJoiner gamesIds = new StringJoiner(",");
+        for (Game game : announcement.games) {
+            redisCommands.hset(game.keyAnalytics, "users", "0");
+            gamesIds.add(String.valueOf(game._id));
+        }
+        redisCommands.hset(announcement.keyState, Map.of(
+                "attempts", "3",
+                "games", gamesIds.toString(),
+                "started", String.valueOf(System.currentTimeMillis()),
+                "active", "true"
+        ));
+    }
+
+    /**
+     * Parses the calls of each command out of redis' {@code INFO commandstats},
+     * leaving out the {@code INFO} and {@code CONFIG} calls of the benchmark itself.
+     *
+     * @param commandStats The output of {@code INFO commandstats}.
+     * @return The calls of each command, mapped by the commands names.
+     */
+    protected static Map<String, Long> redisCommandCounts(String commandStats) {
+        Map<String, Long> counts = new TreeMap<>();
+        for (String line : commandStats.split("\r?\n")) {
+            //cmdstat_evalsha:calls=1,usec=10,usec_per_call=10.00,...
+            if (!line.startsWith("cmdstat_")) continue;
+            String command = line.substring("cmdstat_".length(), line.indexOf(':'));
+            if (command.equals("info") || command.startsWith("config")) continue;
+
+            int callsAt = line.indexOf("calls=") + "calls=".length();
+            counts.put(command, Long.parseLong(line.substring(callsAt, line.indexOf(',', callsAt))));
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,113 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.github.tudeteam.telegram.thefreestuffbot.benchmarks.Fixtures;
+import com.github.tudeteam.telegram.thefreestuffbot.components.announcements.Announcement;
+import com.github.tudeteam.telegram.thefreestuffbot.components.announcements.Announcement.Game;
+import com.github.tudeteam.telegram.thefreestuffbot.components.announcements.AnnouncementRenders;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.ChatConfiguration;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.Currency;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.GameData;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.UntilFormat;
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The rendering of a game's announcement for each chat it's sent to, run with {@code -prof gc} for the bytes per send.
+ * <p>
+ * The {@code perSend} benchmarks format the caption and build the keyboard for each chat, like the workers did before
+ * the renders were prepared once for each announcement. The {@code prepared} ones look them up in {@link AnnouncementRenders}.
+ * The {@code request} benchmarks also build and serialize the {@code sendPhoto} body the same way {@link BotApiClient} does,
+ * which is done for each chat either way.
+ * The chats cycle through the caption variants.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnnouncementRenderBenchmark {
+
+    protected Game game;
+    protected AnnouncementRenders renders;
+    protected ChatConfiguration[] configs;
+    protected int chat = 0;
+
+    @Setup
+    public void setup() {
+        Gson gson = new Gson();
+        GameData gameData = gson.fromJson(Fixtures.gameDocument(1).toJson(), GameData.class);
+        game = new Game(gameData._id, gameData.info);
+        renders = new AnnouncementRenders(new Announcement(game));
+
+        configs = new ChatConfiguration[Currency.values().length * UntilFormat.values().length];
+        int variant = 0;
+        for (Currency currency : Currency.values()) {
+            for (UntilFormat untilFormat : UntilFormat.values()) {
+                ChatConfiguration config = gson.fromJson(Fixtures.configDocument(1).toJson(), ChatConfiguration.class);
+                config.currency = currency;
+                config.untilFormat = untilFormat;
+                configs[variant++] = config;
+            }
+        }
+    }
+
+    protected ChatConfiguration nextConfig() {
+        chat = (chat + 1) % configs.length;
+        return configs[chat];
+    }
+
+    protected InlineKeyboardMarkup buildMarkup() {
+        InlineKeyboardMarkup inlineMarkup = new InlineKeyboardMarkup();
+        inlineMarkup.getKeyboard().add(List.of(new InlineKeyboardButton()
+                        .setText("Share")
+                        .setSwitchInlineQuery("game_id:" + game._id),
+
+                new InlineKeyboardButton()
+                        .setText("Get")
+                        .setUrl(game.info.org_url.toString())
+        ));
+        return inlineMarkup;
+    }
+
+    protected static String requestBody(String caption, InlineKeyboardMarkup markup) throws JsonProcessingException {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("chat_id", -1001234567890L);
+        parameters.put("photo", "simulated-photo");
+        parameters.put("caption", caption);
+        parameters.put("parse_mode", "HTML");
+        parameters.put("reply_markup", markup);
+        return BotApiClient.objectMapper.writeValueAsString(parameters);
+    }
+
+    @Benchmark
+    public void perSend(Blackhole blackhole) {
+        blackhole.consume(game.info.formatCaption(nextConfig()));
+        blackhole.consume(buildMarkup());
+    }
+
+    @Benchmark
+    public void prepared(Blackhole blackhole) {
+        blackhole.consume(renders.caption(game, nextConfig()));
+        blackhole.consume(renders.markup(game));
+    }
+
+    @Benchmark
+    public String perSendRequest() throws JsonProcessingException {
+        return requestBody(game.info.formatCaption(nextConfig()), buildMarkup());
+    }
+
+    @Benchmark
+    public String preparedRequest() throws JsonProcessingException {
+        return requestBody(renders.caption(game, nextConfig()), renders.markup(game));
+    }
+}
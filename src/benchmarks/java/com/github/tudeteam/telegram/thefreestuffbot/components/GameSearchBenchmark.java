@@ -0,0 +1,84 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components;
+
+import com.github.tudeteam.telegram.thefreestuffbot.benchmarks.Fixtures;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.GameData;
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * The search of the inline queries over a synthetic catalogue of games.
+ * <p>
+ * The {@code scan} benchmark is the in-process equivalent of the old regex query: matching the regex against
+ * each game's title, then sorting by the publishing time, without the network round trip and the decoding
+ * which the database query adds on top. The {@code index} benchmarks use the {@link GameSearchIndex}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GameSearchBenchmark {
+
+    @Param({"50000"})
+    public int games;
+
+    @Param({"d", "dark", "souls remastered", "legends: origins #4", "no such game"})
+    public String query;
+
+    protected final List<GameData> catalogue = new ArrayList<>();
+    protected final GameSearchIndex index = new GameSearchIndex();
+    protected int currentTime;
+    protected Pattern pattern;
+    protected int updatedId = 0;
+
+    @Setup
+    public void setup() {
+        Gson gson = new Gson();
+        currentTime = (int) (System.currentTimeMillis() / 1000L);
+
+        for (int id = 1; id <= games; id++) {
+            GameData gameData = gson.fromJson(Fixtures.gameDocument(id).toJson(), GameData.class);
+            gameData.published -= id; //Spread the publishing times, so the recency ranking has work to do.
+            catalogue.add(gameData);
+        }
+
+        index.replaceAll(catalogue);
+        pattern = Pattern.compile(InlineQueryHandler.searchRegex(query));
+    }
+
+    @Benchmark
+    public List<GameData> scan() {
+        List<GameData> matches = new ArrayList<>();
+        for (GameData gameData : catalogue)
+            if (gameData.info.until >= currentTime && pattern.matcher(gameData.info.title).find()) matches.add(gameData);
+
+        matches.sort(Comparator.comparingInt((GameData gameData) -> gameData.published).reversed());
+        return matches.size() > 50 ? matches.subList(0, 50) : matches;
+    }
+
+    @Benchmark
+    public List<GameData> index() {
+        return index.search(query, currentTime, gameData -> true, 50);
+    }
+
+    @Benchmark
+    public GameData indexLookup() {
+        return index.get(games / 2);
+    }
+
+    /**
+     * The incremental refresh of a changed game.
+     */
+    @Benchmark
+    public void indexUpdate() {
+        index.put(catalogue.get(updatedId));
+        updatedId = (updatedId + 1) % catalogue.size();
+    }
+}
@@ -0,0 +1,50 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components;
+
+import com.github.tudeteam.telegram.thefreestuffbot.benchmarks.Fixtures;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.ChatConfiguration;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.GameData;
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.*;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.result.InlineQueryResult;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per keystroke work of the inline queries, excluding the database query itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InlineQueryBenchmark {
+
+    @Param({"a", "Synthetic Game", "the benchmark edition (steam)"})
+    public String query;
+
+    protected GameData gameData;
+    protected ChatConfiguration config;
+
+    @Setup
+    public void setup() {
+        Gson gson = new Gson();
+        gameData = gson.fromJson(Fixtures.gameDocument(1).toJson(), GameData.class);
+        config = gson.fromJson(Fixtures.configDocument(1).toJson(), ChatConfiguration.class);
+    }
+
+    @Benchmark
+    public String searchRegex() {
+        return InlineQueryHandler.searchRegex(query);
+    }
+
+    @Benchmark
+    public InlineQueryResult constructResult() {
+        return InlineQueryHandler.constructResult(gameData, config, null);
+    }
+
+    @Benchmark
+    public InlineQueryResult constructCachedResult() {
+        return InlineQueryHandler.constructResult(gameData, config, "simulated-photo");
+    }
+}
@@ -2,19 +2,34 @@ package com.github.tudeteam.telegram.thefreestuffbot;
 
 import com.github.rami_sabbagh.telegram.alice_framework.bots.alice.AliceBot;
 import com.github.rami_sabbagh.telegram.alice_framework.commands.Privacy;
+import com.github.tudeteam.telegram.thefreestuffbot.components.BotApiClient;
 import com.github.tudeteam.telegram.thefreestuffbot.components.ConfigurationDB;
+import com.github.tudeteam.telegram.thefreestuffbot.components.EligibilityIndex;
+import com.github.tudeteam.telegram.thefreestuffbot.components.GamesWatcher;
 import com.github.tudeteam.telegram.thefreestuffbot.components.InlineQueryHandler;
+import com.github.tudeteam.telegram.thefreestuffbot.components.Metrics;
+import com.github.tudeteam.telegram.thefreestuffbot.components.announcements.AnnouncementSupervisor;
 import com.github.tudeteam.telegram.thefreestuffbot.components.announcements.AnnouncementsMigrationHandler;
+import com.github.tudeteam.telegram.thefreestuffbot.components.announcements.AnnouncementsTrigger;
+import com.github.tudeteam.telegram.thefreestuffbot.components.announcements.ChatIndex;
+import com.github.tudeteam.telegram.thefreestuffbot.components.announcements.ChatsPruner;
 import com.github.tudeteam.telegram.thefreestuffbot.components.announcements.CheckDatabase;
+import com.github.tudeteam.telegram.thefreestuffbot.components.announcements.CoordinatorLease;
+import com.github.tudeteam.telegram.thefreestuffbot.components.announcements.MemberCountCache;
 import com.github.tudeteam.telegram.thefreestuffbot.components.settings.SettingsMenu;
 import com.github.tudeteam.telegram.thefreestuffbot.structures.ChatConfiguration;
 import com.github.tudeteam.telegram.thefreestuffbot.structures.GameData;
-import com.google.gson.Gson;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.codecs.StructuresCodecProvider;
 import com.mongodb.client.MongoCollection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.prometheus.client.exporter.HTTPServer;
+import io.prometheus.client.hotspot.DefaultExports;
 import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistry;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Executors;
@@ -23,29 +38,59 @@ import java.util.concurrent.ScheduledExecutorService;
 import static com.mongodb.client.model.Filters.*;
 import static com.mongodb.client.model.Sorts.descending;
 import static com.mongodb.client.model.Updates.set;
-import static java.util.concurrent.TimeUnit.MINUTES;
 
 public class TheFreeStuffBot extends AliceBot {
 
-    private static final Gson gson = new Gson();
-
+    /* Bot Options */
+    public final TheFreeStuffBotOptions options = new TheFreeStuffBotOptions();
+    /* Redis Commands */
+    public final RedisAsyncCommands<String, String> redisAsyncCommands = redisCommands.getStatefulConnection().async();
     /* MongoDB Collections */
-    public final MongoCollection<Document> configCollection = mongoDatabase.getCollection("telegram-config");
-    public final MongoCollection<Document> gamesCollection = mongoDatabase.getCollection("games");
+    public final CodecRegistry codecRegistry = StructuresCodecProvider.withStructures(mongoDatabase.getCodecRegistry());
+    public final MongoCollection<Document> configCollection = mongoDatabase.getCollection("telegram-config").withCodecRegistry(codecRegistry);
+    public final MongoCollection<Document> gamesCollection = mongoDatabase.getCollection("games").withCodecRegistry(codecRegistry);
     /* Bot Components */
+    public final BotApiClient botApiClient = new BotApiClient(options.botApiUrl(), options.botToken());
+    public final MemberCountCache memberCountCache = new MemberCountCache(botApiClient, redisAsyncCommands,
+            options.memberCountsTimeToLive(), options.memberCountsRefreshRate());
+    /**
+     * The single change stream of the games collection, shared by the announcements trigger and the games search index.
+     */
+    public final GamesWatcher gamesWatcher = new GamesWatcher(gamesCollection.withDocumentClass(GameData.class));
+    public final CoordinatorLease coordinatorLease = new CoordinatorLease(redisCommands, options.coordinatorLeaseTime());
     public final ConfigurationDB configurationDB = new ConfigurationDB(this);
+    public final ChatsPruner chatsPruner = new ChatsPruner(this);
+    /**
+     * The dense indices of the chats, {@code null} unless the compact announcements layout is enabled.
+     */
+    public final ChatIndex chatIndex = options.compactAnnouncements() ? new ChatIndex(this) : null;
+    public final AnnouncementSupervisor announcementSupervisor = new AnnouncementSupervisor(this);
     public final InlineQueryHandler inlineQueryHandler = new InlineQueryHandler(this);
     public final SettingsMenu settingsMenu = new SettingsMenu(this);
     public final ScheduledExecutorService scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+    public final AnnouncementsTrigger announcementsTrigger;
+    /* Metrics */
+    protected HTTPServer metricsServer;
 
     public TheFreeStuffBot() {
         super(new TheFreeStuffBotOptions());
-        updatesPipe.registerHandler(new AnnouncementsMigrationHandler(this));
-        updatesPipe.registerHandler(configurationDB.migrationHandler);
-        updatesPipe.registerHandler(inlineQueryHandler);
-        updatesPipe.registerHandler(settingsMenu);
+        updatesPipe.registerHandler(Metrics.timed("announcementsMigration", new AnnouncementsMigrationHandler(this)));
+        updatesPipe.registerHandler(Metrics.timed("configurationMigration", configurationDB.migrationHandler));
+        updatesPipe.registerHandler(Metrics.timed("inlineQuery", inlineQueryHandler));
+        updatesPipe.registerHandler(Metrics.timed("settingsMenu", settingsMenu));
 
-        scheduledExecutor.scheduleWithFixedDelay(new CheckDatabase(this), 0, 1, MINUTES);
+        //Expose the metrics for Prometheus.
+        if (options.metricsPort() != 0) {
+            DefaultExports.initialize();
+            try {
+                metricsServer = new HTTPServer(options.metricsPort(), true);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        announcementsTrigger = new AnnouncementsTrigger(scheduledExecutor, new CheckDatabase(this),
+                gamesWatcher, options.announcementsPollInterval());
 
         commandsHandler.newCommand()
                 .name("free")
@@ -59,12 +104,11 @@ public class TheFreeStuffBot extends AliceBot {
                     List<List<InlineKeyboardButton>> keyboard = markup.getKeyboard();
 
                     int currentTime = (int) (System.currentTimeMillis() / 1000L);
-                    gamesCollection.find(and(
+                    gamesCollection.withDocumentClass(GameData.class).find(and(
                             eq("status", "published"),
                             gte("info.until", currentTime)
                     )).sort(descending("published"))
-                            .forEach(document -> {
-                                GameData gameData = gson.fromJson(document.toJson(), GameData.class);
+                            .forEach(gameData -> {
                                 games.add("• " + gameData.info.formatCaptionWithoutHeaderAndFooter(config));
 
                                 keyboard.add(List.of(new InlineKeyboardButton()
@@ -102,6 +146,7 @@ public class TheFreeStuffBot extends AliceBot {
                 .privacy(Privacy.ADMIN)
                 .action((message, parsedCommand) -> {
                     long count = gamesCollection.updateMany(eq("status", "published"), set("outgoing", new Document("telegram", true))).getMatchedCount();
+                    if (count != 0) announcementsTrigger.wake();
 
                     silent.compose().text(count != 0 ? ("Announcing " + count + " games ✅") : "Failed to announce any games ⚠")
                             .replyToOnlyInGroup(message).send();
@@ -132,11 +177,68 @@ public class TheFreeStuffBot extends AliceBot {
 
                     boolean success = gamesCollection.updateOne(eq("_id", gameId),
                             set("outgoing", new Document("telegram", true))).getMatchedCount() == 1;
+                    if (success) announcementsTrigger.wake();
 
                     silent.compose().text(success ? "Announced successfully ✅" : "Game not found ⚠")
                             .replyToOnlyInGroup(message).send();
                 })
                 .build();
+
+        commandsHandler.newCommand()
+                .name("audience")
+                .description("Count the chats which would receive a game 🎯")
+                .privacy(Privacy.ADMIN)
+                .action((message, parsedCommand) -> {
+                    EligibilityIndex eligibilityIndex = configurationDB.eligibilityIndex;
+                    if (eligibilityIndex == null) {
+                        silent.compose().text("The eligibility index is disabled ⚠")
+                                .replyToOnlyInGroup(message).send();
+                        return;
+                    }
+
+                    int gameId;
+
+                    try {
+                        gameId = Integer.parseInt(parsedCommand.parameters.trim());
+                    } catch (NumberFormatException e) {
+                        silent.compose().text("Usage " + parsedCommand + " <game_id>")
+                                .replyToOnlyInGroup(message).send();
+                        return;
+                    }
+
+                    GameData gameData = gamesCollection.withDocumentClass(GameData.class).find(eq("_id", gameId)).first();
+                    if (gameData == null || gameData.info == null) {
+                        silent.compose().text("Game not found ⚠")
+                                .replyToOnlyInGroup(message).send();
+                        return;
+                    }
+
+                    silent.compose().text(gameData.info.title + " would reach " + eligibilityIndex.countEligible(gameData.info)
+                            + " of " + eligibilityIndex.size() + " chats 🎯")
+                            .replyToOnlyInGroup(message).send();
+                })
+                .build();
+
+        commandsHandler.newCommand()
+                .name("pruned")
+                .description("Report the chats which can't be reached anymore 🧹")
+                .privacy(Privacy.ADMIN)
+                .action((message, parsedCommand) -> silent.compose().text(
+                        "Pruned chats: " + chatsPruner.getPrunedCount() + "\n" +
+                                "Failing chats (below the threshold): " + chatsPruner.getUndeliverableCount())
+                        .replyToOnlyInGroup(message).send())
+                .build();
+
+        commandsHandler.newCommand()
+                .name("workers")
+                .description("Report the health of the announcement workers on this instance 🩺")
+                .privacy(Privacy.ADMIN)
+                .action((message, parsedCommand) -> {
+                    List<String> health = announcementSupervisor.health();
+                    silent.compose().text(health.isEmpty() ? "No announcement workers are running 💤" : String.join("\n", health))
+                            .replyToOnlyInGroup(message).send();
+                })
+                .build();
     }
 
 
@@ -146,7 +248,18 @@ public class TheFreeStuffBot extends AliceBot {
     @Override
     public void onClosing() {
         //Executors
+        announcementsTrigger.close();
         scheduledExecutor.shutdown();
+        announcementSupervisor.close();
+        //Caches
+        memberCountCache.close();
+        configurationDB.close();
+        inlineQueryHandler.close();
+        gamesWatcher.close();
+        //Let another instance take over the announcements.
+        coordinatorLease.close();
+        //Metrics
+        if (metricsServer != null) metricsServer.stop();
         //AliceBot
         super.onClosing();
     }
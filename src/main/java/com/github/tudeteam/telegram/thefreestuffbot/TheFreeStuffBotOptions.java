@@ -33,6 +33,258 @@ public class TheFreeStuffBotOptions extends AliceOptions {
         return 6;
     }
 
+    /**
+     * The number of chat ids which an announcement worker pops, looks up and records at once.
+     *
+     * @return The announcements batch size.
+     */
+    public int announcementsBatchSize() {
+        return 100;
+    }
+
+    /**
+     * The maximum number of announcement messages which can be in-flight (sent but not answered yet) at once.
+     *
+     * @return The announcements window size.
+     */
+    public int announcementsWindowSize() {
+        return 30;
+    }
+
+    /**
+     * Whether to coalesce multiple games which are waiting to be announced into a single message for each chat.
+     *
+     * @return {@code true} to coalesce the announcements.
+     */
+    public boolean coalesceAnnouncements() {
+        return true;
+    }
+
+    /**
+     * The maximum number of games to list in a single coalesced announcement message,
+     * when more games are waiting they are announced on their own instead.
+     * <p>
+     * Each game takes a keyboard row, and the message must fit within Telegram's 4096 characters limit.
+     *
+     * @return The maximum number of games in a coalesced announcement.
+     */
+    public int coalescedAnnouncementsLimit() {
+        return 10;
+    }
+
+    /**
+     * Whether to store the pending and failed chats of the new announcements in the compact layout:
+     * as dense chat indices instead of chat ids, with the private chats kept in a bitmap.
+     *
+     * @return {@code true} to use the compact layout.
+     */
+    public boolean compactAnnouncements() {
+        return false;
+    }
+
+    /**
+     * The maximum number of announcements to process concurrently on each node,
+     * the rest wait in a queue until one of them is done.
+     *
+     * @return The number of concurrent announcements.
+     */
+    public int maxConcurrentAnnouncements() {
+        return 4;
+    }
+
+    /**
+     * The time to live of the cached chats' members counts.
+     *
+     * @return The time to live in seconds.
+     */
+    public long memberCountsTimeToLive() {
+        return 3 * 24 * 3600;
+    }
+
+    /**
+     * The maximum number of chats' members counts which the background refresher fetches each second.
+     *
+     * @return The refresh rate per second.
+     */
+    public int memberCountsRefreshRate() {
+        return 2;
+    }
+
+    /**
+     * The maximum number of chats configurations kept in memory, including the chats which don't have one,
+     * the least recently used are evicted first.
+     *
+     * @return The maximum number of cached configurations.
+     */
+    public int configurationCacheSize() {
+        return 50_000;
+    }
+
+    /**
+     * The time a cached chat configuration is used for before it's read again from the database,
+     * which bounds how long the changes made by the other instances of the bot can go unnoticed.
+     *
+     * @return The time to live in milliseconds.
+     */
+    public long configurationCacheTimeToLive() {
+        return 30_000;
+    }
+
+    /**
+     * Whether to delay and coalesce the settings changes, so the updates handlers don't wait for MongoDB to write them.
+     * The changes are applied to the cached configurations immediately, and written in batches.
+     *
+     * @return {@code true} to enable the write-behind of the settings changes.
+     */
+    public boolean configurationWriteBehind() {
+        return false;
+    }
+
+    /**
+     * The interval of writing the delayed settings changes, when the write-behind is enabled.
+     *
+     * @return The interval in milliseconds.
+     */
+    public long configurationFlushInterval() {
+        return 1000;
+    }
+
+    /**
+     * The number of chats with delayed settings changes which triggers writing them before the flush interval.
+     *
+     * @return The number of chats.
+     */
+    public int configurationFlushThreshold() {
+        return 500;
+    }
+
+    /**
+     * Whether to keep an in-memory index of the chats configurations,
+     * so the audience of the announcements is computed without querying the database.
+     *
+     * @return {@code true} to enable the eligibility index.
+     */
+    public boolean eligibilityIndex() {
+        return false;
+    }
+
+    /**
+     * The interval of rebuilding the eligibility index from the database,
+     * which picks up the changes made by the other instances of the bot.
+     *
+     * @return The interval in minutes.
+     */
+    public long eligibilityIndexRebuildInterval() {
+        return 10;
+    }
+
+    /**
+     * Whether to answer the inline queries from an in-memory index of the published and accepted games,
+     * instead of querying the database on each keystroke.
+     *
+     * @return {@code true} to enable the games search index.
+     */
+    public boolean gameSearchIndex() {
+        return true;
+    }
+
+    /**
+     * The interval of reloading the games search index from the database,
+     * only a fallback for when the database changes stream is not available.
+     *
+     * @return The interval in minutes.
+     */
+    public long gameSearchIndexReloadInterval() {
+        return 5;
+    }
+
+    /**
+     * The time of the lease which elects the coordinator of the announcements between the running instances of the bot.
+     *
+     * @return The lease time in milliseconds.
+     */
+    public long coordinatorLeaseTime() {
+        return 30_000;
+    }
+
+    /**
+     * The time after the last heartbeat of an announcement worker which it's considered dead after,
+     * so the coordinator doesn't wait for it before finalizing the announcement.
+     *
+     * @return The timeout in milliseconds.
+     */
+    public long announcementsNodeTimeout() {
+        return 120_000;
+    }
+
+    /**
+     * The time without any progress which an announcement worker is considered stuck after,
+     * so it's stopped and replaced by its supervisor.
+     *
+     * @return The timeout in milliseconds.
+     */
+    public long announcementsWorkerTimeout() {
+        return 60_000;
+    }
+
+    /**
+     * The maximum number of times an announcement's worker can be restarted within the restart period,
+     * before its supervisor gives up on it (it's resumed by the next check for announcements).
+     *
+     * @return The maximum number of restarts.
+     */
+    public int announcementsWorkerMaxRestarts() {
+        return 5;
+    }
+
+    /**
+     * The period which the restarts of an announcement's worker are counted in.
+     *
+     * @return The period in milliseconds.
+     */
+    public long announcementsWorkerRestartPeriod() {
+        return 10 * 60_000;
+    }
+
+    /**
+     * The number of announcements in a row which have to fail permanently for a chat (the bot was blocked or kicked...)
+     * to have its announcements disabled.
+     *
+     * @return The failures threshold.
+     */
+    public int pruneThreshold() {
+        return 3;
+    }
+
+    /**
+     * The port of the Prometheus metrics server, which serves them on {@code /metrics}.
+     *
+     * @return The port number, {@code 0} to disable the metrics server.
+     */
+    public int metricsPort() {
+        return 9400;
+    }
+
+    /**
+     * The interval of polling the database for new announcements,
+     * only a fallback for when the database changes stream is not available.
+     *
+     * @return The interval in minutes.
+     */
+    public long announcementsPollInterval() {
+        return 5;
+    }
+
+    /**
+     * The url of the Bot API server used for the asynchronous requests (the announcements and the inline queries answers),
+     * it can be overridden using the {@code BOT_API_URL} environment variable (a local Bot API server or simulator).
+     *
+     * @return The Bot API url.
+     */
+    public String botApiUrl() {
+        return System.getenv().getOrDefault("BOT_API_URL", "https://api.telegram.org/");
+    }
+
     @Override
     public String mongoDatabaseName() {
         return "freestuffbot";
@@ -0,0 +1,158 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.telegram.telegrambots.meta.api.methods.AnswerInlineQuery;
+import org.telegram.telegrambots.meta.api.objects.ApiResponse;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A non-blocking client for the Telegram Bot API, for the requests which are sent in large numbers.
+ * <p>
+ * The requests are sent as JSON using the {@link HttpClient} of the JDK,
+ * so no thread is blocked while waiting for the responses.
+ */
+public class BotApiClient {
+
+    protected static final ObjectMapper objectMapper = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    protected static final TypeReference<ApiResponse<Message>> messageResponse = new TypeReference<>() {
+    };
+    protected static final TypeReference<ApiResponse<Integer>> integerResponse = new TypeReference<>() {
+    };
+    protected static final TypeReference<ApiResponse<Boolean>> booleanResponse = new TypeReference<>() {
+    };
+    protected static final TypeReference<Map<String, Object>> parametersType = new TypeReference<>() {
+    };
+
+    /**
+     * The url which the requests are sent to, followed by the method name.
+     */
+    protected final String methodsUrl;
+
+    protected final HttpClient httpClient = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    /**
+     * Creates a new client.
+     *
+     * @param apiUrl   The url of the Bot API server, {@code https://api.telegram.org/} for the official one.
+     * @param botToken The token of the bot.
+     */
+    public BotApiClient(String apiUrl, String botToken) {
+        methodsUrl = apiUrl + "bot" + botToken + "/";
+    }
+
+    /**
+     * Executes a Bot API method asynchronously.
+     *
+     * @param method       The name of the method.
+     * @param parameters   The parameters of the method, serialized into JSON.
+     * @param responseType The type of the method's response.
+     * @param <T>          The type of the method's result.
+     * @return A future of the response, completed exceptionally only when the request couldn't be made.
+     */
+    public <T> CompletableFuture<ApiResponse<T>> executeAsync(String method, Map<String, Object> parameters,
+                                                              TypeReference<ApiResponse<T>> responseType) {
+        String body;
+
+        try {
+            body = objectMapper.writeValueAsString(parameters);
+        } catch (JsonProcessingException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        HttpRequest request = HttpRequest.newBuilder(URI.create(methodsUrl + method))
+                .header("Content-Type", "application/json")
+                .timeout(Duration.ofSeconds(30))
+                .POST(HttpRequest.BodyPublishers.ofString(body, UTF_8))
+                .build();
+
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString(UTF_8))
+                .thenApply(response -> {
+                    try {
+                        return objectMapper.readValue(response.body(), responseType);
+                    } catch (JsonProcessingException e) {
+                        throw new CompletionException(e);
+                    }
+                });
+    }
+
+    /**
+     * Sends a photo with an HTML caption asynchronously.
+     *
+     * @param chatId  The id of the chat to send the photo to.
+     * @param photo   The url or file id of the photo.
+     * @param caption The HTML caption of the photo.
+     * @param markup  The inline keyboard of the message.
+     * @return A future of the response.
+     */
+    public CompletableFuture<ApiResponse<Message>> sendPhoto(long chatId, String photo, String caption, InlineKeyboardMarkup markup) {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("chat_id", chatId);
+        parameters.put("photo", photo);
+        parameters.put("caption", caption);
+        parameters.put("parse_mode", "HTML");
+        parameters.put("reply_markup", markup);
+
+        return executeAsync("sendPhoto", parameters, messageResponse);
+    }
+
+    /**
+     * Sends an HTML text message without web page previews asynchronously.
+     *
+     * @param chatId The id of the chat to send the message to.
+     * @param text   The HTML text of the message.
+     * @param markup The inline keyboard of the message.
+     * @return A future of the response.
+     */
+    public CompletableFuture<ApiResponse<Message>> sendMessage(long chatId, String text, InlineKeyboardMarkup markup) {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("chat_id", chatId);
+        parameters.put("text", text);
+        parameters.put("parse_mode", "HTML");
+        parameters.put("disable_web_page_preview", true);
+        parameters.put("reply_markup", markup);
+
+        return executeAsync("sendMessage", parameters, messageResponse);
+    }
+
+    /**
+     * Gets the number of members in a chat asynchronously.
+     *
+     * @param chatId The id of the chat.
+     * @return A future of the response.
+     */
+    public CompletableFuture<ApiResponse<Integer>> getChatMembersCount(long chatId) {
+        return executeAsync("getChatMembersCount", Map.of("chat_id", chatId), integerResponse);
+    }
+
+    /**
+     * Answers an inline query asynchronously.
+     *
+     * @param answerInlineQuery The answer, serialized with its JSON properties, the same as by the framework's sender.
+     * @return A future of the response.
+     */
+    public CompletableFuture<ApiResponse<Boolean>> answerInlineQuery(AnswerInlineQuery answerInlineQuery) {
+        return executeAsync("answerInlineQuery", objectMapper.convertValue(answerInlineQuery, parametersType), booleanResponse);
+    }
+}
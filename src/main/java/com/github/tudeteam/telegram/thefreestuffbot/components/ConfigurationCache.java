@@ -0,0 +1,216 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components;
+
+import com.github.tudeteam.telegram.thefreestuffbot.structures.ChatConfiguration;
+import io.prometheus.client.Counter;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+
+/**
+ * A bounded read-through cache of the chats configurations, used by {@link ConfigurationDB}.
+ * <p>
+ * The chats which don't have a configuration are cached too, as negative entries.
+ * The least recently used entries are evicted once the maximum size is exceeded,
+ * and the entries expire after a time to live, so the changes made by the other instances of the bot are picked up.
+ * <p>
+ * The configurations are copied into and out of the cache, so the callers own the ones they get, and may modify them.
+ * The changes are made in the database, then the affected chats are invalidated.
+ */
+public class ConfigurationCache {
+
+    /* Static Fields */
+
+    /**
+     * The value of the negative entries.
+     */
+    protected static final ChatConfiguration missing = new ChatConfiguration();
+
+    protected static final Counter.Child hits = Metrics.configurationCacheRequests.labels("hit");
+    protected static final Counter.Child misses = Metrics.configurationCacheRequests.labels("miss");
+
+    /* Instance Fields */
+
+    protected final int maximumSize;
+    protected final long timeToLive;
+
+    /**
+     * The cached entries in access order, from the least recently used.
+     */
+    protected final Map<Long, Entry> entries;
+
+    /**
+     * Incremented on each invalidation, so the loads which started before it don't cache what they read.
+     */
+    protected long generation = 0;
+
+    /* Constructor */
+
+    /**
+     * Creates a new empty cache.
+     *
+     * @param maximumSize The maximum number of entries.
+     * @param timeToLive  The time to live of the entries in milliseconds.
+     */
+    public ConfigurationCache(int maximumSize, long timeToLive) {
+        this.maximumSize = maximumSize;
+        this.timeToLive = timeToLive;
+
+        entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                if (size() <= ConfigurationCache.this.maximumSize) return false;
+                Metrics.configurationCacheEvictions.inc();
+                return true;
+            }
+        };
+    }
+
+    /* Instance Methods */
+
+    /**
+     * Gets the configuration of a chat, loading and caching it on a miss.
+     *
+     * @param chatId The id of the chat.
+     * @param loader Loads the configuration of the chat from the database, returns {@code null} when it has none.
+     * @return The configuration of the chat, {@code null} when it has none.
+     */
+    public ChatConfiguration get(long chatId, LongFunction<ChatConfiguration> loader) {
+        long loadGeneration;
+        synchronized (this) {
+            Entry entry = entries.get(chatId);
+            if (entry != null && !entry.isExpired()) {
+                hits.inc();
+                return entry.config == missing ? null : copyOf(entry.config);
+            }
+
+            misses.inc();
+            loadGeneration = generation;
+        }
+
+        ChatConfiguration config = loader.apply(chatId);
+
+        synchronized (this) {
+            if (generation == loadGeneration) {
+                entries.put(chatId, new Entry(config == null ? missing : copyOf(config)));
+                Metrics.configurationCacheSize.set(entries.size());
+            }
+        }
+
+        return config;
+    }
+
+    /**
+     * Gets the cached configurations of multiple chats, without loading the missing ones.
+     *
+     * @param chatIds        The ids of the chats.
+     * @param configurations The map to put the found configurations into, the chats which have none are not included.
+     * @return The ids of the chats which were not found in the cache.
+     */
+    public synchronized List<Long> getCached(Collection<Long> chatIds, Map<Long, ChatConfiguration> configurations) {
+        List<Long> uncached = new ArrayList<>();
+
+        for (long chatId : chatIds) {
+            Entry entry = entries.get(chatId);
+            if (entry == null || entry.isExpired()) {
+                uncached.add(chatId);
+            } else if (entry.config != missing) {
+                configurations.put(chatId, copyOf(entry.config));
+            }
+        }
+
+        hits.inc(chatIds.size() - uncached.size());
+        misses.inc(uncached.size());
+        return uncached;
+    }
+
+    /**
+     * Checks whether a chat is cached as having no configuration, without loading it.
+     *
+     * @param chatId The id of the chat.
+     * @return {@code true} if the chat is known to have none, {@code false} if it has one or it's not cached.
+     */
+    public synchronized boolean isCachedMissing(long chatId) {
+        Entry entry = entries.get(chatId);
+        return entry != null && !entry.isExpired() && entry.config == missing;
+    }
+
+    /**
+     * Changes the cached configuration of a chat, by replacing it with a changed copy.
+     * Nothing is done when the configuration is not cached, or the chat has none.
+     *
+     * @param chatId The id of the chat.
+     * @param change Applies the change to the copy of the configuration.
+     */
+    public synchronized void update(long chatId, Consumer<ChatConfiguration> change) {
+        generation++;
+
+        Entry entry = entries.get(chatId);
+        if (entry == null || entry.config == missing) return;
+
+        ChatConfiguration config = copyOf(entry.config);
+        change.accept(config);
+
+        entries.put(chatId, new Entry(config));
+    }
+
+    /**
+     * Prevents the loads which are still running from caching what they read,
+     * after the database was changed without changing what's already cached.
+     */
+    public synchronized void invalidateLoads() {
+        generation++;
+    }
+
+    /**
+     * Invalidates the cached configuration of a chat, after it was changed in the database.
+     *
+     * @param chatId The id of the chat.
+     */
+    public synchronized void invalidate(long chatId) {
+        generation++;
+        entries.remove(chatId);
+        Metrics.configurationCacheSize.set(entries.size());
+    }
+
+    /**
+     * Invalidates the cached configurations of multiple chats, after they were changed in the database.
+     *
+     * @param chatIds The ids of the chats.
+     */
+    public synchronized void invalidate(Collection<Long> chatIds) {
+        generation++;
+        for (long chatId : chatIds) entries.remove(chatId);
+        Metrics.configurationCacheSize.set(entries.size());
+    }
+
+    /**
+     * Copies a configuration, so the cached one is never shared with the callers.
+     *
+     * @param config The configuration to copy.
+     * @return The copy.
+     */
+    protected static ChatConfiguration copyOf(ChatConfiguration config) {
+        ChatConfiguration copy = new ChatConfiguration();
+        copy._id = config._id;
+        copy.enabled = config.enabled;
+        copy.currency = config.currency;
+        copy.untilFormat = config.untilFormat;
+        copy.trash = config.trash;
+        copy.minPrice = config.minPrice;
+        return copy;
+    }
+
+    protected class Entry {
+        protected final ChatConfiguration config;
+        protected final long loadedAt = System.currentTimeMillis();
+
+        protected Entry(ChatConfiguration config) {
+            this.config = config;
+        }
+
+        protected boolean isExpired() {
+            return System.currentTimeMillis() - loadedAt > timeToLive;
+        }
+    }
+}
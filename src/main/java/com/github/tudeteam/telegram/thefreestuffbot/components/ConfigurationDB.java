@@ -2,47 +2,105 @@ package com.github.tudeteam.telegram.thefreestuffbot.components;
 
 import com.github.rami_sabbagh.telegram.alice_framework.pipes.Handler;
 import com.github.tudeteam.telegram.thefreestuffbot.TheFreeStuffBot;
+import com.github.tudeteam.telegram.thefreestuffbot.TheFreeStuffBotOptions;
 import com.github.tudeteam.telegram.thefreestuffbot.structures.ChatConfiguration;
 import com.github.tudeteam.telegram.thefreestuffbot.structures.Currency;
 import com.github.tudeteam.telegram.thefreestuffbot.structures.UntilFormat;
-import com.google.gson.Gson;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import io.prometheus.client.Histogram;
 import org.bson.Document;
 import org.telegram.telegrambots.meta.api.objects.Message;
 import org.telegram.telegrambots.meta.api.objects.Update;
 
+import java.util.*;
+
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
 import static com.mongodb.client.model.Updates.set;
 
 public class ConfigurationDB {
 
-    protected static final Gson gson = new Gson();
-
     protected final MongoCollection<Document> collection;
+    protected final MongoCollection<ChatConfiguration> configurations;
+    protected final ConfigurationCache cache;
+    /**
+     * Delays the settings changes, {@code null} when they are written directly.
+     */
+    protected final ConfigurationWriteBehind writeBehind;
+    /**
+     * The in-memory index of the configurations, {@code null} when it's disabled.
+     */
+    public final EligibilityIndex eligibilityIndex;
 
     public final Handler<Update> migrationHandler;
 
     public ConfigurationDB(TheFreeStuffBot bot) {
-        this.collection = bot.configCollection;
+        this(bot.configCollection, bot.options);
+    }
+
+    /**
+     * Creates the configurations database over a collection, apart from a bot.
+     *
+     * @param collection The configurations collection, with the structures codecs.
+     * @param options    The options of the cache, the write-behind and the eligibility index.
+     */
+    public ConfigurationDB(MongoCollection<Document> collection, TheFreeStuffBotOptions options) {
+        this.collection = collection;
+        this.configurations = collection.withDocumentClass(ChatConfiguration.class);
+        this.cache = new ConfigurationCache(options.configurationCacheSize(), options.configurationCacheTimeToLive());
+        this.writeBehind = options.configurationWriteBehind() ? new ConfigurationWriteBehind(collection, cache,
+                options.configurationFlushInterval(), options.configurationFlushThreshold()) : null;
+        this.eligibilityIndex = options.eligibilityIndex() ? new EligibilityIndex(configurations, writeBehind,
+                options.eligibilityIndexRebuildInterval()) : null;
 
         migrationHandler = update -> {
             if (!update.hasMessage()) return false;
             Message message = update.getMessage();
             if (message.getMigrateFromChatId() == null || message.getMigrateToChatId() == null) return false;
 
-            long fromChatId = message.getMigrateFromChatId();
-            long toChatId = message.getMigrateToChatId();
-
-            Document document = collection.findOneAndDelete(eq("_id", fromChatId));
-            if (document != null) {
-                document.put("_id", toChatId);
-                collection.insertOne(document);
-            }
-
+            migrateConfiguration(message.getMigrateFromChatId(), message.getMigrateToChatId());
             return false; //The migration messages should not be consumed, so they get passed to all the bot's components.
         };
     }
 
+    /**
+     * Moves the configuration of a group into the supergroup which it was upgraded into.
+     *
+     * @param fromChatId The id of the group.
+     * @param toChatId   The id of the supergroup.
+     * @return {@code true} if the group had a configuration.
+     */
+    public boolean migrateConfiguration(long fromChatId, long toChatId) {
+        if (writeBehind != null) writeBehind.flush();
+        Document document = collection.findOneAndDelete(eq("_id", fromChatId));
+        if (document == null) return false;
+
+        document.put("_id", toChatId);
+        collection.insertOne(document);
+        cache.invalidate(List.of(fromChatId, toChatId));
+        if (eligibilityIndex != null) eligibilityIndex.move(fromChatId, toChatId);
+        return true;
+    }
+
+    /**
+     * Disables the announcements of multiple chats, in a single batched write.
+     *
+     * @param chatIds The ids of the chats.
+     * @return The number of chats which got disabled.
+     */
+    public long disableConfigurations(Collection<Long> chatIds) {
+        if (writeBehind != null) writeBehind.flush();
+        List<UpdateOneModel<Document>> updates = new ArrayList<>(chatIds.size());
+        for (long chatId : chatIds) updates.add(new UpdateOneModel<>(eq("_id", chatId), set("enabled", false)));
+
+        long modified = collection.bulkWrite(updates, new BulkWriteOptions().ordered(false)).getModifiedCount();
+        cache.invalidate(chatIds);
+        if (eligibilityIndex != null) for (long chatId : chatIds) eligibilityIndex.update(chatId, config -> config.enabled = false);
+        return modified;
+    }
+
     /**
      * Checks whether the configuration for a chat exists or not.
      *
@@ -50,7 +108,7 @@ public class ConfigurationDB {
      * @return {@code true} if it exists.
      */
     public boolean exists(long chatId) {
-        return collection.find(eq("_id", chatId)).first() != null;
+        return getConfiguration(chatId) != null;
     }
 
     /**
@@ -60,12 +118,26 @@ public class ConfigurationDB {
      * @return {@code true} on success.
      */
     public boolean newConfiguration(long chatId) {
-        return collection.insertOne(new Document("_id", chatId)
+        //The changes queued while the chat had no configuration must not apply to the new one.
+        if (writeBehind != null) writeBehind.discard(chatId);
+        boolean acknowledged = collection.insertOne(new Document("_id", chatId)
                 .append("enabled", ChatConfiguration.defaultConfig.enabled)
                 .append("currency", ChatConfiguration.defaultConfig.currency.name())
                 .append("untilFormat", ChatConfiguration.defaultConfig.untilFormat.name())
                 .append("trash", ChatConfiguration.defaultConfig.trash)
                 .append("minPrice", ChatConfiguration.defaultConfig.minPrice)).wasAcknowledged();
+        cache.invalidate(chatId);
+        if (eligibilityIndex != null) {
+            ChatConfiguration config = new ChatConfiguration();
+            config._id = chatId;
+            config.enabled = ChatConfiguration.defaultConfig.enabled;
+            config.currency = ChatConfiguration.defaultConfig.currency;
+            config.untilFormat = ChatConfiguration.defaultConfig.untilFormat;
+            config.trash = ChatConfiguration.defaultConfig.trash;
+            config.minPrice = ChatConfiguration.defaultConfig.minPrice;
+            eligibilityIndex.put(config);
+        }
+        return acknowledged;
     }
 
     /**
@@ -75,20 +147,51 @@ public class ConfigurationDB {
      * @return {@code true} on success.
      */
     public boolean deleteConfiguration(long chatId) {
-        return collection.deleteOne(eq("_id", chatId)).getDeletedCount() == 1;
+        if (writeBehind != null) writeBehind.discard(chatId);
+        boolean deleted = collection.deleteOne(eq("_id", chatId)).getDeletedCount() == 1;
+        cache.invalidate(chatId);
+        if (eligibilityIndex != null) eligibilityIndex.remove(chatId);
+        return deleted;
     }
 
     /**
-     * Gets the current configuration of a chat.
+     * Gets the current configuration of a chat, from the cache when possible.
      *
      * @param chatId The chat id.
-     * @return The configuration of the chat, {@code null} when not found.
+     * @return The configuration of the chat, {@code null} when not found. It's a copy, owned by the caller.
      */
     public ChatConfiguration getConfiguration(long chatId) {
-        Document document = collection.find(eq("_id", chatId)).first();
-        if (document == null) return null;
+        return cache.get(chatId, id -> {
+            ChatConfiguration config = Metrics.mongoQueryLatency.labels("getConfiguration")
+                    .time(() -> configurations.find(eq("_id", id)).first());
+            if (config != null && writeBehind != null) writeBehind.overlay(config);
+            return config;
+        });
+    }
 
-        return gson.fromJson(document.toJson(), ChatConfiguration.class);
+    /**
+     * Gets the current configurations of multiple chats, the ones which are not cached are read using a single query.
+     * <p>
+     * The configurations read here are not added to the cache, as the announcements go through all the chats once,
+     * which would only evict the configurations of the chats which are actually interacting with the bot.
+     *
+     * @param chatIds The chats ids.
+     * @return The configurations of the found chats mapped by their ids, missing chats are not included.
+     * They are copies, owned by the caller.
+     */
+    public Map<Long, ChatConfiguration> getConfigurations(Collection<Long> chatIds) {
+        Map<Long, ChatConfiguration> configurations = new HashMap<>();
+        List<Long> uncached = cache.getCached(chatIds, configurations);
+        if (uncached.isEmpty()) return configurations;
+
+        Histogram.Timer timer = Metrics.mongoQueryLatency.labels("getConfigurations").startTimer();
+        this.configurations.find(in("_id", uncached)).forEach(config -> {
+            if (writeBehind != null) writeBehind.overlay(config);
+            configurations.put(config._id, config);
+        });
+        timer.observeDuration();
+
+        return configurations;
     }
 
     public ChatConfiguration getConfigurationWithDefaultFallback(long chatId) {
@@ -97,28 +200,62 @@ public class ConfigurationDB {
     }
 
     public boolean setAnnouncements(long chatId, boolean enabled) {
-        return collection.updateOne(eq("_id", chatId), set("enabled", enabled)).getMatchedCount() == 1;
+        return update(chatId, "enabled", enabled);
     }
 
     public boolean setCurrency(long chatId, Currency currency) {
-        return collection.updateOne(eq("_id", chatId), set("currency", currency.name())).getMatchedCount() == 1;
+        return update(chatId, "currency", currency.name());
     }
 
     public boolean setUntilFormat(long chatId, UntilFormat untilFormat) {
-        return collection.updateOne(eq("_id", chatId), set("untilFormat", untilFormat.name())).getMatchedCount() == 1;
+        return update(chatId, "untilFormat", untilFormat.name());
     }
 
     public boolean setTrash(long chatId, boolean trash) {
-        return collection.updateOne(eq("_id", chatId), set("trash", trash)).getMatchedCount() == 1;
+        return update(chatId, "trash", trash);
     }
 
     public boolean setMinPrice(long chatId, double minPrice) {
-        return collection.updateOne(eq("_id", chatId), set("minPrice", minPrice)).getMatchedCount() == 1;
+        return update(chatId, "minPrice", minPrice);
     }
 
     public boolean isAnnouncementsEnabled(long chatId) {
-        Document document = collection.find(eq("_id", chatId)).first();
-        if (document == null) return false;
-        return document.getBoolean("enabled");
+        ChatConfiguration config = getConfiguration(chatId);
+        return config != null && config.enabled;
+    }
+
+    /**
+     * Changes a field of a chat's configuration, through the write-behind when it's enabled,
+     * otherwise directly in the database, invalidating the cached configuration.
+     * <p>
+     * The write-behind doesn't read the configuration first, so the updates handlers never wait for MongoDB.
+     *
+     * @param chatId The chat id.
+     * @param field  The name of the field.
+     * @param value  The new value of the field, in its stored format.
+     * @return {@code true} if the chat has a configuration, or through the write-behind, if it's not known to have none.
+     */
+    protected boolean update(long chatId, String field, Object value) {
+        boolean matched;
+        if (writeBehind != null) {
+            //A change of a chat which has no configuration matches nothing once it's written.
+            matched = !cache.isCachedMissing(chatId);
+            if (matched) writeBehind.set(chatId, field, value);
+        } else {
+            matched = collection.updateOne(eq("_id", chatId), set(field, value)).getMatchedCount() == 1;
+            cache.invalidate(chatId);
+        }
+
+        if (matched && eligibilityIndex != null)
+            eligibilityIndex.update(chatId, config -> ConfigurationWriteBehind.apply(config, new Document(field, value)));
+        return matched;
+    }
+
+    /**
+     * Writes the delayed settings changes if any, and stops the periodic rebuilds of the eligibility index.
+     */
+    public void close() {
+        if (writeBehind != null) writeBehind.close();
+        if (eligibilityIndex != null) eligibilityIndex.close();
     }
 }
@@ -0,0 +1,215 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components;
+
+import com.github.tudeteam.telegram.thefreestuffbot.structures.ChatConfiguration;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.Currency;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.UntilFormat;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import io.prometheus.client.Histogram;
+import org.bson.Document;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.mongodb.client.model.Filters.eq;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Delays and coalesces the changes of the chats configurations made through the settings menu,
+ * so the updates handlers don't wait for MongoDB, and bursts of clicks on the same chat end up as a single update.
+ * <p>
+ * The changed fields of each chat are merged into a pending {@code $set}, and all the pending changes are written
+ * using a single bulk write: periodically, once the number of changed chats reaches a threshold, and when closing.
+ * <p>
+ * Until they are written, the changes are applied over the configurations read from the database,
+ * so the cache never loads a configuration without them.
+ */
+public class ConfigurationWriteBehind {
+
+    /* Instance Fields */
+
+    protected final MongoCollection<Document> collection;
+    protected final ConfigurationCache cache;
+    protected final int flushThreshold;
+
+    protected final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ConfigurationWriteBehind-Flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Whether a flush is already queued because of the threshold, so it's not queued again for each change.
+     */
+    protected final AtomicBoolean flushQueued = new AtomicBoolean(false);
+
+    /**
+     * The pending changed fields, mapped by the chats ids.
+     */
+    protected Map<Long, Document> pending = new HashMap<>();
+
+    /**
+     * The changes which are being written by the current flush.
+     */
+    protected Map<Long, Document> flushing = Map.of();
+
+    /* Constructor */
+
+    /**
+     * Creates a new write-behind, and starts its periodic flushes.
+     *
+     * @param collection     The chats configurations collection.
+     * @param cache          The cache of the configurations.
+     * @param flushInterval  The interval of the periodic flushes in milliseconds.
+     * @param flushThreshold The number of changed chats which triggers a flush before the interval.
+     */
+    public ConfigurationWriteBehind(MongoCollection<Document> collection, ConfigurationCache cache,
+                                    long flushInterval, int flushThreshold) {
+        this.collection = collection;
+        this.cache = cache;
+        this.flushThreshold = flushThreshold;
+
+        executor.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, MILLISECONDS);
+    }
+
+    /* Static Methods */
+
+    /**
+     * Applies changed fields to a configuration.
+     *
+     * @param config  The configuration to change.
+     * @param changes The changed fields, in their stored format.
+     */
+    protected static void apply(ChatConfiguration config, Document changes) {
+        for (Map.Entry<String, Object> change : changes.entrySet()) {
+            Object value = change.getValue();
+            switch (change.getKey()) {
+                case "enabled":
+                    config.enabled = (Boolean) value;
+                    break;
+                case "currency":
+                    config.currency = Currency.valueOf((String) value);
+                    break;
+                case "untilFormat":
+                    config.untilFormat = UntilFormat.valueOf((String) value);
+                    break;
+                case "trash":
+                    config.trash = (Boolean) value;
+                    break;
+                case "minPrice":
+                    config.minPrice = ((Number) value).doubleValue();
+                    break;
+            }
+        }
+    }
+
+    /* Instance Methods */
+
+    /**
+     * Changes a field of a chat's configuration, the chat is expected to have a configuration.
+     *
+     * @param chatId The id of the chat.
+     * @param field  The name of the field.
+     * @param value  The new value of the field, in its stored format.
+     */
+    public void set(long chatId, String field, Object value) {
+        Document changes = new Document(field, value);
+        int pendingChats;
+
+        synchronized (this) {
+            pending.computeIfAbsent(chatId, ignored -> new Document()).put(field, value);
+            pendingChats = pending.size();
+        }
+
+        cache.update(chatId, config -> apply(config, changes));
+
+        if (pendingChats >= flushThreshold && flushQueued.compareAndSet(false, true))
+            executor.execute(() -> {
+                flushQueued.set(false);
+                flushQuietly();
+            });
+    }
+
+    /**
+     * Applies the changes which are not written yet to a configuration which was just read from the database.
+     *
+     * @param config The configuration, it's modified directly.
+     */
+    public synchronized void overlay(ChatConfiguration config) {
+        Document changes = flushing.get(config._id);
+        if (changes != null) apply(config, changes);
+
+        changes = pending.get(config._id);
+        if (changes != null) apply(config, changes);
+    }
+
+    /**
+     * Drops the pending changes of a chat, when its configuration is deleted.
+     *
+     * @param chatId The id of the chat.
+     */
+    public synchronized void discard(long chatId) {
+        pending.remove(chatId);
+    }
+
+    /**
+     * Writes all the pending changes into the database, using a single bulk write.
+     * The changes which failed to be written are kept pending, unless they were changed again meanwhile.
+     */
+    public void flush() {
+        //Only a single flush at a time, so the writes of the same chat are not reordered.
+        synchronized (executor) {
+            Map<Long, Document> changes;
+            synchronized (this) {
+                if (pending.isEmpty()) return;
+                changes = pending;
+                flushing = changes;
+                pending = new HashMap<>();
+            }
+
+            List<UpdateOneModel<Document>> updates = new ArrayList<>(changes.size());
+            changes.forEach((chatId, fields) -> updates.add(new UpdateOneModel<>(eq("_id", chatId), new Document("$set", fields))));
+
+            Histogram.Timer timer = Metrics.mongoQueryLatency.labels("flushConfigurations").startTimer();
+            try {
+                collection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    //Keep the changes for the next flush, under the ones made meanwhile.
+                    changes.forEach((chatId, fields) -> {
+                        Document newer = pending.get(chatId);
+                        if (newer != null) fields.putAll(newer);
+                        pending.put(chatId, fields);
+                    });
+                }
+                throw e;
+            } finally {
+                timer.observeDuration();
+                synchronized (this) {
+                    flushing = Map.of();
+                }
+                //The loads which read the database before the write must not cache what they read.
+                cache.invalidateLoads();
+            }
+        }
+    }
+
+    protected void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops the periodic flushes, and writes the remaining changes.
+     */
+    public void close() {
+        executor.shutdown();
+        flushQuietly();
+    }
+}
@@ -0,0 +1,403 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components;
+
+import com.github.tudeteam.telegram.thefreestuffbot.structures.ChatConfiguration;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.Currency;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.GameInfo;
+import com.mongodb.client.MongoCollection;
+import io.prometheus.client.Histogram;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
+
+import static com.github.tudeteam.telegram.thefreestuffbot.structures.GameFlag.TRASH;
+import static com.mongodb.client.model.Projections.include;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+/**
+ * An in-memory index of the chats configurations attributes which decide whether a chat receives a game,
+ * so the audience of a game is computed without querying the database.
+ * <p>
+ * Each chat gets a dense slot number on this node. The boolean attributes are kept as bitsets indexed by the slots,
+ * and the minimum prices as a column sorted by the price for each currency,
+ * so the chats accepting a price are a prefix of the column.
+ * The column is sorted by the rank of each price among the distinct prices, which keeps the comparisons exact.
+ * <p>
+ * It's loaded from the database at startup, kept up to date by the writes of {@link ConfigurationDB},
+ * and rebuilt periodically to pick up the changes made by the other instances of the bot.
+ */
+public class EligibilityIndex {
+
+    /* Instance Fields */
+
+    protected final MongoCollection<ChatConfiguration> configurations;
+    /**
+     * The settings changes which are not written yet, {@code null} when they are written directly.
+     */
+    protected final ConfigurationWriteBehind writeBehind;
+
+    protected final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "EligibilityIndex-Rebuilder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    protected Columns columns;
+
+    /**
+     * The changes made while the index is being rebuilt, replayed over the rebuilt one, {@code null} when not rebuilding.
+     */
+    protected List<Consumer<Columns>> replay = null;
+
+    /* Constructor */
+
+    /**
+     * Loads the index from the database, and schedules its periodic rebuilds.
+     *
+     * @param configurations  The chats configurations collection.
+     * @param writeBehind     The settings changes which are not written yet, {@code null} if they are written directly.
+     * @param rebuildInterval The interval of the rebuilds in minutes.
+     */
+    public EligibilityIndex(MongoCollection<ChatConfiguration> configurations, ConfigurationWriteBehind writeBehind,
+                            long rebuildInterval) {
+        this.configurations = configurations;
+        this.writeBehind = writeBehind;
+
+        columns = load();
+        executor.scheduleWithFixedDelay(this::rebuild, rebuildInterval, rebuildInterval, MINUTES);
+    }
+
+    /* Static Methods */
+
+    /**
+     * Normalizes the negative zero into zero, as they are ordered apart by the sorting of doubles,
+     * while they are equal prices.
+     *
+     * @param price The price.
+     * @return The price to sort and search by.
+     */
+    protected static double sortablePrice(double price) {
+        return price == 0 ? 0.0 : price;
+    }
+
+    /* Instance Methods */
+
+    protected Columns load() {
+        Columns loaded = new Columns();
+
+        Histogram.Timer timer = Metrics.mongoQueryLatency.labels("loadEligibilityIndex").startTimer();
+        configurations.find().projection(include("enabled", "currency", "trash", "minPrice"))
+                .batchSize(10_000).forEach(config -> {
+            if (writeBehind != null) writeBehind.overlay(config);
+            loaded.put(config);
+        });
+        timer.observeDuration();
+
+        return loaded;
+    }
+
+    protected void rebuild() {
+        synchronized (this) {
+            replay = new ArrayList<>();
+        }
+
+        try {
+            Columns rebuilt = load();
+            synchronized (this) {
+                for (Consumer<Columns> change : replay) change.accept(rebuilt);
+                columns = rebuilt;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            synchronized (this) {
+                replay = null;
+            }
+        }
+    }
+
+    protected synchronized void change(Consumer<Columns> change) {
+        change.accept(columns);
+        if (replay != null) replay.add(change);
+    }
+
+    /**
+     * Adds or replaces the configuration of a chat.
+     *
+     * @param config The configuration, it's not kept.
+     */
+    public void put(ChatConfiguration config) {
+        ChatConfiguration copy = copyOf(config);
+        change(columns -> columns.put(copy));
+    }
+
+    /**
+     * Removes the configuration of a chat.
+     *
+     * @param chatId The id of the chat.
+     */
+    public void remove(long chatId) {
+        change(columns -> columns.remove(chatId));
+    }
+
+    /**
+     * Changes the configuration of a chat, nothing is done if it has none.
+     *
+     * @param chatId The id of the chat.
+     * @param update Applies the change to the configuration.
+     */
+    public void update(long chatId, Consumer<ChatConfiguration> update) {
+        change(columns -> {
+            ChatConfiguration config = columns.get(chatId);
+            if (config == null) return;
+            update.accept(config);
+            columns.put(config);
+        });
+    }
+
+    /**
+     * Moves the configuration of a group into the supergroup which it was upgraded into.
+     *
+     * @param fromChatId The id of the group.
+     * @param toChatId   The id of the supergroup.
+     */
+    public void move(long fromChatId, long toChatId) {
+        change(columns -> {
+            ChatConfiguration config = columns.get(fromChatId);
+            if (config == null) return;
+            columns.remove(fromChatId);
+            config._id = toChatId;
+            columns.put(config);
+        });
+    }
+
+    /**
+     * Gets the chats which are eligible to receive at least one of multiple games.
+     *
+     * @param games The information of the games.
+     * @return The ids of the eligible chats.
+     */
+    public synchronized long[] eligibleChats(Collection<GameInfo> games) {
+        BitSet eligible = new BitSet();
+        for (GameInfo game : games) eligible.or(columns.eligible(game));
+
+        long[] chatIds = new long[eligible.cardinality()];
+        int i = 0;
+        for (int slot = eligible.nextSetBit(0); slot >= 0; slot = eligible.nextSetBit(slot + 1))
+            chatIds[i++] = columns.chatIds[slot];
+
+        return chatIds;
+    }
+
+    /**
+     * Counts the chats which are eligible to receive a game.
+     *
+     * @param game The information of the game.
+     * @return The number of eligible chats.
+     */
+    public synchronized int countEligible(GameInfo game) {
+        return columns.eligible(game).cardinality();
+    }
+
+    /**
+     * Gets the number of chats which have a configuration.
+     *
+     * @return The number of chats.
+     */
+    public synchronized int size() {
+        return columns.present.cardinality();
+    }
+
+    /**
+     * Stops the periodic rebuilds.
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    protected ChatConfiguration copyOf(ChatConfiguration config) {
+        ChatConfiguration copy = new ChatConfiguration();
+        copy._id = config._id;
+        copy.enabled = config.enabled;
+        copy.currency = config.currency;
+        copy.untilFormat = config.untilFormat;
+        copy.trash = config.trash;
+        copy.minPrice = config.minPrice;
+        return copy;
+    }
+
+    /**
+     * The indexed attributes of the chats, by their slots.
+     */
+    protected static class Columns {
+
+        /**
+         * The slots of the chats, mapped by their ids. The slots are kept when the chats are removed, in case they come back.
+         */
+        protected final Map<Long, Integer> slots = new HashMap<>();
+        protected long[] chatIds = new long[1024];
+
+        protected final BitSet present = new BitSet();
+        protected final BitSet enabled = new BitSet();
+        protected final BitSet trash = new BitSet();
+        /**
+         * The chats which use USD, the rest use EUR.
+         */
+        protected final BitSet usd = new BitSet();
+        protected double[] minPrices = new double[1024];
+
+        /**
+         * The distinct minimum prices of the chats of each currency, sorted.
+         */
+        protected double[] usdPrices = new double[0];
+        protected double[] eurPrices = new double[0];
+        /**
+         * The chats of each currency sorted by their minimum prices: the price's rank in the distinct prices
+         * in the high 32 bits, the slot in the low ones. The prices are compared exactly, without rounding them into the keys.
+         */
+        protected long[] sortedUsd = new long[0];
+        protected long[] sortedEur = new long[0];
+        /**
+         * Whether the minimum prices or the currencies have changed since the columns were sorted,
+         * they are sorted again on the next query.
+         */
+        protected boolean sortedStale = false;
+
+        protected void put(ChatConfiguration config) {
+            Integer existing = slots.get(config._id);
+            int slot = existing != null ? existing : slots.size();
+
+            if (existing == null) {
+                slots.put(config._id, slot);
+                if (slot == chatIds.length) {
+                    chatIds = Arrays.copyOf(chatIds, slot * 2);
+                    minPrices = Arrays.copyOf(minPrices, slot * 2);
+                }
+                chatIds[slot] = config._id;
+            }
+
+            boolean isUsd = config.currency == Currency.USD;
+            if (!present.get(slot) || usd.get(slot) != isUsd || minPrices[slot] != config.minPrice) sortedStale = true;
+
+            present.set(slot);
+            enabled.set(slot, config.enabled);
+            trash.set(slot, config.trash);
+            usd.set(slot, isUsd);
+            minPrices[slot] = config.minPrice;
+        }
+
+        protected void remove(long chatId) {
+            Integer slot = slots.get(chatId);
+            if (slot == null || !present.get(slot)) return;
+
+            present.clear(slot);
+            enabled.clear(slot);
+            trash.clear(slot);
+            usd.clear(slot);
+            sortedStale = true;
+        }
+
+        /**
+         * Gets the indexed attributes of a chat.
+         *
+         * @param chatId The id of the chat.
+         * @return A new configuration with the indexed attributes, {@code null} if the chat has none.
+         */
+        protected ChatConfiguration get(long chatId) {
+            Integer slot = slots.get(chatId);
+            if (slot == null || !present.get(slot)) return null;
+
+            ChatConfiguration config = new ChatConfiguration();
+            config._id = chatId;
+            config.enabled = enabled.get(slot);
+            config.trash = trash.get(slot);
+            config.currency = usd.get(slot) ? Currency.USD : Currency.EUR;
+            config.minPrice = minPrices[slot];
+            return config;
+        }
+
+        protected void sort() {
+            int usdCount = usd.cardinality();
+            usdPrices = distinctPrices(true, usdCount);
+            eurPrices = distinctPrices(false, present.cardinality() - usdCount);
+            sortedUsd = new long[usdCount];
+            sortedEur = new long[present.cardinality() - usdCount];
+
+            int usdIndex = 0, eurIndex = 0;
+            for (int slot = present.nextSetBit(0); slot >= 0; slot = present.nextSetBit(slot + 1)) {
+                double price = sortablePrice(minPrices[slot]);
+                if (usd.get(slot)) sortedUsd[usdIndex++] = ((long) Arrays.binarySearch(usdPrices, price) << 32) | slot;
+                else sortedEur[eurIndex++] = ((long) Arrays.binarySearch(eurPrices, price) << 32) | slot;
+            }
+
+            Arrays.sort(sortedUsd);
+            Arrays.sort(sortedEur);
+            sortedStale = false;
+        }
+
+        /**
+         * Gets the distinct minimum prices of the chats of a currency.
+         *
+         * @param ofUsd Whether to get the prices of the chats which use USD, or the ones which use EUR.
+         * @param count The number of the chats which use the currency.
+         * @return The distinct prices, sorted.
+         */
+        protected double[] distinctPrices(boolean ofUsd, int count) {
+            double[] prices = new double[count];
+            int index = 0;
+            for (int slot = present.nextSetBit(0); slot >= 0; slot = present.nextSetBit(slot + 1))
+                if (usd.get(slot) == ofUsd) prices[index++] = sortablePrice(minPrices[slot]);
+            Arrays.sort(prices);
+
+            int distinct = 0;
+            for (double price : prices)
+                if (distinct == 0 || Double.compare(price, prices[distinct - 1]) != 0) prices[distinct++] = price;
+            return Arrays.copyOf(prices, distinct);
+        }
+
+        /**
+         * Gets the chats which are eligible to receive a game,
+         * applying the same rules as {@code Announcement.shouldSkipAnnouncement}.
+         *
+         * @param game The information of the game.
+         * @return The slots of the eligible chats.
+         */
+        protected BitSet eligible(GameInfo game) {
+            if (sortedStale) sort();
+
+            //The game's price is not lower than the minimum price set for the chat, in the chat's currency.
+            BitSet eligible = new BitSet(chatIds.length);
+            acceptingPrice(sortedUsd, usdPrices, game.org_price.inCurrency(Currency.USD), eligible);
+            acceptingPrice(sortedEur, eurPrices, game.org_price.inCurrency(Currency.EUR), eligible);
+
+            //The chat has the announcements enabled.
+            eligible.and(enabled);
+            //The chat accepts trash games, if it's a trash game.
+            if (game.hasFlag(TRASH)) eligible.and(trash);
+
+            return eligible;
+        }
+
+        /**
+         * Sets the slots of the chats which their minimum price is not higher than a price.
+         *
+         * @param sorted   The sorted column of a currency.
+         * @param prices   The distinct prices of the column, which its ranks refer to.
+         * @param price    The price in the column's currency.
+         * @param accepted The bitset to set the chats' slots in.
+         */
+        protected void acceptingPrice(long[] sorted, double[] prices, double price, BitSet accepted) {
+            //The number of the distinct prices which are not higher than the price.
+            int accepting = Arrays.binarySearch(prices, sortablePrice(price));
+            accepting = accepting >= 0 ? accepting + 1 : -accepting - 1;
+
+            //The first key of the first rejecting price.
+            long bound = (long) accepting << 32;
+            int end = Arrays.binarySearch(sorted, bound);
+            if (end < 0) end = -end - 1;
+
+            for (int i = 0; i < end; i++) accepted.set((int) sorted[i]);
+        }
+    }
+}
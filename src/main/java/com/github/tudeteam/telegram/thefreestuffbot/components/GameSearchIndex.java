@@ -0,0 +1,257 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components;
+
+import com.github.tudeteam.telegram.thefreestuffbot.structures.GameApprovalStatus;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.GameData;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+import static java.util.Locale.ROOT;
+
+/**
+ * An in-memory search index of the games which can be shared through the inline queries:
+ * the published and accepted games.
+ * <p>
+ * The games are matched by case insensitive substrings of their titles, the same as the previous regex search,
+ * using the postings of the titles' trigrams to find the candidates, then checking them.
+ * The results are ranked by the match quality (the whole title, a prefix, a word's start, anywhere),
+ * then by the publishing time.
+ */
+public class GameSearchIndex {
+
+    /* Instance Fields */
+
+    /**
+     * The indexed games, mapped by their ids.
+     */
+    protected final Map<Integer, Entry> games = new HashMap<>();
+
+    /**
+     * The ids of the games which their titles contain each trigram, mapped by the packed trigrams.
+     */
+    protected final Map<Long, Postings> postings = new HashMap<>();
+
+    /* Static Methods */
+
+    /**
+     * Checks whether a game can be shared through the inline queries.
+     *
+     * @param gameData The game.
+     * @return {@code true} if it's published or accepted.
+     */
+    public static boolean isSearchable(GameData gameData) {
+        return gameData.info != null && gameData.info.title != null &&
+                (gameData.status == GameApprovalStatus.PUBLISHED || gameData.status == GameApprovalStatus.ACCEPTED);
+    }
+
+    /**
+     * Gets the distinct trigrams of a string, packed into longs.
+     *
+     * @param text The lower case string.
+     * @return The packed trigrams.
+     */
+    protected static Set<Long> trigramsOf(String text) {
+        Set<Long> trigrams = new HashSet<>();
+        for (int i = 0; i + 3 <= text.length(); i++)
+            trigrams.add(((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2));
+        return trigrams;
+    }
+
+    /* Instance Methods */
+
+    /**
+     * Adds or replaces a game, or removes it if it's not searchable anymore.
+     *
+     * @param gameData The game.
+     */
+    public synchronized void put(GameData gameData) {
+        remove(gameData._id);
+        if (!isSearchable(gameData)) return;
+
+        Entry entry = new Entry(gameData);
+        games.put(gameData._id, entry);
+        for (long trigram : trigramsOf(entry.title))
+            postings.computeIfAbsent(trigram, ignored -> new Postings()).add(gameData._id);
+    }
+
+    /**
+     * Removes a game.
+     *
+     * @param gameId The id of the game.
+     */
+    public synchronized void remove(int gameId) {
+        Entry entry = games.remove(gameId);
+        if (entry == null) return;
+
+        for (long trigram : trigramsOf(entry.title)) {
+            Postings gamesIds = postings.get(trigram);
+            gamesIds.remove(gameId);
+            if (gamesIds.size == 0) postings.remove(trigram);
+        }
+    }
+
+    /**
+     * Replaces all the indexed games.
+     *
+     * @param gamesData The games, the non-searchable ones are skipped.
+     */
+    public synchronized void replaceAll(Collection<GameData> gamesData) {
+        games.clear();
+        postings.clear();
+        for (GameData gameData : gamesData) put(gameData);
+    }
+
+    /**
+     * Removes the games which their offers have expired.
+     *
+     * @param currentTime The current UNIX timestamp in seconds.
+     */
+    public synchronized void removeExpired(int currentTime) {
+        List<Integer> expired = new ArrayList<>();
+        for (Entry entry : games.values()) if (entry.gameData.info.until < currentTime) expired.add(entry.gameData._id);
+        for (int gameId : expired) remove(gameId);
+    }
+
+    /**
+     * Gets a game by its id, including the ones which have expired.
+     *
+     * @param gameId The id of the game.
+     * @return The game, {@code null} if it's not indexed. It's shared, so it must not be modified.
+     */
+    public synchronized GameData get(int gameId) {
+        Entry entry = games.get(gameId);
+        return entry == null ? null : entry.gameData;
+    }
+
+    /**
+     * Searches the games which have not expired yet by their titles.
+     *
+     * @param query       The text to search for, an empty text matches all the games.
+     * @param currentTime The current UNIX timestamp in seconds.
+     * @param filter      Filters the matched games.
+     * @param limit       The maximum number of results.
+     * @return The best matching games, from the best. They are shared, so they must not be modified.
+     */
+    public List<GameData> search(String query, int currentTime, Predicate<GameData> filter, int limit) {
+        String needle = query.toLowerCase(ROOT);
+        List<Match> matches = new ArrayList<>();
+
+        synchronized (this) {
+            for (Entry entry : candidates(needle)) {
+                if (entry.gameData.info.until < currentTime) continue;
+
+                int position = entry.title.indexOf(needle);
+                if (position < 0 || !filter.test(entry.gameData)) continue;
+
+                int rank;
+                if (entry.title.length() == needle.length()) rank = 0; //The whole title.
+                else if (position == 0) rank = 1; //A prefix of the title.
+                else if (!Character.isLetterOrDigit(entry.title.charAt(position - 1))) rank = 2; //The start of a word.
+                else rank = 3; //Anywhere.
+
+                matches.add(new Match(entry.gameData, rank));
+            }
+        }
+
+        matches.sort(Comparator.<Match>comparingInt(match -> match.rank)
+                .thenComparing(match -> match.gameData.published, Comparator.reverseOrder()));
+
+        List<GameData> results = new ArrayList<>(Math.min(limit, matches.size()));
+        for (int i = 0; i < matches.size() && i < limit; i++) results.add(matches.get(i).gameData);
+        return results;
+    }
+
+    /**
+     * Gets the games which may contain a text, all the games if it's shorter than a trigram.
+     *
+     * @param needle The lower case text.
+     * @return The candidate games.
+     */
+    protected Collection<Entry> candidates(String needle) {
+        if (needle.length() < 3) return games.values();
+
+        //Intersect the postings of the text's trigrams, starting from the shortest.
+        List<Postings> lists = new ArrayList<>();
+        for (long trigram : trigramsOf(needle)) {
+            Postings gamesIds = postings.get(trigram);
+            if (gamesIds == null) return List.of();
+            lists.add(gamesIds);
+        }
+        lists.sort(Comparator.comparingInt(gamesIds -> gamesIds.size));
+
+        List<Entry> candidates = new ArrayList<>();
+        Postings shortest = lists.get(0);
+        candidate:
+        for (int i = 0; i < shortest.size; i++) {
+            int gameId = shortest.ids[i];
+            for (int j = 1; j < lists.size(); j++)
+                if (!lists.get(j).contains(gameId)) continue candidate;
+            candidates.add(games.get(gameId));
+        }
+
+        return candidates;
+    }
+
+    /**
+     * The number of indexed games.
+     *
+     * @return The number of games.
+     */
+    public synchronized int size() {
+        return games.size();
+    }
+
+    protected static class Entry {
+        protected final GameData gameData;
+        /**
+         * The lower case title of the game.
+         */
+        protected final String title;
+
+        protected Entry(GameData gameData) {
+            this.gameData = gameData;
+            this.title = gameData.info.title.toLowerCase(ROOT);
+        }
+    }
+
+    protected static class Match {
+        protected final GameData gameData;
+        protected final int rank;
+
+        protected Match(GameData gameData, int rank) {
+            this.gameData = gameData;
+            this.rank = rank;
+        }
+    }
+
+    /**
+     * A sorted set of games ids.
+     */
+    protected static class Postings {
+        protected int[] ids = new int[4];
+        protected int size = 0;
+
+        protected boolean contains(int id) {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+
+        protected void add(int id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            if (index >= 0) return;
+            index = -index - 1;
+
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            System.arraycopy(ids, index, ids, index + 1, size - index);
+            ids[index] = id;
+            size++;
+        }
+
+        protected void remove(int id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            if (index < 0) return;
+
+            System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+            size--;
+        }
+    }
+}
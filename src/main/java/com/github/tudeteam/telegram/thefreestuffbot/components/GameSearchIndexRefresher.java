@@ -0,0 +1,135 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components;
+
+import com.github.tudeteam.telegram.thefreestuffbot.structures.GameData;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import io.prometheus.client.Histogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
+
+import static com.mongodb.client.model.Filters.*;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+/**
+ * Keeps a {@link GameSearchIndex} in sync with the games collection.
+ * <p>
+ * The index is loaded at startup, then each changed game is updated as soon as it's changed,
+ * through the shared {@link GamesWatcher}. The expired games are removed every minute,
+ * and the index is reloaded periodically as a fallback, for when the change stream is not available
+ * (it requires a replica set), or when an event is missed.
+ */
+public class GameSearchIndexRefresher {
+
+    /* Instance Fields */
+
+    protected final GameSearchIndex index;
+    protected final MongoCollection<GameData> gamesCollection;
+    protected final GamesWatcher gamesWatcher;
+
+    protected final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "GameSearchIndex-Reloader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    protected final Consumer<ChangeStreamDocument<GameData>> listener = this::apply;
+
+    /**
+     * The changes made while the index is being reloaded, replayed over the reloaded games, {@code null} when not reloading.
+     */
+    protected List<Consumer<GameSearchIndex>> replay = null;
+
+    /* Constructor */
+
+    /**
+     * Loads the index from the database, and starts following the changes of the games and the periodic reloads.
+     *
+     * @param index           The index to keep in sync.
+     * @param gamesCollection The games collection.
+     * @param gamesWatcher    The watcher of the games collection.
+     * @param reloadInterval  The interval of the fallback reloads in minutes.
+     */
+    public GameSearchIndexRefresher(GameSearchIndex index, MongoCollection<GameData> gamesCollection,
+                                    GamesWatcher gamesWatcher, long reloadInterval) {
+        this.index = index;
+        this.gamesCollection = gamesCollection;
+        this.gamesWatcher = gamesWatcher;
+
+        reload();
+        executor.scheduleWithFixedDelay(this::reload, reloadInterval, reloadInterval, MINUTES);
+        executor.scheduleWithFixedDelay(this::removeExpired, 1, 1, MINUTES);
+
+        gamesWatcher.addListener(listener);
+    }
+
+    /* Instance Methods */
+
+    protected void reload() {
+        synchronized (this) {
+            replay = new ArrayList<>();
+        }
+
+        try {
+            int currentTime = (int) (System.currentTimeMillis() / 1000L);
+            List<GameData> games = new ArrayList<>();
+
+            Histogram.Timer timer = Metrics.mongoQueryLatency.labels("loadGameSearchIndex").startTimer();
+            gamesCollection.find(and(
+                    or(eq("status", "published"), eq("status", "accepted")),
+                    gte("info.until", currentTime)
+            )).into(games);
+            timer.observeDuration();
+
+            synchronized (this) {
+                index.replaceAll(games);
+                for (Consumer<GameSearchIndex> change : replay) change.accept(index);
+            }
+            Metrics.gameSearchIndexSize.set(index.size());
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            synchronized (this) {
+                replay = null;
+            }
+        }
+    }
+
+    protected void removeExpired() {
+        index.removeExpired((int) (System.currentTimeMillis() / 1000L));
+        Metrics.gameSearchIndexSize.set(index.size());
+    }
+
+    protected synchronized void change(Consumer<GameSearchIndex> change) {
+        change.accept(index);
+        if (replay != null) replay.add(change);
+    }
+
+    protected void apply(ChangeStreamDocument<GameData> change) {
+        GameData gameData = change.getFullDocument();
+        int gameId = change.getDocumentKey().get("_id").asNumber().intValue();
+        int currentTime = (int) (System.currentTimeMillis() / 1000L);
+
+        //The game was deleted, or it was deleted before its update was looked up.
+        if (change.getOperationType() == OperationType.DELETE || gameData == null)
+            change(index -> index.remove(gameId));
+        else if (gameData.info != null && gameData.info.until < currentTime)
+            change(index -> index.remove(gameId));
+        else
+            change(index -> index.put(gameData));
+
+        Metrics.gameSearchIndexSize.set(index.size());
+    }
+
+    /**
+     * Stops following the changes of the games and the periodic reloads.
+     */
+    public void close() {
+        gamesWatcher.removeListener(listener);
+        executor.shutdownNow();
+    }
+}
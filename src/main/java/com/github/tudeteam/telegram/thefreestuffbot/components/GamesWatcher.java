@@ -0,0 +1,159 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components;
+
+import com.github.tudeteam.telegram.thefreestuffbot.structures.GameData;
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.BsonDocument;
+import org.bson.conversions.Bson;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.changestream.FullDocument.UPDATE_LOOKUP;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Watches the games collection through a single MongoDB change stream, and passes each change to its listeners,
+ * so the components which follow the games don't open a change stream each.
+ * <p>
+ * A failed change stream is reopened after a delay, resuming after the last seen change.
+ * Change streams require a replica set, so against a standalone server the watcher gives up right away,
+ * and the listeners are left with their own fallbacks.
+ */
+public class GamesWatcher {
+
+    /* Static Fields */
+
+    /**
+     * The error code of MongoDB when change streams are not supported by the deployment.
+     */
+    protected static final int changeStreamsNotSupported = 40573;
+
+    /**
+     * The time to wait before reopening a failed change stream in seconds.
+     */
+    protected static final long retryDelay = 10;
+
+    /**
+     * The changes of the games which the listeners may be interested in.
+     */
+    protected static final List<Bson> pipeline = List.of(match(
+            in("operationType", List.of("insert", "update", "replace", "delete"))
+    ));
+
+    /* Instance Fields */
+
+    protected final MongoCollection<GameData> gamesCollection;
+    protected final List<Consumer<ChangeStreamDocument<GameData>>> listeners = new CopyOnWriteArrayList<>();
+
+    protected final Thread watcher = new Thread(this::watchLoop, "GamesWatcher-Watcher");
+    protected volatile MongoChangeStreamCursor<ChangeStreamDocument<GameData>> cursor;
+    protected volatile boolean closed = false;
+
+    /* Constructor */
+
+    /**
+     * Creates a new watcher, and starts watching the games collection.
+     *
+     * @param gamesCollection The games collection to watch.
+     */
+    public GamesWatcher(MongoCollection<GameData> gamesCollection) {
+        this.gamesCollection = gamesCollection;
+
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /* Instance Methods */
+
+    /**
+     * Adds a listener for the changes of the games, called on the watcher thread.
+     * The full document of an update is looked up, and it's {@code null} for deletes.
+     *
+     * @param listener The listener to add.
+     */
+    public void addListener(Consumer<ChangeStreamDocument<GameData>> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener for the changes of the games.
+     *
+     * @param listener The listener to remove.
+     */
+    public void removeListener(Consumer<ChangeStreamDocument<GameData>> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Checks whether the change stream is currently open.
+     *
+     * @return {@code true} when the changes are being watched.
+     */
+    public boolean isWatching() {
+        return cursor != null;
+    }
+
+    protected void notifyListeners(ChangeStreamDocument<GameData> change) {
+        for (Consumer<ChangeStreamDocument<GameData>> listener : listeners) {
+            //A failing listener shouldn't keep the change from the others.
+            try {
+                listener.accept(change);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    protected void watchLoop() {
+        BsonDocument resumeToken = null;
+
+        while (!closed) {
+            ChangeStreamIterable<GameData> changeStream = gamesCollection.watch(pipeline).fullDocument(UPDATE_LOOKUP);
+            if (resumeToken != null) changeStream = changeStream.resumeAfter(resumeToken);
+
+            try (MongoChangeStreamCursor<ChangeStreamDocument<GameData>> cursor = changeStream.cursor()) {
+                this.cursor = cursor;
+
+                while (!closed) {
+                    ChangeStreamDocument<GameData> change = cursor.next();
+                    resumeToken = change.getResumeToken();
+                    notifyListeners(change);
+                }
+            } catch (MongoCommandException e) {
+                if (e.getErrorCode() == changeStreamsNotSupported) {
+                    System.err.println("MongoDB change streams are not supported, falling back to polling the games.");
+                    return;
+                }
+                if (!closed) e.printStackTrace();
+            } catch (Exception e) {
+                if (!closed) e.printStackTrace();
+            } finally {
+                this.cursor = null;
+            }
+
+            //Wait before reopening the change stream.
+            try {
+                if (!closed) SECONDS.sleep(retryDelay);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops watching the games collection.
+     */
+    public void close() {
+        closed = true;
+        MongoChangeStreamCursor<ChangeStreamDocument<GameData>> cursor = this.cursor;
+        if (cursor != null) cursor.close();
+        watcher.interrupt();
+    }
+}
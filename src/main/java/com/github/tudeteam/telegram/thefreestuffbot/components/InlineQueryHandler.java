@@ -1,15 +1,15 @@
 package com.github.tudeteam.telegram.thefreestuffbot.components;
 
 import com.github.rami_sabbagh.telegram.alice_framework.pipes.Handler;
-import com.github.rami_sabbagh.telegram.alice_framework.utilities.SilentExecutor;
 import com.github.tudeteam.telegram.thefreestuffbot.TheFreeStuffBot;
+import com.github.tudeteam.telegram.thefreestuffbot.components.announcements.CheckDatabase;
 import com.github.tudeteam.telegram.thefreestuffbot.structures.ChatConfiguration;
 import com.github.tudeteam.telegram.thefreestuffbot.structures.GameData;
 import com.github.tudeteam.telegram.thefreestuffbot.structures.GameFlag;
 import com.github.tudeteam.telegram.thefreestuffbot.structures.UntilFormat;
-import com.google.gson.Gson;
 import com.mongodb.client.MongoCollection;
-import org.bson.Document;
+import io.lettuce.core.api.sync.RedisCommands;
+import io.prometheus.client.Histogram;
 import org.bson.conversions.Bson;
 import org.telegram.telegrambots.meta.api.methods.AnswerInlineQuery;
 import org.telegram.telegrambots.meta.api.objects.Update;
@@ -17,30 +17,57 @@ import org.telegram.telegrambots.meta.api.objects.User;
 import org.telegram.telegrambots.meta.api.objects.inlinequery.InlineQuery;
 import org.telegram.telegrambots.meta.api.objects.inlinequery.result.InlineQueryResult;
 import org.telegram.telegrambots.meta.api.objects.inlinequery.result.InlineQueryResultPhoto;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.result.cached.InlineQueryResultCachedPhoto;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
 
 import static com.mongodb.client.model.Filters.*;
 import static com.mongodb.client.model.Sorts.descending;
 
 public class InlineQueryHandler implements Handler<Update> {
 
-    protected static Gson gson = new Gson();
-
     protected final ConfigurationDB db;
-    protected final SilentExecutor silent;
-    protected final MongoCollection<Document> gamesCollection;
+    /**
+     * Sends the answers without blocking the updates thread, to the same Bot API server as the announcements.
+     */
+    protected final BotApiClient botApiClient;
+    protected final MongoCollection<GameData> gamesCollection;
+    protected final RedisCommands<String, String> redisCommands;
+    /**
+     * The in-memory index of the games, {@code null} when it's disabled and the database is queried instead.
+     */
+    protected final GameSearchIndex searchIndex;
+    protected final GameSearchIndexRefresher searchIndexRefresher;
 
     public InlineQueryHandler(TheFreeStuffBot bot) {
         db = bot.configurationDB;
-        silent = bot.silent;
-        gamesCollection = bot.gamesCollection;
+        botApiClient = bot.botApiClient;
+        gamesCollection = bot.gamesCollection.withDocumentClass(GameData.class);
+        redisCommands = bot.redisCommands;
+
+        if (bot.options.gameSearchIndex()) {
+            searchIndex = new GameSearchIndex();
+            searchIndexRefresher = new GameSearchIndexRefresher(searchIndex, gamesCollection, bot.gamesWatcher,
+                    bot.options.gameSearchIndexReloadInterval());
+        } else {
+            searchIndex = null;
+            searchIndexRefresher = null;
+        }
     }
 
-    private static String searchRegex(String input) {
+    /**
+     * Constructs the case insensitive regex which matches the games titles containing the query input literally.
+     *
+     * @param input The query input.
+     * @return The regex.
+     */
+    protected static String searchRegex(String input) {
         return "(?i)" + input.replaceAll("[-.\\+*?\\[^\\]$(){}=!<>|:\\\\]", "\\\\$0");
     }
 
@@ -63,58 +90,143 @@ public class InlineQueryHandler implements Handler<Update> {
         if (tempConfig == null) tempConfig = ChatConfiguration.defaultConfig;
         ChatConfiguration config = tempConfig;
 
-        Bson searchFilter;
         int currentTime = (int) (System.currentTimeMillis() / 1000L);
+        Predicate<GameData> accepted = gameData -> {
+            if (!config.trash && gameData.info.hasFlag(GameFlag.TRASH)) return false;
+            return config.minPrice <= gameData.info.price.inCurrency(config.currency);
+        };
 
+        List<GameData> games;
         if (queryInput.startsWith("game_id:")) {
+            long gameId;
             try {
-                long gameId = Long.parseLong(queryInput.substring(8));
-                searchFilter = and(
-                        eq("_id", gameId),
-                        or(eq("status", "published"), eq("status", "accepted")));
+                gameId = Long.parseLong(queryInput.substring(8));
             } catch (NumberFormatException e) {
-                silent.execute(response);
+                answer(response);
                 return true;
             }
-        } else
-            searchFilter = and(
+
+            GameData gameData = searchIndex == null ? null : searchIndex.get((int) gameId);
+            if (gameData != null && gameData._id == gameId) games = accepted.test(gameData) ? List.of(gameData) : List.of();
+            //The index only has the games which have not expired yet, the shared ones may have.
+            else games = queryGames(and(
+                    eq("_id", gameId),
+                    or(eq("status", "published"), eq("status", "accepted"))), accepted);
+        } else if (searchIndex != null) {
+            games = searchIndex.search(queryInput, currentTime, accepted, 50);
+        } else {
+            games = queryGames(and(
                     regex("info.title", searchRegex(queryInput)),
                     or(eq("status", "published"), eq("status", "accepted")),
                     gte("info.until", currentTime)
-            );
+            ), accepted);
+        }
+
+        //The Telegram file ids of the games' photos which were already uploaded by the announcements.
+        Map<String, String> photosFileIds = new HashMap<>();
+        if (!games.isEmpty()) {
+            String[] gamesIds = games.stream().map(gameData -> String.valueOf(gameData._id)).toArray(String[]::new);
+            redisCommands.hmget(CheckDatabase.keyPhotos, gamesIds)
+                    .forEach(keyValue -> keyValue.ifHasValue(fileId -> photosFileIds.put(keyValue.getKey(), fileId)));
+        }
+
+        for (GameData gameData : games)
+            results.add(constructResult(gameData, config, photosFileIds.get(String.valueOf(gameData._id))));
+
+        answer(response);
+        return true;
+    }
 
+    /**
+     * Sends the answer of an inline query without waiting for it,
+     * its failures are logged and counted, since nothing else waits for its response.
+     *
+     * @param response The answer.
+     */
+    protected void answer(AnswerInlineQuery response) {
+        botApiClient.answerInlineQuery(response).whenComplete((apiResponse, error) -> {
+            if (error != null) {
+                Metrics.handlersFailedReplies.labels("inlineQuery", "error").inc();
+                System.err.println("Failed to answer the inline query " + response.getInlineQueryId() + ": " + error);
+            } else if (!Boolean.TRUE.equals(apiResponse.getOk())) {
+                Metrics.handlersFailedReplies.labels("inlineQuery", "rejected").inc();
+                System.err.println("The answer of the inline query " + response.getInlineQueryId() + " was rejected: "
+                        + apiResponse.getErrorCode() + " " + apiResponse.getErrorDescription());
+            }
+        });
+    }
+
+    /**
+     * Queries the database for the games of an inline query, the latest published first.
+     *
+     * @param searchFilter The filter of the games.
+     * @param accepted     Filters the games by the configuration of the user who sent the query.
+     * @return The found games.
+     */
+    protected List<GameData> queryGames(Bson searchFilter, Predicate<GameData> accepted) {
+        List<GameData> games = new ArrayList<>();
+        Histogram.Timer timer = Metrics.mongoQueryLatency.labels("inlineQuery").startTimer();
         gamesCollection.find(searchFilter).sort(descending("published")).limit(50)
-                .forEach(document -> {
-                    GameData gameData = gson.fromJson(document.toJson(), GameData.class);
-                    if (!config.trash && gameData.info.hasFlag(GameFlag.TRASH)) return;
-                    if (config.minPrice > gameData.info.price.inCurrency(config.currency)) return;
-
-                    InlineQueryResultPhoto result = new InlineQueryResultPhoto();
-
-                    InlineKeyboardMarkup inlineMarkup = new InlineKeyboardMarkup();
-                    inlineMarkup.getKeyboard().add(List.of(new InlineKeyboardButton()
-                                    .setText("Share")
-                                    .setSwitchInlineQuery("game_id:" + gameData._id),
-
-                            new InlineKeyboardButton()
-                                    .setText("Get")
-                                    .setUrl(gameData.info.org_url.toString())));
-
-
-                    result.setId(String.valueOf(gameData._id));
-                    result.setPhotoUrl(gameData.info.thumbnail.toString());
-                    result.setThumbUrl(gameData.info.thumbnail.toString());
-                    result.setTitle(gameData.info.title);
-                    result.setDescription("Free until " + gameData.info.formatUntil(UntilFormat.DATE)
-                            + " • " + gameData.info.store.toString());
-                    result.setCaption(gameData.info.formatCaption(config));
-                    result.setParseMode("HTML");
-                    result.setReplyMarkup(inlineMarkup);
-
-                    results.add(result);
+                .forEach(gameData -> {
+                    if (accepted.test(gameData)) games.add(gameData);
                 });
+        timer.observeDuration();
+        return games;
+    }
 
-        silent.execute(response);
-        return true;
+    /**
+     * Constructs the inline query result of a game.
+     *
+     * @param gameData    The game.
+     * @param config      The configuration of the user who sent the query.
+     * @param photoFileId The Telegram file id of the game's photo, {@code null} if it was not uploaded yet.
+     * @return The result, a cached photo if the file id is available.
+     */
+    protected static InlineQueryResult constructResult(GameData gameData, ChatConfiguration config, String photoFileId) {
+        InlineKeyboardMarkup inlineMarkup = new InlineKeyboardMarkup();
+        inlineMarkup.getKeyboard().add(List.of(new InlineKeyboardButton()
+                        .setText("Share")
+                        .setSwitchInlineQuery("game_id:" + gameData._id),
+
+                new InlineKeyboardButton()
+                        .setText("Get")
+                        .setUrl(gameData.info.org_url.toString())));
+
+        String id = String.valueOf(gameData._id);
+        String title = gameData.info.title;
+        String description = "Free until " + gameData.info.formatUntil(UntilFormat.DATE)
+                + " • " + gameData.info.store.toString();
+        String caption = gameData.info.formatCaption(config);
+
+        if (photoFileId != null) {
+            return new InlineQueryResultCachedPhoto()
+                    .setId(id)
+                    .setPhotoFileId(photoFileId)
+                    .setTitle(title)
+                    .setDescription(description)
+                    .setCaption(caption)
+                    .setParseMode("HTML")
+                    .setReplyMarkup(inlineMarkup);
+        } else {
+            InlineQueryResultPhoto result = new InlineQueryResultPhoto();
+
+            result.setId(id);
+            result.setPhotoUrl(gameData.info.thumbnail.toString());
+            result.setThumbUrl(gameData.info.thumbnail.toString());
+            result.setTitle(title);
+            result.setDescription(description);
+            result.setCaption(caption);
+            result.setParseMode("HTML");
+            result.setReplyMarkup(inlineMarkup);
+
+            return result;
+        }
+    }
+
+    /**
+     * Stops refreshing the games search index.
+     */
+    public void close() {
+        if (searchIndexRefresher != null) searchIndexRefresher.close();
     }
 }
@@ -0,0 +1,138 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components;
+
+import com.github.rami_sabbagh.telegram.alice_framework.pipes.Handler;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+/**
+ * The Prometheus metrics of the bot, exposed on the {@code /metrics} endpoint of the metrics server.
+ */
+public final class Metrics {
+
+    /* Announcements */
+
+    public static final Counter announcementsSent = Counter.build()
+            .name("announcements_sent_total")
+            .help("The announcement messages sent, by their result: sent, transient, permanent, rejected or migrated.")
+            .labelNames("result")
+            .register();
+
+    public static final Histogram announcementsLatency = Histogram.build()
+            .name("announcements_send_latency_seconds")
+            .help("The time taken by the Bot API to respond to the announcement messages.")
+            .buckets(0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30)
+            .register();
+
+    public static final Gauge announcementsPending = Gauge.build()
+            .name("announcements_pending_chats")
+            .help("The number of chats waiting for an announcement, by the announcement's id.")
+            .labelNames("announcement")
+            .register();
+
+    public static final Gauge announcementsFailed = Gauge.build()
+            .name("announcements_failed_chats")
+            .help("The number of chats waiting for a retry of an announcement, by the announcement's id.")
+            .labelNames("announcement")
+            .register();
+
+    public static final Gauge announcementsInflight = Gauge.build()
+            .name("announcements_inflight_chats")
+            .help("The number of chats popped by the workers of an announcement and not recorded yet, by the announcement's id.")
+            .labelNames("announcement")
+            .register();
+
+    public static final Counter announcementsUndeliverable = Counter.build()
+            .name("announcements_undeliverable_total")
+            .help("The announcement messages which failed permanently, by the reason: blocked, kicked, chat_not_found, deactivated or not_enough_rights.")
+            .labelNames("reason")
+            .register();
+
+    public static final Counter chatsPruned = Counter.build()
+            .name("chats_pruned_total")
+            .help("The chats which their announcements were disabled, after they were found unreachable by multiple announcements in a row.")
+            .register();
+
+    public static final Counter announcementsReaped = Counter.build()
+            .name("announcements_reaped_chats_total")
+            .help("The in-flight chats returned to pending after the leases of their workers have expired.")
+            .register();
+
+    public static final Counter announcementsWorkerRestarts = Counter.build()
+            .name("announcements_worker_restarts_total")
+            .help("The announcement workers restarted by their supervisor, by the reason: crashed or stuck.")
+            .labelNames("reason")
+            .register();
+
+    public static final Histogram rateLimiterWait = Histogram.build()
+            .name("rate_limiter_wait_seconds")
+            .help("The time which the announcements waited for the rate limiter.")
+            .buckets(0, 0.01, 0.05, 0.1, 0.5, 1, 3, 10, 60)
+            .register();
+
+    /* Databases */
+
+    public static final Histogram mongoQueryLatency = Histogram.build()
+            .name("mongo_query_latency_seconds")
+            .help("The time taken by the MongoDB queries, by the query's name.")
+            .labelNames("query")
+            .register();
+
+    public static final Counter configurationCacheRequests = Counter.build()
+            .name("configuration_cache_requests_total")
+            .help("The lookups of the chats configurations cache, by the result: hit or miss.")
+            .labelNames("result")
+            .register();
+
+    public static final Counter configurationCacheEvictions = Counter.build()
+            .name("configuration_cache_evictions_total")
+            .help("The chats configurations evicted from the cache to keep it within its maximum size.")
+            .register();
+
+    public static final Gauge configurationCacheSize = Gauge.build()
+            .name("configuration_cache_size")
+            .help("The number of chats configurations in the cache, including the chats which don't have one.")
+            .register();
+
+    public static final Gauge gameSearchIndexSize = Gauge.build()
+            .name("game_search_index_size")
+            .help("The number of games in the inline queries search index.")
+            .register();
+
+    /* Updates */
+
+    public static final Histogram handlersDuration = Histogram.build()
+            .name("update_handler_duration_seconds")
+            .help("The time taken by the updates handlers to process an update, by the handler's name.")
+            .labelNames("handler")
+            .register();
+
+    public static final Counter handlersFailedReplies = Counter.build()
+            .name("update_handler_failed_replies_total")
+            .help("The replies of the updates handlers which failed, by the handler's name and the reason: error (the request failed) or rejected (the Bot API answered not ok).")
+            .labelNames("handler", "reason")
+            .register();
+
+    private Metrics() {
+    }
+
+    /**
+     * Wraps an updates handler, so its processing time is measured.
+     *
+     * @param name    The name of the handler, used as the metric label.
+     * @param handler The handler to measure.
+     * @return The measured handler.
+     */
+    public static Handler<Update> timed(String name, Handler<Update> handler) {
+        Histogram.Child histogram = handlersDuration.labels(name);
+        return update -> {
+            Histogram.Timer timer = histogram.startTimer();
+            try {
+                return handler.process(update);
+            } finally {
+                timer.observeDuration();
+            }
+        };
+    }
+}
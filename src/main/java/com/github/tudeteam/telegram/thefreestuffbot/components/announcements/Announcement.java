@@ -0,0 +1,140 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components.announcements;
+
+import com.github.tudeteam.telegram.thefreestuffbot.structures.ChatConfiguration;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.GameInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.tudeteam.telegram.thefreestuffbot.structures.GameFlag.TRASH;
+
+/**
+ * A single fan-out of the announcements system: one or more games announced to the chats of a single pending set.
+ * <p>
+ * When multiple games are coalesced into a single announcement, each chat gets one message listing all the games
+ * which are eligible for it, while the analytics are still counted for each game separately.
+ */
+public class Announcement {
+
+    /**
+     * The id of the coalesced announcement, only one can be in progress at a time.
+     */
+    public static final String coalescedId = "bundle";
+
+    /**
+     * The id of the announcement, the game's id, or {@link #coalescedId} for coalesced announcements.
+     */
+    public final String id;
+
+    /**
+     * The prefix of the redis keys of the announcement's pending chats.
+     */
+    public final String keyPrefix;
+
+    /**
+     * The key of the redis hash which holds the announcement's metadata.
+     */
+    public final String keyState;
+
+    /**
+     * The games of the announcement, ordered by their publish time.
+     */
+    public final List<Game> games;
+
+    /**
+     * Creates an announcement of a single game.
+     *
+     * @param game The game to announce.
+     */
+    public Announcement(Game game) {
+        this(String.valueOf(game._id), List.of(game));
+    }
+
+    /**
+     * Creates an announcement of one or more games.
+     *
+     * @param id    The id of the announcement.
+     * @param games The games to announce.
+     */
+    public Announcement(String id, List<Game> games) {
+        this.id = id;
+        this.keyPrefix = keyPrefixOf(id);
+        this.keyState = keyPrefix + "state";
+        this.games = List.copyOf(games);
+    }
+
+    /**
+     * Gets the prefix of the redis keys of an announcement.
+     *
+     * @param id The id of the announcement.
+     * @return The prefix of its keys.
+     */
+    public static String keyPrefixOf(String id) {
+        return "TheFreeStuffBot:ongoing:" + id + ":";
+    }
+
+    /**
+     * Checks whether the announcement of a game should be skipped for a chat.
+     *
+     * @param config   The configuration of the chat, {@code null} if it was deleted.
+     * @param gameInfo The information of the game.
+     * @return {@code true} if it should be skipped.
+     */
+    public static boolean shouldSkipAnnouncement(ChatConfiguration config, GameInfo gameInfo) {
+        //Skip the announcement if:
+        //- The chat's configuration was deleted.
+        if (config == null) return true;
+        //- The chat's has the announcements disabled.
+        if (!config.enabled) return true;
+        //- It's a trash game announcement and the chat has them filtered.
+        if (!config.trash && gameInfo.hasFlag(TRASH)) return true;
+        //- The game's price is lower than the minimum price set for this channel.
+        return config.minPrice > gameInfo.org_price.inCurrency(config.currency);
+    }
+
+    /**
+     * Gets the games of the announcement which a chat should receive.
+     *
+     * @param config The configuration of the chat, {@code null} if it was deleted.
+     * @return The eligible games, empty if the announcement should be skipped for the chat.
+     */
+    public List<Game> eligibleGames(ChatConfiguration config) {
+        List<Game> eligible = new ArrayList<>(games.size());
+        for (Game game : games)
+            if (!shouldSkipAnnouncement(config, game.info)) eligible.add(game);
+        return eligible;
+    }
+
+    /**
+     * A game included in an announcement.
+     */
+    public static class Game {
+
+        /**
+         * The id of the game.
+         */
+        public final int _id;
+
+        /**
+         * The information of the game.
+         */
+        public final GameInfo info;
+
+        /**
+         * The prefix of the redis keys of the game's analytics counters.
+         */
+        public final String keyPrefix;
+
+        /**
+         * The key of the redis hash which holds the game's analytics counters.
+         */
+        public final String keyAnalytics;
+
+        public Game(int _id, GameInfo info) {
+            this._id = _id;
+            this.info = info;
+            this.keyPrefix = keyPrefixOf(String.valueOf(_id));
+            this.keyAnalytics = keyPrefix + "analytics";
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components.announcements;
+
+import com.github.tudeteam.telegram.thefreestuffbot.components.announcements.Announcement.Game;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.ChatConfiguration;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.Currency;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.UntilFormat;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The prepared captions and keyboards of an announcement's games, built once before its workers start.
+ * <p>
+ * A game's caption only depends on the chat's {@link Currency} and {@link UntilFormat},
+ * so all the variants are formatted ahead, and the workers only look them up for each chat.
+ * The keyboards don't depend on the chat at all, so they are shared by all the messages.
+ */
+public class AnnouncementRenders {
+
+    protected static final Currency[] currencies = Currency.values();
+    protected static final UntilFormat[] untilFormats = UntilFormat.values();
+
+    /**
+     * The maximum length of a Telegram message's text.
+     */
+    protected static final int maximumTextLength = 4096;
+
+    protected static final String coalescedHeader = "<b>Free Games!</b>\n\n";
+    protected static final String coalescedFooter = "<i>via freestuffbot.xyz</i>";
+
+    /**
+     * The prepared renders of the games, mapped by their ids.
+     */
+    protected final Map<Integer, GameRenders> games = new HashMap<>();
+
+    /**
+     * Prepares the renders of an announcement's games.
+     *
+     * @param announcement The announcement.
+     */
+    public AnnouncementRenders(Announcement announcement) {
+        for (Game game : announcement.games) games.put(game._id, new GameRenders(game));
+    }
+
+    /**
+     * Gets the index of a caption variant.
+     *
+     * @param config The configuration of the chat.
+     * @return The index of the chat's variant.
+     */
+    protected static int variantOf(ChatConfiguration config) {
+        //Missing values fall back the same way the formatting methods do.
+        Currency currency = config.currency == null ? Currency.EUR : config.currency;
+        UntilFormat untilFormat = config.untilFormat == null ? UntilFormat.WEEKDAY : config.untilFormat;
+        return currency.ordinal() * untilFormats.length + untilFormat.ordinal();
+    }
+
+    /**
+     * Gets the caption of a game's announcement.
+     *
+     * @param game   The game.
+     * @param config The configuration of the chat.
+     * @return The HTML caption, in the same format as {@code GameInfo.formatCaption}.
+     */
+    public String caption(Game game, ChatConfiguration config) {
+        return games.get(game._id).captions[variantOf(config)];
+    }
+
+    /**
+     * Gets the inline keyboard of a game's announcement.
+     *
+     * @param game The game.
+     * @return The shared keyboard, which must not be modified.
+     */
+    public InlineKeyboardMarkup markup(Game game) {
+        return games.get(game._id).markup;
+    }
+
+    /**
+     * Builds the text of a message listing multiple games, in the format of the {@code /free} command.
+     *
+     * @param games  The games to list.
+     * @param config The configuration of the chat.
+     * @return The HTML text of the message.
+     */
+    public String coalescedText(List<Game> games, ChatConfiguration config) {
+        int variant = variantOf(config);
+        StringBuilder text = new StringBuilder(coalescedHeader);
+        for (Game game : games) text.append(this.games.get(game._id).entries[variant]).append("\n\n");
+        return text.append(coalescedFooter).toString();
+    }
+
+    /**
+     * Checks whether a message listing all the announcement's games fits in a single Telegram message,
+     * in all the caption variants.
+     * <p>
+     * The HTML tags are counted too, although Telegram doesn't count them, so it's on the safe side.
+     *
+     * @return {@code true} if the longest variant is within the message length limit.
+     */
+    public boolean fitsInCoalescedMessage() {
+        for (int variant = 0; variant < currencies.length * untilFormats.length; variant++) {
+            int length = coalescedHeader.length() + coalescedFooter.length();
+            for (GameRenders gameRenders : games.values()) length += gameRenders.entries[variant].length() + 2;
+            if (length > maximumTextLength) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Builds the inline keyboard of a message listing multiple games, out of the shared rows of the games.
+     *
+     * @param games The games to list.
+     * @return The keyboard of the message.
+     */
+    public InlineKeyboardMarkup coalescedMarkup(List<Game> games) {
+        List<List<InlineKeyboardButton>> keyboard = new ArrayList<>(games.size());
+        for (Game game : games) keyboard.add(this.games.get(game._id).coalescedRow);
+        return new InlineKeyboardMarkup().setKeyboard(keyboard);
+    }
+
+    /**
+     * The prepared renders of a single game.
+     */
+    protected static class GameRenders {
+
+        /**
+         * The captions of the game's own announcement, indexed by {@link #variantOf(ChatConfiguration)}.
+         */
+        public final String[] captions = new String[currencies.length * untilFormats.length];
+
+        /**
+         * The entries of the game in coalesced announcements, indexed by {@link #variantOf(ChatConfiguration)}.
+         */
+        public final String[] entries = new String[currencies.length * untilFormats.length];
+
+        /**
+         * The keyboard of the game's own announcement.
+         */
+        public final InlineKeyboardMarkup markup = new InlineKeyboardMarkup();
+
+        /**
+         * The keyboard row of the game in coalesced announcements.
+         */
+        public final List<InlineKeyboardButton> coalescedRow;
+
+        public GameRenders(Game game) {
+            for (Currency currency : currencies) {
+                for (UntilFormat untilFormat : untilFormats) {
+                    ChatConfiguration config = new ChatConfiguration();
+                    config.currency = currency;
+                    config.untilFormat = untilFormat;
+
+                    int variant = variantOf(config);
+                    captions[variant] = game.info.formatCaption(config);
+                    entries[variant] = "• " + game.info.formatCaptionWithoutHeaderAndFooter(config);
+                }
+            }
+
+            markup.getKeyboard().add(List.of(new InlineKeyboardButton()
+                            .setText("Share")
+                            .setSwitchInlineQuery("game_id:" + game._id),
+
+                    new InlineKeyboardButton()
+                            .setText("Get")
+                            .setUrl(game.info.org_url.toString())
+            ));
+
+            coalescedRow = List.of(new InlineKeyboardButton()
+                            .setText("Share • " + game.info.title)
+                            .setSwitchInlineQuery("game_id:" + game._id),
+
+                    new InlineKeyboardButton()
+                            .setText("Get")
+                            .setUrl(game.info.org_url.toString())
+            );
+        }
+    }
+}
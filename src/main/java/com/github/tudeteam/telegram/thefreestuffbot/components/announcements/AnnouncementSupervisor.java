@@ -0,0 +1,207 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components.announcements;
+
+import com.github.tudeteam.telegram.thefreestuffbot.TheFreeStuffBot;
+import com.github.tudeteam.telegram.thefreestuffbot.components.Metrics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Supervises the announcement workers of this node, and replaces the ones which crash or get stuck.
+ * <p>
+ * Each worker reports its progress for every chat it handles, a worker which makes no progress
+ * within the worker timeout (a hung request for example) is stopped and replaced, the same as a crashed one.
+ * The chats it was holding are returned to pending once their in-flight leases expire.
+ * <p>
+ * The restarts are bounded: when a worker is restarted too many times within the restart period,
+ * the supervisor gives up on the announcement, and leaves it to be resumed by the next check.
+ */
+public class AnnouncementSupervisor {
+
+    /* Static Fields */
+
+    /**
+     * The interval of checking the workers' progress in milliseconds.
+     */
+    protected static final long checkInterval = 1_000;
+
+    /* Instance Fields */
+
+    /**
+     * The executor which the workers run on, a stuck worker might keep its thread until it's unblocked.
+     */
+    protected final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "AnnouncementSupervisor-Worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The supervisions of the announcements, mapped by their ids.
+     * The completed ones are removed, but the given up ones are kept for the health view.
+     */
+    protected final Map<String, Supervision> supervisions = new ConcurrentHashMap<>();
+
+    //Blank finals.
+    protected final long workerTimeout;
+    protected final int maxRestarts;
+    protected final long restartPeriod;
+
+    /* Constructor */
+
+    public AnnouncementSupervisor(TheFreeStuffBot bot) {
+        workerTimeout = bot.options.announcementsWorkerTimeout();
+        maxRestarts = bot.options.announcementsWorkerMaxRestarts();
+        restartPeriod = bot.options.announcementsWorkerRestartPeriod();
+    }
+
+    /* Instance Methods */
+
+    /**
+     * Runs the workers of an announcement until one of them completes, restarting them when they crash or get stuck.
+     *
+     * @param announcement The announcement.
+     * @param workers      Creates a fresh worker for the announcement.
+     * @return {@code true} if a worker has completed, {@code false} if the supervisor gave up on the announcement.
+     * @throws InterruptedException If interrupted while supervising, the current worker is stopped.
+     */
+    public boolean supervise(Announcement announcement, Supplier<AnnouncementWorker> workers) throws InterruptedException {
+        Supervision supervision = new Supervision(announcement.id);
+        supervisions.put(announcement.id, supervision);
+
+        while (true) {
+            AnnouncementWorker worker = workers.get();
+            Future<?> future = executor.submit(worker);
+            supervision.worker = worker;
+            supervision.state = "running";
+
+            String reason = await(worker, future);
+            if (reason == null) {
+                supervisions.remove(announcement.id, supervision);
+                return true;
+            }
+
+            Metrics.announcementsWorkerRestarts.labels(reason).inc();
+            supervision.lastFailure = reason;
+
+            if (!supervision.restart(System.currentTimeMillis())) {
+                System.err.println("Gave up on the workers of announcement " + announcement.id
+                        + " after " + supervision.restarts + " restarts, the last one has " + reason + ".");
+                supervision.state = "gave up";
+                return false;
+            }
+
+            System.err.println("Restarting the worker of announcement " + announcement.id + ", it has " + reason + ".");
+        }
+    }
+
+    /**
+     * Waits for a worker to complete, while watching its progress.
+     *
+     * @param worker The worker.
+     * @param future The future of the running worker.
+     * @return {@code null} if the worker has completed, otherwise the reason it has to be restarted: "crashed" or "stuck".
+     * @throws InterruptedException If interrupted while waiting, the worker is stopped.
+     */
+    protected String await(AnnouncementWorker worker, Future<?> future) throws InterruptedException {
+        while (true) {
+            try {
+                future.get(checkInterval, TimeUnit.MILLISECONDS);
+                return null;
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                return "crashed";
+            } catch (TimeoutException e) {
+                if (worker.idleTime() > workerTimeout) {
+                    stop(worker, future);
+                    return "stuck";
+                }
+            } catch (InterruptedException e) {
+                stop(worker, future);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Stops a worker, it terminates on its next step, or as soon as it's interrupted.
+     *
+     * @param worker The worker.
+     * @param future The future of the running worker.
+     */
+    protected void stop(AnnouncementWorker worker, Future<?> future) {
+        worker.stop();
+        future.cancel(true);
+    }
+
+    /**
+     * Gets the health of the announcements' workers on this node.
+     *
+     * @return A line for each supervised announcement.
+     */
+    public List<String> health() {
+        List<String> lines = new ArrayList<>();
+        supervisions.values().forEach(supervision -> lines.add(supervision.toString()));
+        return lines;
+    }
+
+    /**
+     * Stops supervising, the running workers are interrupted.
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * The supervision state of an announcement.
+     */
+    protected class Supervision {
+
+        public final String announcementId;
+
+        /**
+         * The times in milliseconds of the restarts within the restart period.
+         */
+        protected final Deque<Long> restartTimes = new ArrayDeque<>();
+
+        public volatile AnnouncementWorker worker;
+        public volatile String state = "starting";
+        public volatile String lastFailure;
+        public volatile int restarts = 0;
+
+        public Supervision(String announcementId) {
+            this.announcementId = announcementId;
+        }
+
+        /**
+         * Counts a restart, unless the maximum restarts within the restart period was reached.
+         *
+         * @param currentTime The current time in milliseconds.
+         * @return {@code true} if the worker can be restarted.
+         */
+        public boolean restart(long currentTime) {
+            while (!restartTimes.isEmpty() && restartTimes.peekFirst() <= currentTime - restartPeriod)
+                restartTimes.pollFirst();
+            if (restartTimes.size() >= maxRestarts) return false;
+
+            restartTimes.addLast(currentTime);
+            restarts++;
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            AnnouncementWorker worker = this.worker;
+            String line = "Announcement " + announcementId + ": " + state + ", restarts: " + restarts;
+            if (lastFailure != null) line += " (last " + lastFailure + ")";
+            if (worker != null) line += ", chats handled: " + worker.getHandledCount()
+                    + ", idle: " + TimeUnit.MILLISECONDS.toSeconds(worker.idleTime()) + "s";
+            return line;
+        }
+    }
+}
@@ -2,154 +2,871 @@ package com.github.tudeteam.telegram.thefreestuffbot.components.announcements;
 
 import com.github.rami_sabbagh.telegram.alice_framework.utilities.ChatUtilities;
 import com.github.rami_sabbagh.telegram.alice_framework.utilities.ChatUtilities.ChatType;
-import com.github.rami_sabbagh.telegram.alice_framework.utilities.SilentExecutor;
+import com.github.tudeteam.telegram.thefreestuffbot.components.BotApiClient;
 import com.github.tudeteam.telegram.thefreestuffbot.components.ConfigurationDB;
+import com.github.tudeteam.telegram.thefreestuffbot.components.Metrics;
+import com.github.tudeteam.telegram.thefreestuffbot.components.announcements.Announcement.Game;
 import com.github.tudeteam.telegram.thefreestuffbot.structures.ChatConfiguration;
-import com.github.tudeteam.telegram.thefreestuffbot.structures.GameInfo;
+import com.google.gson.Gson;
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.ScoredValue;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.ZAddArgs;
+import io.lettuce.core.api.async.RedisAsyncCommands;
 import io.lettuce.core.api.sync.RedisCommands;
-import org.telegram.telegrambots.meta.api.methods.groupadministration.GetChatMembersCount;
-import org.telegram.telegrambots.meta.api.methods.send.SendPhoto;
+import io.prometheus.client.Histogram;
+import org.telegram.telegrambots.meta.api.objects.ApiResponse;
 import org.telegram.telegrambots.meta.api.objects.Message;
-import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
-import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
+import org.telegram.telegrambots.meta.api.objects.PhotoSize;
 
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.github.rami_sabbagh.telegram.alice_framework.utilities.ChatUtilities.ChatType.*;
-import static com.github.tudeteam.telegram.thefreestuffbot.structures.GameFlag.TRASH;
+import static java.util.concurrent.TimeUnit.*;
 
+/**
+ * Announces an announcement's games to the chats in its pending set.
+ * <p>
+ * The announcements are sent asynchronously, keeping up to a window of them in-flight at once,
+ * and their results are recorded from the completion callbacks.
+ * So a single worker can saturate the rate limiter no matter how slow the Bot API responses are.
+ * <p>
+ * Workers on multiple nodes can share the same pending set, each one registers its node in the announcement's
+ * nodes hash while it's running, so the coordinator knows when all of them are done.
+ * <p>
+ * The delivery is at-least-once: popped chats are moved into the in-flight set with a lease deadline,
+ * and are only removed from it once their results are recorded. The worker renews the leases of its unrecorded chats
+ * with each heartbeat, apart from its own thread, so only the chats of a crashed (or stopped) worker are returned
+ * to the pending set once their leases expire. And the games delivered to each chat are recorded in a ledger,
+ * which is checked before sending, so a returned chat doesn't receive the same game twice.
+ * <p>
+ * The chats are popped in the order of their audience sizes, so the largest channels and groups get the games first.
+ * <p>
+ * In the compact layout, the chats are identified by their {@link ChatIndex} indices in all the announcement's keys,
+ * and the private chats are popped from the pendingUsers bitmap once the pending set is empty.
+ */
 public class AnnouncementWorker implements Runnable {
 
+    /* Static Fields */
+
+    protected static final Gson gson = new Gson();
+
+    /**
+     * Beats the heartbeats of all the workers on this node, apart from their own threads,
+     * so a worker keeps its leases while it waits for the rate limiter or for slow responses.
+     */
+    protected static final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "AnnouncementWorker-Heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Moves the configurations of the migrated groups, off the Bot API client's callback threads,
+     * as they block on MongoDB.
+     */
+    protected static final ExecutorService migrations = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "AnnouncementWorker-Migrations");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Increases a game's analytics counter and its users reached in a minute, only if the analytics hash still exists,
+     * so late results don't recreate the analytics of completed announcements.
+     */
+    protected static final String lateIncreaseScript = "if redis.call('EXISTS', KEYS[1]) == 0 then return 0 end " +
+            "redis.call('HINCRBY', KEYS[1], ARGV[1], ARGV[3]) " +
+            "redis.call('HINCRBY', KEYS[2], ARGV[2], ARGV[3]) " +
+            "return 1";
+
+    /**
+     * Records the results of a batch, encoded as JSON: adds the failed chats to the failed set,
+     * counts the undeliverable chats and resets the delivered ones for pruning, removes the batch's chats
+     * from the in-flight set, and increases the analytics hashes.
+     */
+    protected static final String recordScript = "local batch = cjson.decode(ARGV[1]) " +
+            "for _, id in ipairs(batch.failed) do redis.call('SADD', KEYS[1], id) end " +
+            "for _, id in ipairs(batch.undeliverable) do redis.call('HINCRBY', KEYS[2], id, 1) end " +
+            "for _, id in ipairs(batch.delivered) do redis.call('HDEL', KEYS[2], id) end " +
+            "for _, id in ipairs(batch.chats) do redis.call('ZREM', KEYS[3], id) end " +
+            "for key, fields in pairs(batch.increments) do " +
+            "for field, amount in pairs(fields) do redis.call('HINCRBY', key, field, amount) end end " +
+            "return 1";
+
+    /**
+     * Pops a batch of the chats with the largest audiences from the pending set, then from the private chats bitmap
+     * (with the lowest audience score), and adds them to the in-flight set with a lease deadline.
+     * Returns the popped chats and their scores, interleaved.
+     */
+    protected static final String popScript = "local popped = redis.call('ZPOPMAX', KEYS[1], ARGV[1]) " +
+            "local remaining = tonumber(ARGV[1]) - #popped / 2 " +
+            "local start = 0 " +
+            "while remaining > 0 do " +
+            "local bit = redis.call('BITPOS', KEYS[3], 1, start) " +
+            "if bit < 0 then break end " +
+            "redis.call('SETBIT', KEYS[3], bit, 0) " +
+            "popped[#popped + 1] = tostring(bit) " +
+            "popped[#popped + 1] = '1' " +
+            "start = math.floor(bit / 8) " +
+            "remaining = remaining - 1 end " +
+            "for i = 1, #popped, 2 do redis.call('ZADD', KEYS[2], ARGV[2], popped[i]) end " +
+            "return popped";
+
+    /**
+     * Returns the in-flight chats which their leases have expired to the pending set, with the lowest audience score.
+     */
+    protected static final String reapScript = "local ids = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1]) " +
+            "for _, id in ipairs(ids) do redis.call('ZADD', KEYS[2], 1, id) end " +
+            "redis.call('ZREMRANGEBYSCORE', KEYS[1], '-inf', ARGV[1]) " +
+            "return #ids";
+
+    /**
+     * Moves the failed chats into the pending set (with the lowest audience score)
+     * and consumes a retry attempt from the state hash, if there are attempts remaining.
+     */
+    protected static final String requeueScript = "if tonumber(redis.call('HGET', KEYS[3], 'attempts') or '0') <= 0 then return 0 end " +
+            "if redis.call('SCARD', KEYS[2]) == 0 then return 0 end " +
+            "redis.call('ZUNIONSTORE', KEYS[1], 2, KEYS[1], KEYS[2], 'AGGREGATE', 'MAX') " +
+            "redis.call('DEL', KEYS[2]) " +
+            "redis.call('HINCRBY', KEYS[3], 'attempts', -1) " +
+            "return 1";
+
+    /**
+     * Removes the worker's node from the nodes hash, only if its field still holds the worker's own token,
+     * so a replaced worker which exits late doesn't remove the heartbeat of its replacement.
+     */
+    protected static final String releaseScript = "local value = redis.call('HGET', KEYS[1], ARGV[1]) " +
+            "if value and string.sub(value, -#ARGV[2] - 1) == ':' .. ARGV[2] then return redis.call('HDEL', KEYS[1], ARGV[1]) end " +
+            "return 0";
+
     /* Instance Fields */
 
-    protected final long _id;
-    protected final GameInfo gameInfo;
-    protected final SilentExecutor silent;
+    protected final Announcement announcement;
+    protected final AnnouncementRenders renders;
+    protected final BotApiClient botApiClient;
+    protected final MemberCountCache memberCounts;
+    protected final ChatIndex chatIndex;
     protected final ConfigurationDB db;
-    protected final RateLimitBucket rateLimit;
+    /**
+     * The share of the global rate which this announcement is given.
+     */
+    protected final RateLimiter.Share rateLimit;
     protected final RedisCommands<String, String> redisCommands;
+    protected final RedisAsyncCommands<String, String> redisAsyncCommands;
+    protected final int batchSize;
+
+    /**
+     * The id of the node which this worker is running on.
+     */
+    protected final String nodeId;
+
+    /**
+     * The time in milliseconds after the last heartbeat which the worker is considered dead after.
+     */
+    protected final long nodeTimeout;
+
+    /**
+     * A random token which identifies the worker in its node's field, apart from the other workers of the same node.
+     */
+    protected final String token = UUID.randomUUID().toString();
+
+    /**
+     * The permits of the in-flight announcements window.
+     */
+    protected final Semaphore window;
+
+    /**
+     * The futures of the batches which are not fully recorded yet.
+     */
+    protected final List<CompletableFuture<Void>> batchesRecords = new ArrayList<>();
+
+    /**
+     * The members of the popped chats which their results are not recorded yet, their leases are renewed with each heartbeat.
+     */
+    protected final Set<String> leased = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The periodic heartbeat of the worker, {@code null} until it's started.
+     */
+    protected volatile ScheduledFuture<?> heartbeat;
+
+    /**
+     * The Telegram file ids of the games' photos, mapped by the games' ids.
+     * A game is missing until an announcement with its photo is sent successfully.
+     */
+    protected final Map<Integer, String> photosFileIds = new ConcurrentHashMap<>();
 
     //Redis fields keys.
 
     protected final String keyPrefix;
     protected final String keyPending;
+    protected final String keyPendingUsers;
     protected final String keyFailed;
-    protected final String keyAttempts;
+    protected final String keyState;
+    protected final String keyNodes;
+    protected final String keyInflight;
+
+    /**
+     * The time in milliseconds which the announcement has started at.
+     */
+    protected final long startedAt;
+
+    /**
+     * Whether the announcement uses the compact layout, where the chats are identified by their indices.
+     */
+    protected final boolean compact;
+
+    //Supervision.
+
+    /**
+     * The time in nanoseconds of the worker's last progress, watched by its supervisor.
+     */
+    protected volatile long lastProgress = System.nanoTime();
+    /**
+     * Whether the worker is waiting for the rate limiter, which is not counted as idle time,
+     * since the pauses requested by Telegram can be longer than the worker timeout.
+     */
+    protected volatile boolean throttled = false;
+    /**
+     * The time in nanoseconds which the worker has started waiting for the rate limiter at.
+     */
+    protected volatile long throttledSince;
+    /**
+     * The number of chats handled by the worker.
+     */
+    protected final AtomicLong handledCount = new AtomicLong();
+    /**
+     * Whether the worker was stopped by its supervisor.
+     */
+    protected volatile boolean stopped = false;
+    /**
+     * Whether the worker has exited, so the late replies of its heartbeat don't report the sets' depths again.
+     */
+    protected volatile boolean exited = false;
 
     /* Constructor */
 
-    public AnnouncementWorker(long _id, GameInfo gameInfo, SilentExecutor silent, ConfigurationDB db, RateLimitBucket rateLimit, RedisCommands<String, String> redisCommands) {
-        this._id = _id;
-        this.gameInfo = gameInfo;
-        this.silent = silent;
+    public AnnouncementWorker(Announcement announcement, AnnouncementRenders renders, BotApiClient botApiClient, MemberCountCache memberCounts,
+                              ChatIndex chatIndex, ConfigurationDB db, RateLimiter.Share rateLimit,
+                              RedisCommands<String, String> redisCommands, RedisAsyncCommands<String, String> redisAsyncCommands,
+                              int batchSize, int windowSize, String nodeId, long nodeTimeout) {
+        this.announcement = announcement;
+        this.renders = renders;
+        this.botApiClient = botApiClient;
+        this.memberCounts = memberCounts;
+        this.chatIndex = chatIndex;
         this.db = db;
         this.rateLimit = rateLimit;
         this.redisCommands = redisCommands;
+        this.redisAsyncCommands = redisAsyncCommands;
+        this.batchSize = batchSize;
+        this.window = new Semaphore(windowSize);
+        this.nodeId = nodeId;
+        this.nodeTimeout = nodeTimeout;
 
         //Redis fields keys.
-        keyPrefix = "TheFreeStuffBot:ongoing:" + _id + ":";
+        keyPrefix = announcement.keyPrefix;
         keyPending = keyPrefix + "pending";
+        keyPendingUsers = keyPrefix + "pendingUsers";
         keyFailed = keyPrefix + "failed";
-        keyAttempts = keyPrefix + "attempts";
+        keyState = announcement.keyState;
+        keyNodes = keyPrefix + "nodes";
+        keyInflight = keyPrefix + "inflight";
+
+        String started = redisCommands.hget(keyState, "started");
+        startedAt = started == null ? System.currentTimeMillis() : Long.parseLong(started);
+
+        compact = "true".equals(redisCommands.hget(keyState, "compact"));
+        if (compact && chatIndex == null)
+            throw new IllegalStateException("The announcement uses the compact layout, which is disabled on this node!");
+
+        //Reuse the photos uploaded by previous runs of the announcements, if there were any.
+        for (Game game : announcement.games) {
+            String photoFileId = redisCommands.hget(CheckDatabase.keyPhotos, String.valueOf(game._id));
+            if (photoFileId != null) photosFileIds.put(game._id, photoFileId);
+        }
     }
 
     /* Instance Methods */
 
-    protected void requeueFailed() {
-        synchronized (rateLimit) {
-            if (redisCommands.get(keyAttempts).equals("0")) return;
-            if (redisCommands.scard(keyFailed) == 0) return;
-            redisCommands.sunionstore(keyPending, keyPending, keyFailed);
-            redisCommands.decr(keyAttempts);
+    /**
+     * Requeues the failed chats into the pending set, after backing off for a time doubled with each attempt.
+     *
+     * @throws InterruptedException If interrupted while backing off.
+     */
+    protected void requeueFailed() throws InterruptedException {
+        String attempts = redisCommands.hget(keyState, "attempts");
+        if (attempts == null || Integer.parseInt(attempts) <= 0) return;
+        if (redisCommands.scard(keyFailed) == 0) return;
+
+        //The heartbeats thread keeps renewing the node's deadline meanwhile.
+        long backoff = CheckDatabase.retryBackoff << (CheckDatabase.retryAttempts - Integer.parseInt(attempts));
+        MILLISECONDS.sleep(backoff);
+        progress();
+
+        redisCommands.eval(requeueScript, ScriptOutputType.INTEGER, new String[]{keyPending, keyFailed, keyState});
+    }
+
+    /**
+     * Pops a batch of the chats with the largest audiences from the pending set into the in-flight set,
+     * leased until the node's timeout, and renewed with each heartbeat until they are recorded.
+     *
+     * @return The ids of the popped chats with their audience scores, empty if the pending set is empty.
+     */
+    protected List<ScoredValue<String>> popBatch() {
+        long leaseDeadline = System.currentTimeMillis() + nodeTimeout;
+        List<String> popped = redisCommands.eval(popScript, ScriptOutputType.MULTI, new String[]{keyPending, keyInflight, keyPendingUsers},
+                String.valueOf(batchSize), String.valueOf(leaseDeadline));
+
+        List<ScoredValue<String>> batch = new ArrayList<>(popped.size() / 2);
+        for (int i = 0; i < popped.size(); i += 2) {
+            batch.add(ScoredValue.just(Double.parseDouble(popped.get(i + 1)), popped.get(i)));
+            leased.add(popped.get(i));
         }
+        return batch;
+    }
+
+    /**
+     * Returns the in-flight chats of dead workers to the pending set.
+     */
+    protected void reapExpiredLeases() {
+        Long reaped = redisCommands.eval(reapScript, ScriptOutputType.INTEGER, new String[]{keyInflight, keyPending},
+                String.valueOf(System.currentTimeMillis()));
+        if (reaped != null && reaped != 0) Metrics.announcementsReaped.inc(reaped);
     }
 
-    protected boolean shouldSkipAnnouncement(ChatConfiguration config) {
-        //Skip the announcement if:
-        //- The chat's configuration was deleted.
-        if (config == null) return true;
-        //- The chat's has the announcements disabled.
-        if (!config.enabled) return true;
-        //- It's a trash game announcement and the chat has them filtered.
-        if (!config.trash && gameInfo.hasFlag(TRASH)) return true;
-        //- The game's price is lower than the minimum price set for this channel.
-        return config.minPrice > gameInfo.org_price.inCurrency(config.currency);
+    /**
+     * Gets the games of the announcement which were already delivered to each of the chats, by previous attempts.
+     *
+     * @param chatIds The ids of the chats.
+     * @return The ids of the delivered games, mapped by the chats' ids, only the chats with delivered games are included.
+     */
+    protected Map<Long, Set<Integer>> deliveredGames(List<Long> chatIds) {
+        List<RedisFuture<Boolean>> futures = new ArrayList<>(chatIds.size() * announcement.games.size());
+        for (Game game : announcement.games)
+            for (long chatId : chatIds)
+                futures.add(redisAsyncCommands.sismember(game.keyPrefix + "delivered", String.valueOf(chatId)));
+
+        LettuceFutures.awaitAll(1, MINUTES, futures.toArray(new RedisFuture[0]));
+
+        Map<Long, Set<Integer>> delivered = new HashMap<>();
+        Iterator<RedisFuture<Boolean>> results = futures.iterator();
+        for (Game game : announcement.games)
+            for (long chatId : chatIds)
+                if (Boolean.TRUE.equals(results.next().toCompletableFuture().join()))
+                    delivered.computeIfAbsent(chatId, id -> new HashSet<>()).add(game._id);
+
+        return delivered;
     }
 
-    protected Message sendAnnouncement(long chatId, ChatConfiguration config) {
-        InlineKeyboardMarkup inlineMarkup = new InlineKeyboardMarkup();
-        inlineMarkup.getKeyboard().add(List.of(new InlineKeyboardButton()
-                        .setText("Share")
-                        .setSwitchInlineQuery("game_id:" + this._id),
+    /**
+     * Captures the file id of a game's photo from a sent announcement, so the next announcements reuse it
+     * instead of making Telegram fetch the thumbnail url once for each chat.
+     *
+     * @param game    The game of the announcement.
+     * @param message The sent announcement message.
+     */
+    protected void capturePhotoFileId(Game game, Message message) {
+        if (photosFileIds.containsKey(game._id) || !message.hasPhoto()) return;
 
-                new InlineKeyboardButton()
-                        .setText("Get")
-                        .setUrl(gameInfo.org_url.toString())
-        ));
+        //Use the largest size of the photo.
+        PhotoSize largest = Collections.max(message.getPhoto(),
+                Comparator.comparingInt(size -> size.getWidth() * size.getHeight()));
 
-        return silent.execute(new SendPhoto()
-                .setChatId(chatId)
-                .setPhoto(gameInfo.thumbnail.toString())
-                .setCaption(gameInfo.formatCaption(config))
-                .setParseMode("HTML")
-                .setReplyMarkup(inlineMarkup)
-        );
+        photosFileIds.put(game._id, largest.getFileId());
+        redisAsyncCommands.hsetnx(CheckDatabase.keyPhotos, String.valueOf(game._id), largest.getFileId());
+    }
+
+    /**
+     * Sends the announcement of a single game to a chat asynchronously.
+     *
+     * @param chatId The id of the chat.
+     * @param config The configuration of the chat.
+     * @param game   The game to announce.
+     * @return A future of the response, {@code null} if the request itself failed.
+     */
+    protected CompletableFuture<ApiResponse<Message>> sendGameAnnouncement(long chatId, ChatConfiguration config, Game game) {
+        String photo = photosFileIds.getOrDefault(game._id, game.info.thumbnail.toString());
+
+        return botApiClient.sendPhoto(chatId, photo, renders.caption(game, config), renders.markup(game))
+                .exceptionally(error -> null)
+                .thenApply(response -> {
+                    Message message = messageOf(response);
+                    if (message != null) capturePhotoFileId(game, message);
+                    return response;
+                });
+    }
+
+    /**
+     * Sends a single message listing multiple games to a chat asynchronously, in the format of the {@code /free} command.
+     *
+     * @param chatId The id of the chat.
+     * @param config The configuration of the chat.
+     * @param games  The games to announce.
+     * @return A future of the response, {@code null} if the request itself failed.
+     */
+    protected CompletableFuture<ApiResponse<Message>> sendCoalescedAnnouncement(long chatId, ChatConfiguration config, List<Game> games) {
+        return botApiClient.sendMessage(chatId, renders.coalescedText(games, config), renders.coalescedMarkup(games))
+                .exceptionally(error -> null);
+    }
+
+    /**
+     * Gets the sent message out of a Bot API response.
+     *
+     * @param response The response, {@code null} if the request itself failed.
+     * @return The sent message, {@code null} if it failed.
+     */
+    protected static Message messageOf(ApiResponse<Message> response) {
+        return response != null && Boolean.TRUE.equals(response.getOk()) ? response.getResult() : null;
+    }
+
+    /**
+     * Sends the eligible games of the announcement to a chat asynchronously.
+     *
+     * @param chatId  The id of the chat.
+     * @param config  The configuration of the chat.
+     * @param games   The games which the chat is eligible for, at least one.
+     * @param results The results of the batch which the chat belongs to.
+     * @return A future completed once the result of the announcement is added to the batch results.
+     */
+    protected CompletableFuture<Void> sendAnnouncement(long chatId, ChatConfiguration config, List<Game> games, BatchResults results) {
+        Histogram.Timer timer = Metrics.announcementsLatency.startTimer();
+        CompletableFuture<ApiResponse<Message>> send = games.size() == 1
+                ? sendGameAnnouncement(chatId, config, games.get(0))
+                : sendCoalescedAnnouncement(chatId, config, games);
+
+        return send.whenComplete((response, error) -> timer.observeDuration())
+                .thenCompose(response -> recordAnnouncement(chatId, response, games, results));
+    }
+
+    /**
+     * Adds the result of an announcement to the batch results.
+     *
+     * @param chatId   The id of the chat.
+     * @param response The response of the announcement, {@code null} if the request itself failed.
+     * @param games    The games which were included in the message.
+     * @param results  The results of the batch which the chat belongs to.
+     * @return A future completed once the result is added, after reading the members count of groups and channels.
+     */
+    protected CompletableFuture<Void> recordAnnouncement(long chatId, ApiResponse<Message> response, List<Game> games, BatchResults results) {
+        //Check if the message failed
+        Message message = messageOf(response);
+        if (message == null) return recordFailure(chatId, response, results); //It failed.
+
+        Metrics.announcementsSent.labels("sent").inc();
+
+        //It was sent, add it to the delivery ledger of the games.
+        for (Game game : games) redisAsyncCommands.sadd(game.keyPrefix + "delivered", String.valueOf(chatId));
+        results.delivered.add(String.valueOf(chatId));
+
+        ChatType chatType = ChatUtilities.getChatType(message.getChat());
+        if (chatType == UNKNOWN) return CompletableFuture.completedFuture(null);
+
+        //The minute since the announcement has started, for the reach over time analytics.
+        String minute = String.valueOf((System.currentTimeMillis() - startedAt) / 60_000);
+
+        //Increase the chats counter of that type, for each of the games.
+        for (Game game : games) results.increase(game.keyAnalytics, chatType.name().toLowerCase() + "s", 1);
+
+        //A private chat reaches a single user.
+        if (chatType == USER) {
+            for (Game game : games) results.increase(game.keyPrefix + "reached", minute, 1);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        //Increase the members counters for groups and channels.
+        if (chatType != GROUP && chatType != SUPERGROUP && chatType != CHANNEL)
+            return CompletableFuture.completedFuture(null);
+
+        //The counts are read from the cache, missing ones are fetched in the background and added once they are.
+        String counter = chatType == CHANNEL ? "channelsUsers" : "groupsUsers";
+        return memberCounts.get(chatId)
+                .handle((count, error) -> {
+                    if (count != null) {
+                        for (Game game : games) {
+                            results.increase(game.keyAnalytics, counter, count);
+                            results.increase(game.keyPrefix + "reached", minute, count);
+                        }
+                    } else {
+                        memberCounts.refresh(chatId, lateCount -> {
+                            for (Game game : games) increaseIfExists(game, counter, minute, lateCount);
+                        });
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * Handles a failed announcement depending on the kind of its failure.
+     *
+     * @param chatId   The id of the chat.
+     * @param response The failed response, {@code null} if the request itself failed.
+     * @param results  The results of the batch which the chat belongs to.
+     * @return A future completed once the failure is handled, after moving the configuration of migrated groups.
+     */
+    protected CompletableFuture<Void> recordFailure(long chatId, ApiResponse<Message> response, BatchResults results) {
+        //Stop all the announcements for the time requested by Telegram.
+        Integer retryAfter = SendFailure.retryAfter(response);
+        if (retryAfter != null) rateLimit.pause(retryAfter, SECONDS);
+
+        SendFailure failure = SendFailure.classify(response);
+        Metrics.announcementsSent.labels(failure.name().toLowerCase()).inc();
+
+        switch (failure) {
+            case TRANSIENT:
+                results.failed.add(results.members.get(chatId)); //Add the chat to the failed set.
+                break;
+            case MIGRATED:
+                //Move the configuration (unless the migration update did already), and announce to the supergroup.
+                long toChatId = SendFailure.migrateToChatId(response);
+                return CompletableFuture.runAsync(() -> db.migrateConfiguration(chatId, toChatId), migrations)
+                        .thenCompose(ignored -> {
+                            //The index moves along with the configuration, only its mapping has to be refreshed.
+                            if (compact) chatIndex.forget(chatId);
+                            String member = compact ? results.members.get(chatId) : String.valueOf(toChatId);
+                            return redisAsyncCommands.zadd(keyPending, MemberCountCache.unknownAudience, member);
+                        })
+                        .handle((added, error) -> {
+                            if (error != null) error.printStackTrace();
+                            return null;
+                        });
+            case PERMANENT:
+                //Drop the chat, and count it towards pruning if it can't be reached anymore.
+                String reason = SendFailure.permanentReason(response);
+                Metrics.announcementsUndeliverable.labels(reason).inc();
+                if (SendFailure.unreachableReasons.contains(reason)) results.undeliverable.add(String.valueOf(chatId));
+                break;
+            case REJECTED:
+                break; //Drop the chat, without counting it towards pruning.
+        }
+
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Increases a game's analytics counter and its users reached in a minute, unless the announcement was already completed.
+     *
+     * @param game    The game.
+     * @param counter The analytics counter field.
+     * @param minute  The minute since the announcement has started.
+     * @param amount  The amount to increase them by.
+     */
+    protected void increaseIfExists(Game game, String counter, String minute, long amount) {
+        redisAsyncCommands.eval(lateIncreaseScript, ScriptOutputType.INTEGER,
+                new String[]{game.keyAnalytics, game.keyPrefix + "reached"}, counter, minute, String.valueOf(amount));
+    }
+
+    /**
+     * Records the results of a batch of announcements, once they are all completed, using a single script call,
+     * which also removes the batch's chats from the in-flight set.
+     *
+     * @param batch   The ids of the batch's chats.
+     * @param sends   The futures of the batch's announcements.
+     * @param results The results of the batch.
+     */
+    protected void recordBatch(List<String> batch, List<CompletableFuture<Void>> sends, BatchResults results) {
+        batchesRecords.add(CompletableFuture.allOf(sends.toArray(new CompletableFuture[0])).thenCompose(ignored -> {
+            List<String> keys = new ArrayList<>(List.of(keyFailed, ChatsPruner.keyUndeliverable, keyInflight));
+            keys.addAll(results.increments.keySet());
+
+            String payload = gson.toJson(Map.of(
+                    "failed", results.failed,
+                    "undeliverable", results.undeliverable,
+                    "delivered", results.delivered,
+                    "chats", batch,
+                    "increments", results.increments
+            ));
+
+            return redisAsyncCommands.eval(recordScript, ScriptOutputType.INTEGER, keys.toArray(new String[0]), payload)
+                    .toCompletableFuture()
+                    .whenComplete((recorded, error) -> leased.removeAll(batch)) //Stop renewing their leases.
+                    .thenApply(recorded -> (Void) null);
+        }));
+    }
+
+    /**
+     * Waits for all the in-flight announcements to complete and for their batches to be recorded.
+     *
+     * @throws InterruptedException If interrupted while waiting, the unrecorded chats are returned once their leases expire.
+     */
+    protected void awaitBatchesRecords() throws InterruptedException {
+        try {
+            CompletableFuture.allOf(batchesRecords.toArray(new CompletableFuture[0])).get();
+        } catch (ExecutionException e) {
+            throw new CompletionException(e.getCause());
+        }
+        batchesRecords.clear();
+    }
+
+    /**
+     * Returns popped chats into the pending set.
+     *
+     * @param chats The ids of the chats with their audience scores.
+     */
+    @SuppressWarnings("unchecked")
+    protected void requeueRemaining(List<ScoredValue<String>> chats) {
+        ScoredValue<String>[] scoredValues = chats.toArray(new ScoredValue[0]);
+        redisCommands.zadd(keyPending, scoredValues);
+    }
+
+    /**
+     * Records that the worker is making progress, so its supervisor doesn't consider it stuck.
+     */
+    protected void progress() {
+        lastProgress = System.nanoTime();
+    }
+
+    /**
+     * Gets the time since the worker's last progress, excluding the time it's waiting for the rate limiter.
+     *
+     * @return The idle time in milliseconds.
+     */
+    public long idleTime() {
+        //The time spent waiting for the rate limiter is not counted.
+        long idleUntil = throttled ? throttledSince : System.nanoTime();
+        return NANOSECONDS.toMillis(Math.max(idleUntil - lastProgress, 0));
+    }
+
+    /**
+     * Gets the number of chats handled by the worker.
+     *
+     * @return The number of chats.
+     */
+    public long getHandledCount() {
+        return handledCount.get();
+    }
+
+    /**
+     * Stops the worker, it terminates on its next step, and requeues the chats it has popped but not sent to.
+     * Its heartbeat stops right away, so if it's stuck, the leases of its chats expire.
+     */
+    public void stop() {
+        stopped = true;
+        ScheduledFuture<?> heartbeat = this.heartbeat;
+        if (heartbeat != null) heartbeat.cancel(false);
+    }
+
+    /**
+     * Marks the worker's node as still working on the announcement, and renews the leases of its unrecorded chats.
+     */
+    protected void heartbeat() {
+        long deadline = System.currentTimeMillis() + nodeTimeout;
+        redisCommands.hset(keyNodes, nodeId, deadline + ":" + token);
+
+        //Only the chats which are still in-flight are renewed, the recorded and reaped ones are not re-added.
+        List<ScoredValue<String>> renewed = new ArrayList<>(leased.size());
+        for (String member : leased) renewed.add(ScoredValue.just(deadline, member));
+        if (!renewed.isEmpty()) renewLeases(renewed);
+
+        //Update the depths of the announcement's sets.
+        String id = announcement.id;
+        redisAsyncCommands.zcard(keyPending).thenCombine(redisAsyncCommands.bitcount(keyPendingUsers), Long::sum)
+                .thenAccept(count -> {
+                    if (!exited) Metrics.announcementsPending.labels(id).set(count);
+                });
+        redisAsyncCommands.scard(keyFailed).thenAccept(count -> {
+            if (!exited) Metrics.announcementsFailed.labels(id).set(count);
+        });
+        redisAsyncCommands.zcard(keyInflight).thenAccept(count -> {
+            if (!exited) Metrics.announcementsInflight.labels(id).set(count);
+        });
+    }
+
+    /**
+     * Stops reporting the depths of the announcement's sets from this node,
+     * so the nodes which don't finalize the announcement don't keep its gauges forever.
+     */
+    protected void removeGauges() {
+        exited = true;
+        Metrics.announcementsPending.remove(announcement.id);
+        Metrics.announcementsFailed.remove(announcement.id);
+        Metrics.announcementsInflight.remove(announcement.id);
+    }
+
+    /**
+     * Renews the leases of in-flight chats, only if they are still in the in-flight set.
+     *
+     * @param chats The members of the chats with their new lease deadlines.
+     */
+    @SuppressWarnings("unchecked")
+    protected void renewLeases(List<ScoredValue<String>> chats) {
+        ScoredValue<String>[] scoredValues = chats.toArray(new ScoredValue[0]);
+        redisCommands.zadd(keyInflight, ZAddArgs.Builder.xx(), scoredValues);
+    }
+
+    /**
+     * Beats the heartbeat from the heartbeats thread, a failed beat must not cancel the next ones.
+     */
+    protected void beat() {
+        if (stopped) return; //Its replacement may be beating for the same node already.
+        try {
+            heartbeat();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
     }
 
     @Override
     public void run() {
-        while (true) {
-            String chatIdString = redisCommands.spop(keyPending);
-            if (chatIdString == null) {
-                //Reached the end, requeue failed chats if that's possible.
-                requeueFailed();
+        heartbeat();
+        long interval = Math.max(nodeTimeout / 3, 1);
+        heartbeat = heartbeats.scheduleWithFixedDelay(this::beat, interval, interval, MILLISECONDS);
+        if (stopped) heartbeat.cancel(false); //Stopped before it was started.
+
+        try {
+            announce();
+        } finally {
+            heartbeat.cancel(false);
+            removeGauges();
+            redisCommands.eval(releaseScript, ScriptOutputType.INTEGER, new String[]{keyNodes}, nodeId, token);
+        }
+    }
+
+    protected void announce() {
+        while (!stopped) {
+            progress();
+
+            List<ScoredValue<String>> popped = popBatch();
+            if (popped.isEmpty()) {
+                progress();
+                try {
+                    //Wait for the in-flight announcements, so the failed ones are in the failed set.
+                    awaitBatchesRecords();
+                    //Return the chats of the crashed workers, if there were any.
+                    reapExpiredLeases();
+                    //Reached the end, requeue failed chats if that's possible.
+                    requeueFailed();
+                } catch (InterruptedException e) {
+                    return; //The worker has been terminated by interruption.
+                }
                 //Check if some chats got requeued.
-                if (redisCommands.scard(keyPending) != 0)
+                if (redisCommands.zcard(keyPending) != 0 || redisCommands.bitcount(keyPendingUsers) != 0)
                     continue; //New chats, continue to the next iteration.
                 else
                     break; //No more chats, terminate the worker.
             }
 
-            //The chat to announce to.
-            long chatId = Long.parseLong(chatIdString);
+            //The results of the batch, recorded once all its announcements are completed.
+            BatchResults results = new BatchResults();
 
-            //The configuration of the chat.
-            ChatConfiguration config = db.getConfiguration(chatId);
+            //The chats to announce to, ordered by their audience sizes.
+            List<String> batch = new ArrayList<>(popped.size());
+            List<Long> chatIds = new ArrayList<>(popped.size());
+            for (ScoredValue<String> chat : popped) {
+                batch.add(chat.getValue());
+                //A chat which its index is not found anymore gets the id 0, and is skipped.
+                long chatId = compact ? chatIndex.chatIdOf(Integer.parseInt(chat.getValue())) : Long.parseLong(chat.getValue());
+                chatIds.add(chatId);
+                results.members.put(chatId, chat.getValue());
+            }
 
-            //Check if the announcement should be skipped for this chat.
-            if (shouldSkipAnnouncement(config)) continue;
+            //The configurations of the chats.
+            Map<Long, ChatConfiguration> configs = db.getConfigurations(chatIds);
+            //The games which were already delivered to the chats, before a crash.
+            Map<Long, Set<Integer>> delivered = deliveredGames(chatIds);
 
-            //Consume a call from the rateLimit bucket.
-            try {
-                rateLimit.consume();
-            } catch (InterruptedException e) {
-                redisCommands.sadd(keyPending, chatIdString); //Requeue the chat id.
-                return; //The worker has been terminated by interruption.
-            }
+            List<CompletableFuture<Void>> sends = new ArrayList<>();
 
-            //Send the announcement.
-            Message message = sendAnnouncement(chatId, config);
-
-            //Check if the message failed
-            if (message == null) //It failed.
-                redisCommands.sadd(keyFailed, chatIdString); //Add the chat id to the failed set.
-            else { //It was sent.
-                ChatType chatType = ChatUtilities.getChatType(message.getChat());
-                if (chatType == UNKNOWN) continue;
-
-                //Increase the chats counter of that type.
-                redisCommands.incr(keyPrefix + chatType.name().toLowerCase() + "s");
-
-                //Increase the members counters for groups and channels.
-                if (chatType == GROUP || chatType == SUPERGROUP) {
-                    Integer count = silent.execute(new GetChatMembersCount().setChatId(chatId));
-                    if (count != null) redisCommands.incrby(keyPrefix + "groupsUsers", count);
-                } else if (chatType == CHANNEL) {
-                    Integer count = silent.execute(new GetChatMembersCount().setChatId(chatId));
-                    if (count != null) redisCommands.incrby(keyPrefix + "channelsUsers", count);
+            for (int i = 0; i < chatIds.size(); i++) {
+                long chatId = chatIds.get(i);
+                if (chatId == 0) continue;
+                ChatConfiguration config = configs.get(chatId);
+
+                //The games which the chat should receive, the announcement is skipped if there are none.
+                List<Game> games = announcement.eligibleGames(config);
+                Set<Integer> deliveredIds = delivered.getOrDefault(chatId, Set.of());
+                games.removeIf(game -> deliveredIds.contains(game._id));
+                if (games.isEmpty()) continue;
+
+                //Consume a call from the rate limiter, and wait for a free place in the in-flight window.
+                try {
+                    if (stopped) throw new InterruptedException();
+                    throttledSince = System.nanoTime();
+                    throttled = true;
+                    try {
+                        rateLimit.consume(chatId);
+                    } finally {
+                        throttled = false;
+                        progress();
+                    }
+                    window.acquire();
+                } catch (InterruptedException e) {
+                    List<ScoredValue<String>> remaining = popped.subList(i, popped.size());
+                    requeueRemaining(remaining); //Requeue the remaining chat ids, with their audience scores.
+                    recordBatch(batch, sends, results);
+                    return; //The worker has been terminated by interruption.
+                }
+
+                //Send the announcement, and free its place in the window once it's completed.
+                CompletableFuture<Void> send = sendAnnouncement(chatId, config, games, results)
+                        .whenComplete((ignored, error) -> window.release());
+                sends.add(send);
+                handledCount.incrementAndGet();
+                progress();
+
+                //Wait for the first announcement of a game to complete, so the rest reuse the uploaded photo.
+                if (games.size() == 1 && !photosFileIds.containsKey(games.get(0)._id)) {
+                    try {
+                        send.get();
+                    } catch (ExecutionException ignored) {
+                        //Failures are recorded by the send itself.
+                    } catch (InterruptedException e) {
+                        if (i + 1 < popped.size()) requeueRemaining(popped.subList(i + 1, popped.size()));
+                        recordBatch(batch, sends, results);
+                        return; //The worker has been terminated by interruption.
+                    }
                 }
             }
 
+            recordBatch(batch, sends, results);
+        }
+    }
+
+    /**
+     * The results of a batch of announcements, added to by the completion callbacks.
+     */
+    protected static class BatchResults {
+
+        /**
+         * The amounts to increase the analytics and reached hashes by, mapped by the hashes keys, then by the fields.
+         */
+        public final Map<String, Map<String, Long>> increments = new ConcurrentHashMap<>();
+
+        /**
+         * The members which represent the batch's chats in the announcement's keys, mapped by the chats' ids.
+         */
+        public final Map<Long, String> members = new ConcurrentHashMap<>();
+
+        /**
+         * The ids of the chats which the announcement failed to be sent to.
+         */
+        public final Queue<String> failed = new ConcurrentLinkedQueue<>();
+
+        /**
+         * The ids of the chats which the announcement failed permanently for.
+         */
+        public final Queue<String> undeliverable = new ConcurrentLinkedQueue<>();
+
+        /**
+         * The ids of the chats which the announcement was delivered to.
+         */
+        public final Queue<String> delivered = new ConcurrentLinkedQueue<>();
+
+        public void increase(String key, String field, long amount) {
+            increments.computeIfAbsent(key, ignored -> new ConcurrentHashMap<>()).merge(field, amount, Long::sum);
         }
     }
 }
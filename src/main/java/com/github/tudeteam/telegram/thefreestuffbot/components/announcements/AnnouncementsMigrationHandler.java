@@ -8,6 +8,9 @@ import org.bson.Document;
 import org.telegram.telegrambots.meta.api.objects.Message;
 import org.telegram.telegrambots.meta.api.objects.Update;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
 
@@ -15,10 +18,12 @@ public class AnnouncementsMigrationHandler implements Handler<Update> {
 
     protected final MongoCollection<Document> gamesCollection;
     protected final RedisCommands<String, String> commands;
+    protected final ChatIndex chatIndex;
 
     public AnnouncementsMigrationHandler(TheFreeStuffBot bot) {
         gamesCollection = bot.gamesCollection;
         commands = bot.redisCommands;
+        chatIndex = bot.chatIndex;
     }
 
     @Override
@@ -30,23 +35,37 @@ public class AnnouncementsMigrationHandler implements Handler<Update> {
         long fromChatId = message.getMigrateFromChatId();
         long toChatId = message.getMigrateToChatId();
 
+        //The ids of the announcements which might be in progress: the games' own, and the coalesced one.
+        List<String> announcementsIds = new ArrayList<>();
+        announcementsIds.add(Announcement.coalescedId);
         gamesCollection.find(and(
                 eq("status", "published"), //TODO: Change into 'accepted'.
                 eq("outgoing.telegram", true)
-        )).forEach(document -> {
-            String keyPrefix = "TheFreeStuffBot:ongoing:" + document.getInteger("_id") + ":";
-            String keyActive = keyPrefix + "active";
+        )).forEach(document -> announcementsIds.add(String.valueOf(document.getInteger("_id"))));
+
+        for (String announcementId : announcementsIds) {
+            String keyPrefix = Announcement.keyPrefixOf(announcementId);
+            String keyState = keyPrefix + "state";
             String keyPending = keyPrefix + "pending";
             String keyFailed = keyPrefix + "failed";
 
-            if (commands.get(keyActive) == null) return;
+            if (!commands.hexists(keyState, "active")) continue;
+
+            //In the compact layout the chat keeps its index, which moves along with its configuration.
+            if ("true".equals(commands.hget(keyState, "compact"))) continue;
+
+            //Move the group into the supergroup, keeping its audience score.
+            Double score = commands.zscore(keyPending, String.valueOf(fromChatId));
+            if (score != null) {
+                commands.zrem(keyPending, String.valueOf(fromChatId));
+                commands.zadd(keyPending, score, String.valueOf(toChatId));
+            }
 
-            long pendingCount = commands.lrem(keyPending, 0, String.valueOf(fromChatId));
-            long failedCount = commands.lrem(keyFailed, 0, String.valueOf(fromChatId));
+            if (commands.srem(keyFailed, String.valueOf(fromChatId)) != 0)
+                commands.sadd(keyFailed, String.valueOf(toChatId));
+        }
 
-            for (int i = 0; i < pendingCount; i++) commands.rpush(keyPending, String.valueOf(toChatId));
-            for (int i = 0; i < failedCount; i++) commands.rpush(keyFailed, String.valueOf(toChatId));
-        });
+        if (chatIndex != null) chatIndex.forget(fromChatId);
 
         return false; //The migration messages should not be consumed, so they get passed to all the bot's components.
     }
@@ -0,0 +1,91 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components.announcements;
+
+import com.github.tudeteam.telegram.thefreestuffbot.components.GamesWatcher;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.GameData;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+/**
+ * Runs the check for new announcements as soon as a game is set to be announced on Telegram.
+ * <p>
+ * The changes of the games are followed through the shared {@link GamesWatcher}, and the commands which set games
+ * to be announced wake the check directly. Polling is kept as a fallback, for when the change stream is not available
+ * (it requires a replica set), or when an event is missed.
+ */
+public class AnnouncementsTrigger {
+
+    /* Instance Fields */
+
+    protected final ScheduledExecutorService executor;
+    protected final Runnable check;
+    protected final GamesWatcher gamesWatcher;
+
+    /**
+     * Whether a check is already queued on the executor, so multiple wakes before it starts are merged into it.
+     */
+    protected final AtomicBoolean queued = new AtomicBoolean(false);
+
+    protected final Consumer<ChangeStreamDocument<GameData>> listener = this::onChange;
+    protected volatile boolean closed = false;
+
+    /* Constructor */
+
+    /**
+     * Creates a new trigger, and starts following the changes of the games and polling.
+     *
+     * @param executor     The single threaded executor to run the checks on.
+     * @param check        The check for new announcements.
+     * @param gamesWatcher The watcher of the games collection.
+     * @param pollInterval The interval of the fallback polling in minutes.
+     */
+    public AnnouncementsTrigger(ScheduledExecutorService executor, Runnable check,
+                                GamesWatcher gamesWatcher, long pollInterval) {
+        this.executor = executor;
+        this.check = check;
+        this.gamesWatcher = gamesWatcher;
+
+        executor.scheduleWithFixedDelay(this::wake, 0, pollInterval, MINUTES);
+        gamesWatcher.addListener(listener);
+    }
+
+    /* Instance Methods */
+
+    /**
+     * Queues a check for new announcements, unless one is already queued, or the trigger is closed.
+     */
+    public void wake() {
+        if (closed) return; //The executor may be shut down already.
+        if (!queued.compareAndSet(false, true)) return;
+
+        executor.execute(() -> {
+            queued.set(false);
+            check.run();
+        });
+    }
+
+    /**
+     * Wakes the check when a game is set to be announced on Telegram.
+     *
+     * @param change The change of the game.
+     */
+    protected void onChange(ChangeStreamDocument<GameData> change) {
+        if (change.getOperationType() == OperationType.DELETE) return;
+
+        GameData gameData = change.getFullDocument();
+        if (gameData != null && gameData.outgoing != null && gameData.outgoing.telegram) wake();
+    }
+
+    /**
+     * Stops following the changes of the games, the polling stops with the executor.
+     */
+    public void close() {
+        closed = true;
+        gamesWatcher.removeListener(listener);
+    }
+}
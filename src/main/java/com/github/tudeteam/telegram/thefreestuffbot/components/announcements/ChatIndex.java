@@ -0,0 +1,170 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components.announcements;
+
+import com.github.tudeteam.telegram.thefreestuffbot.TheFreeStuffBot;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.api.sync.RedisCommands;
+import org.bson.Document;
+
+import java.util.*;
+
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Indexes.ascending;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Updates.set;
+
+/**
+ * Assigns each chat a dense integer index, stored in the {@code index} field of its configuration,
+ * so the compact announcements layout can keep the pending and failed chats as small integers instead of chat ids.
+ * <p>
+ * The index to chat id mapping is kept in memory, as an array indexed by the chats' indices.
+ * The indices assigned by other nodes are looked up from MongoDB on the first miss.
+ * <p>
+ * Key: TheFreeStuffBot:chatIndex, a counter of the last assigned index.
+ * The indices start from 1, so 0 marks the unknown entries of the mapping.
+ */
+public class ChatIndex {
+
+    /* Static Fields */
+
+    protected static final String keyCounter = "TheFreeStuffBot:chatIndex";
+
+    /**
+     * Raises the counter to a minimum value, so it's never behind the indices stored in MongoDB.
+     */
+    protected static final String raiseScript = "local current = tonumber(redis.call('GET', KEYS[1]) or '0') " +
+            "if current < tonumber(ARGV[1]) then redis.call('SET', KEYS[1], ARGV[1]) return tonumber(ARGV[1]) end " +
+            "return current";
+
+    /* Instance Fields */
+
+    protected final MongoCollection<Document> configCollection;
+    protected final RedisCommands<String, String> redisCommands;
+
+    /**
+     * The chat ids mapped by their indices, 0 for the unknown ones.
+     */
+    protected long[] chatIds = new long[1024];
+
+    /**
+     * The indices of the chats in the mapping, by their ids, so a chat is forgotten without scanning the mapping.
+     */
+    protected final Map<Long, Integer> indices = new HashMap<>();
+
+    /* Constructor */
+
+    public ChatIndex(TheFreeStuffBot bot) {
+        this(bot.configCollection, bot.redisCommands);
+    }
+
+    /**
+     * Creates the chats index over a configurations collection, apart from a bot.
+     *
+     * @param configCollection The configurations collection.
+     * @param redisCommands    The redis commands, for the counter of the assigned indices.
+     */
+    public ChatIndex(MongoCollection<Document> configCollection, RedisCommands<String, String> redisCommands) {
+        this.configCollection = configCollection;
+        this.redisCommands = redisCommands;
+
+        //Keep the indices unique, the chats without an index are not included.
+        configCollection.createIndex(ascending("index"), new IndexOptions().unique(true).sparse(true));
+
+        //Load the mapping, and make sure the counter continues after the stored indices.
+        int maxIndex = 0;
+        for (Document document : configCollection.find(exists("index")).projection(include("_id", "index"))) {
+            int index = document.getInteger("index");
+            remember(index, document.getLong("_id"));
+            maxIndex = Math.max(maxIndex, index);
+        }
+
+        redisCommands.eval(raiseScript, ScriptOutputType.INTEGER, new String[]{keyCounter}, String.valueOf(maxIndex));
+    }
+
+    /* Instance Methods */
+
+    /**
+     * Assigns indices to chats which don't have one yet.
+     *
+     * @param chatIds The ids of the chats without indices.
+     * @return The indices of the chats, mapped by their ids, the chats without configurations are not included.
+     */
+    public Map<Long, Integer> assign(Collection<Long> chatIds) {
+        if (chatIds.isEmpty()) return new HashMap<>();
+
+        //Reserve a range of indices.
+        long last = redisCommands.incrby(keyCounter, chatIds.size());
+        long next = last - chatIds.size() + 1;
+
+        //Only set the indices of the chats which still don't have one, another node might have assigned them meanwhile.
+        List<UpdateOneModel<Document>> updates = new ArrayList<>(chatIds.size());
+        for (long chatId : chatIds)
+            updates.add(new UpdateOneModel<>(and(eq("_id", chatId), exists("index", false)), set("index", (int) next++)));
+        configCollection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+
+        //Read the indices which ended up stored.
+        return indicesOf(chatIds);
+    }
+
+    /**
+     * Gets the stored indices of chats.
+     *
+     * @param chatIds The ids of the chats.
+     * @return The indices of the chats, mapped by their ids, the chats without indices are not included.
+     */
+    public Map<Long, Integer> indicesOf(Collection<Long> chatIds) {
+        Map<Long, Integer> indices = new HashMap<>();
+
+        configCollection.find(in("_id", chatIds)).projection(include("_id", "index")).forEach(document -> {
+            Integer index = document.getInteger("index");
+            if (index == null) return;
+            indices.put(document.getLong("_id"), index);
+            remember(index, document.getLong("_id"));
+        });
+
+        return indices;
+    }
+
+    /**
+     * Gets the id of the chat which has an index.
+     *
+     * @param index The index of the chat.
+     * @return The id of the chat, {@code 0} if there's no chat with that index anymore.
+     */
+    public long chatIdOf(int index) {
+        synchronized (this) {
+            if (index < chatIds.length && chatIds[index] != 0) return chatIds[index];
+        }
+
+        Document document = configCollection.find(eq("index", index)).projection(include("_id")).first();
+        if (document == null) return 0;
+
+        remember(index, document.getLong("_id"));
+        return document.getLong("_id");
+    }
+
+    /**
+     * Forgets the index of a chat, so it's looked up again when it's needed
+     * (the configuration was migrated into another chat, along with its index).
+     *
+     * @param chatId The id of the chat.
+     */
+    public synchronized void forget(long chatId) {
+        Integer index = indices.remove(chatId);
+        if (index != null) chatIds[index] = 0;
+    }
+
+    protected synchronized void remember(int index, long chatId) {
+        if (index >= chatIds.length) chatIds = Arrays.copyOf(chatIds, Math.max(chatIds.length * 2, index + 1));
+
+        //Drop the previous mappings of both, so the two directions stay in sync.
+        if (chatIds[index] != 0) indices.remove(chatIds[index]);
+        Integer previous = indices.put(chatId, index);
+        if (previous != null && previous != index) chatIds[previous] = 0;
+
+        chatIds[index] = chatId;
+    }
+}
@@ -0,0 +1,95 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components.announcements;
+
+import com.github.tudeteam.telegram.thefreestuffbot.TheFreeStuffBot;
+import com.github.tudeteam.telegram.thefreestuffbot.components.ConfigurationDB;
+import io.lettuce.core.api.sync.RedisCommands;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Disables the announcements of the chats which can't be reached anymore
+ * (the bot was blocked or kicked, the chat was not found, or the user is deactivated),
+ * so they stop being seeded into the announcements.
+ * <p>
+ * The workers record each chat which an announcement failed for with one of these reasons
+ * (see {@link SendFailure#unreachableReasons}), and reset it once one is delivered to it.
+ * The chats which failed for a number of announcements in a row are pruned by the coordinator after each announcement.
+ * <p>
+ * Keys:
+ *
+ * <ul>
+ *     <li><b>TheFreeStuffBot:undeliverable:</b> A hash of the number of announcements in a row which found the chat unreachable,
+ *     mapped by the chats' ids.</li>
+ *     <li><b>TheFreeStuffBot:pruned:</b> A counter of the chats pruned in total.</li>
+ * </ul>
+ */
+public class ChatsPruner {
+
+    /* Static Fields */
+
+    public static final String keyUndeliverable = "TheFreeStuffBot:undeliverable";
+    public static final String keyPruned = "TheFreeStuffBot:pruned";
+
+    /* Instance Fields */
+
+    protected final ConfigurationDB db;
+    protected final RedisCommands<String, String> redisCommands;
+
+    /**
+     * The number of announcements in a row which have to fail permanently for a chat to be pruned.
+     */
+    protected final int threshold;
+
+    /* Constructor */
+
+    public ChatsPruner(TheFreeStuffBot bot) {
+        db = bot.configurationDB;
+        redisCommands = bot.redisCommands;
+        threshold = bot.options.pruneThreshold();
+    }
+
+    /* Instance Methods */
+
+    /**
+     * Disables the announcements of the chats which reached the failures threshold.
+     *
+     * @return The number of chats pruned.
+     */
+    public long prune() {
+        List<String> chatIds = new ArrayList<>();
+        redisCommands.hgetall(keyUndeliverable).forEach((chatId, failures) -> {
+            if (Integer.parseInt(failures) >= threshold) chatIds.add(chatId);
+        });
+
+        if (chatIds.isEmpty()) return 0;
+
+        List<Long> ids = new ArrayList<>(chatIds.size());
+        for (String chatId : chatIds) ids.add(Long.parseLong(chatId));
+
+        long pruned = db.disableConfigurations(ids);
+        redisCommands.hdel(keyUndeliverable, chatIds.toArray(new String[0]));
+        redisCommands.incrby(keyPruned, pruned);
+
+        return pruned;
+    }
+
+    /**
+     * Gets the number of chats pruned in total.
+     *
+     * @return The number of pruned chats.
+     */
+    public long getPrunedCount() {
+        String pruned = redisCommands.get(keyPruned);
+        return pruned == null ? 0 : Long.parseLong(pruned);
+    }
+
+    /**
+     * Gets the number of chats which failed permanently, but did not reach the threshold yet.
+     *
+     * @return The number of chats.
+     */
+    public long getUndeliverableCount() {
+        return redisCommands.hlen(keyUndeliverable);
+    }
+}
@@ -1,189 +1,651 @@
 package com.github.tudeteam.telegram.thefreestuffbot.components.announcements;
 
-import com.github.rami_sabbagh.telegram.alice_framework.utilities.SilentExecutor;
 import com.github.tudeteam.telegram.thefreestuffbot.TheFreeStuffBot;
+import com.github.tudeteam.telegram.thefreestuffbot.components.BotApiClient;
 import com.github.tudeteam.telegram.thefreestuffbot.components.ConfigurationDB;
+import com.github.tudeteam.telegram.thefreestuffbot.components.EligibilityIndex;
+import com.github.tudeteam.telegram.thefreestuffbot.components.Metrics;
+import com.github.tudeteam.telegram.thefreestuffbot.components.announcements.Announcement.Game;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.ChatConfiguration;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.Currency;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.GameData;
 import com.github.tudeteam.telegram.thefreestuffbot.structures.GameInfo;
 import com.github.tudeteam.telegram.thefreestuffbot.structures.TelegramAnalytics;
-import com.google.gson.Gson;
 import com.mongodb.client.MongoCollection;
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.RedisCommandTimeoutException;
+import io.lettuce.core.ScoredValue;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.api.async.RedisAsyncCommands;
 import io.lettuce.core.api.sync.RedisCommands;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
-import static com.mongodb.client.model.Filters.and;
-import static com.mongodb.client.model.Filters.eq;
+import static com.github.tudeteam.telegram.thefreestuffbot.structures.GameFlag.TRASH;
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Aggregates.project;
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Projections.include;
 import static com.mongodb.client.model.Sorts.ascending;
 import static com.mongodb.client.model.Updates.*;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
  * Checks the database for new game announcements, and processes them, then terminates.
  * <p>
+ * It runs on each node (instance) of the bot, but only the node holding the {@link CoordinatorLease} initializes
+ * and finalizes the announcements, the other nodes only help announcing the already initialized ones.
+ * <p>
+ * When multiple games are waiting to be announced, and none of them was already in progress,
+ * they are coalesced into a single announcement, so each chat gets one message listing all its eligible games.
+ * Too many games to fit in a single message are announced on their own instead.
+ * <p>
+ * The announcements are processed concurrently, each one is submitted to the announcements executor
+ * and finalized on its own once it's completed, so a large announcement doesn't hold back the ones after it.
+ * They share the global rate limit fairly, weighted by the number of games in each of them.
+ * <p>
  * The redis structure for announcements is:
  * <p>
- * Keys format: TheFreeStuffBot:ongoing:{game_id}:{field_id}
+ * Keys format: TheFreeStuffBot:ongoing:{announcement_id}:{field_id}
+ * <p>
+ * The announcement id is the game's id, or "bundle" for the coalesced announcement (only one can be in progress at a time).
  * <p>
  * Fields:
  *
  * <ul>
- *     <li><b>active:</b> A string "true" indicating that the announcement has been initialized.</li>
- *     <li><b>pending</b> A set of chat ids to announce to.</li>
- *     <li><b>failed:</b> A set of chat ids which failed, to be requeued (to pending) once the current pending is finished.</li>\
- *     <li><b>attempts:</b> The number of retry attempts remaining.</li>
+ *     <li><b>state:</b> A hash of the announcement's metadata:
+ *     <ul>
+ *         <li><b>active:</b> "true" indicating that the announcement has been initialized, it's set last.</li>
+ *         <li><b>attempts:</b> The number of retry attempts remaining.</li>
+ *         <li><b>started:</b> The time in milliseconds which the announcement was initialized at.</li>
+ *         <li><b>games:</b> The comma separated ids of the announcement's games, to resume it after restarts.</li>
+ *         <li><b>compact:</b> "true" if the announcement uses the compact layout.</li>
+ *     </ul>
+ *     </li>
+ *     <li><b>pending</b> A sorted set of chat ids to announce to, scored by the size of their audience,
+ *     so the largest channels and groups are announced to first.</li>
+ *     <li><b>pendingUsers:</b> Only in the compact layout, a bitmap of the private chats to announce to, by their indices.
+ *     They are popped after the pending set, since they all have the lowest audience score.</li>
+ *     <li><b>failed:</b> A set of chat ids which failed transiently, to be requeued (to pending) after a backoff once the current pending is finished.</li>
+ *     <li><b>inflight:</b> A sorted set of the chat ids popped by the workers and not recorded yet,
+ *     scored by the time in milliseconds which they are returned to pending after (if their worker crashed).</li>
+ *     <li><b>nodes:</b> A hash of the ids of the nodes running workers for the announcement,
+ *     mapped to the time in milliseconds which they are considered dead after, unless they send a heartbeat,
+ *     and the token of the worker which sent it, separated by a colon.</li>
+ * </ul>
+ * <p>
+ * The analytics are kept for each game separately, under its own id (even when it's coalesced):
  *
- *     <li><b>users:</b>A counter of announcements sent to users.</li>
- *     <li><b>groups:</b>A counter of announcements sent to groups.</li>
- *     <li><b>supergroups:</b>A counter of announcements sent to supergroups.</li>
- *     <li><b>channels:</b>A counter of announcements sent to channels.</li>
- *     <li><b>groupsUsers:</b>A counter of the number of users in groups which the announcement was sent to.</li>
- *     <li><b>channelsUsers:</b>A counter of the number of users in channels which the announcement was sent to.</li>
+ * <ul>
+ *     <li><b>analytics:</b>A hash of the analytics counters:
+ *     <ul>
+ *         <li><b>users:</b>A counter of announcements sent to users.</li>
+ *         <li><b>groups:</b>A counter of announcements sent to groups.</li>
+ *         <li><b>supergroups:</b>A counter of announcements sent to supergroups.</li>
+ *         <li><b>channels:</b>A counter of announcements sent to channels.</li>
+ *         <li><b>groupsUsers:</b>A counter of the number of users in groups which the announcement was sent to.</li>
+ *         <li><b>channelsUsers:</b>A counter of the number of users in channels which the announcement was sent to.</li>
+ *     </ul>
+ *     </li>
+ *     <li><b>reached:</b>A hash of the number of users reached in each minute since the announcement has started,
+ *     mapped by the minute's index.</li>
+ *     <li><b>delivered:</b>A set of the chat ids which the game was delivered to, checked before retrying a chat.</li>
  * </ul>
+ * <p>
+ * The global rate limit of the messages is shared by all the nodes through the {@code TheFreeStuffBot:rateLimit} key,
+ * see {@link RedisTokenBucket}, so a pause asked by Telegram on one node holds back all of them.
+ * <p>
+ * Additionally, the Telegram file ids of the games' photos are stored in the {@code TheFreeStuffBot:photos} hash,
+ * mapped by the games' ids. They are captured from the first successful announcement, and are kept after it's completed,
+ * so the inline queries can use them too.
+ * <p>
+ * In the compact layout, the chats in the pending, pendingUsers, failed and inflight keys are identified by their
+ * dense {@link ChatIndex} indices instead of their ids, which are shorter strings, fit in intsets and bitmaps,
+ * and are mapped back to the chat ids from memory. The chats ids are used otherwise.
+ * <p>
+ * The multi-key operations (popping, requeueing, recording a batch and completing) are Lua scripts,
+ * so they are atomic across all the nodes, and take a single round trip each.
  */
 public class CheckDatabase implements Runnable {
 
     /* Static Fields */
 
+    /**
+     * The key of the redis hash which holds the Telegram file ids of the games' photos.
+     */
+    public final static String keyPhotos = "TheFreeStuffBot:photos";
+
+    /**
+     * The key of the redis string which holds the state of the global rate limit, shared by all the nodes.
+     */
+    public final static String keyRateLimit = "TheFreeStuffBot:rateLimit";
+
     /**
      * The number of retry attempts for failed announcements.
      */
     protected final static int retryAttempts = 3;
-    protected final static int workersCount = 5;
-    protected final Gson gson = new Gson();
+    /**
+     * The time to wait before the first retry of failed announcements in milliseconds, doubled for each next attempt.
+     */
+    protected final static long retryBackoff = 5_000;
+    /**
+     * The number of chat ids streamed from MongoDB and added to the pending set at once when seeding an announcement.
+     */
+    protected final static int seedingBatchSize = 1000;
+    /**
+     * The analytics counters fields of each game.
+     */
+    protected final static String[] analyticsFields = {"users", "groups", "supergroups", "channels", "groupsUsers", "channelsUsers"};
+    /**
+     * Checks whether an announcement is completed: its pending and in-flight sets are empty,
+     * and none of the nodes is still running a worker for it.
+     * If it's completed, returns 1 followed by the analytics and reached hashes of each game (flattened), otherwise returns 0.
+     */
+    protected final static String completionScript = "if redis.call('ZCARD', KEYS[1]) ~= 0 or redis.call('ZCARD', KEYS[2]) ~= 0 " +
+            "or redis.call('BITCOUNT', KEYS[4]) ~= 0 then return {0} end " +
+            "for _, deadline in ipairs(redis.call('HVALS', KEYS[3])) do " +
+            "if tonumber(string.match(deadline, '^%d+')) > tonumber(ARGV[1]) then return {0} end end " +
+            "local result = {1} " +
+            "for i = 5, #KEYS do result[#result + 1] = redis.call('HGETALL', KEYS[i]) end " +
+            "return result";
 
     /* Instance Fields */
 
-    protected final RateLimitBucket rateLimitBucket = new RateLimitBucket(20); //20 announcements per second.
+    /**
+     * The ids of the announcements submitted on this node, which are not done yet.
+     */
+    protected final Set<String> runningAnnouncements = ConcurrentHashMap.newKeySet();
+    /**
+     * The ids of the games of the announcements submitted on this node, which are not done yet.
+     */
+    protected final Set<Integer> runningGames = ConcurrentHashMap.newKeySet();
 
     //Blank finals.
-    protected final SilentExecutor silent;
+    protected final RateLimiter rateLimiter;
+    protected final BotApiClient botApiClient;
+    protected final MemberCountCache memberCountCache;
+    protected final CoordinatorLease coordinatorLease;
+    protected final ChatsPruner chatsPruner;
+    protected final ChatIndex chatIndex;
+    protected final AnnouncementSupervisor supervisor;
     protected final ExecutorService executor;
     protected final MongoCollection<Document> configCollection;
     protected final MongoCollection<Document> gamesCollection;
     protected final RedisCommands<String, String> redisCommands;
+    protected final RedisAsyncCommands<String, String> redisAsyncCommands;
     protected final ConfigurationDB db;
+    /**
+     * The in-memory index of the chats configurations, {@code null} when the audiences are queried from the database.
+     */
+    protected final EligibilityIndex eligibilityIndex;
+    protected final int batchSize;
+    protected final int windowSize;
+    protected final boolean coalesceAnnouncements;
+    protected final int coalescedAnnouncementsLimit;
+    protected final long nodeTimeout;
 
     /* Constructor */
 
     public CheckDatabase(TheFreeStuffBot bot) {
-        silent = bot.silent;
-        executor = bot.executor;
+        botApiClient = bot.botApiClient;
+        memberCountCache = bot.memberCountCache;
+        coordinatorLease = bot.coordinatorLease;
+        chatsPruner = bot.chatsPruner;
+        chatIndex = bot.chatIndex;
+        supervisor = bot.announcementSupervisor;
+        executor = Executors.newFixedThreadPool(bot.options.maxConcurrentAnnouncements(), runnable -> {
+            Thread thread = new Thread(runnable, "CheckDatabase-Announcement");
+            thread.setDaemon(true);
+            return thread;
+        });
         configCollection = bot.configCollection;
         gamesCollection = bot.gamesCollection;
         redisCommands = bot.redisCommands;
+        redisAsyncCommands = bot.redisAsyncCommands;
+        rateLimiter = new RateLimiter(
+                new RedisTokenBucket(redisCommands, keyRateLimit, 30, 1, SECONDS), //30 messages per second in total, on all the nodes.
+                () -> new TokenBucket(1, 1, SECONDS), //1 message per second for each chat.
+                () -> new TokenBucket(20, 1, MINUTES), //20 messages per minute for each group.
+                10_000 //The maximum number of chats and groups buckets to keep.
+        );
         db = bot.configurationDB;
+        eligibilityIndex = bot.configurationDB.eligibilityIndex;
+        batchSize = bot.options.announcementsBatchSize();
+        windowSize = bot.options.announcementsWindowSize();
+        coalesceAnnouncements = bot.options.coalesceAnnouncements();
+        coalescedAnnouncementsLimit = bot.options.coalescedAnnouncementsLimit();
+        nodeTimeout = bot.options.announcementsNodeTimeout();
     }
 
     /* Instance Methods */
 
+    /**
+     * Constructs the filter of the chats which are eligible to receive the announcement of a game.
+     * It applies the same rules as {@link Announcement#shouldSkipAnnouncement(ChatConfiguration, GameInfo)}.
+     *
+     * @param gameInfo The information of the game to announce.
+     * @return The filter of the chats' configurations.
+     */
+    protected Bson audienceFilter(GameInfo gameInfo) {
+        List<Bson> filters = new ArrayList<>();
+
+        //The chat has the announcements enabled.
+        filters.add(eq("enabled", true));
+        //The chat accepts trash games, if it's a trash game.
+        if (gameInfo.hasFlag(TRASH)) filters.add(eq("trash", true));
+        //The game's price is not lower than the minimum price set for the chat, in the chat's currency.
+        filters.add(or(
+                and(eq("currency", Currency.USD.name()), lte("minPrice", gameInfo.org_price.inCurrency(Currency.USD))),
+                and(eq("currency", Currency.EUR.name()), lte("minPrice", gameInfo.org_price.inCurrency(Currency.EUR)))
+        ));
+
+        return and(filters);
+    }
+
+    /**
+     * Constructs the filter of the chats which are eligible to receive at least one of the announcement's games.
+     *
+     * @param announcement The announcement.
+     * @return The filter of the chats' configurations.
+     */
+    protected Bson audienceFilter(Announcement announcement) {
+        if (announcement.games.size() == 1) return audienceFilter(announcement.games.get(0).info);
+        if (announcement.games.isEmpty()) return eq("_id", null);
+
+        List<Bson> filters = new ArrayList<>();
+        for (Game game : announcement.games) filters.add(audienceFilter(game.info));
+        return or(filters);
+    }
+
     /**
      * Initializes the announcement data structure on the redis database.
      * Unless if it was already initialized.
+     * <p>
+     * If seeding the chats fails or takes over a minute, the partially seeded keys are deleted and the announcement
+     * is left uninitialized, for the next check to retry.
      *
-     * @param gameDocument The MongoDB document of the game to announce.
+     * @param announcement The announcement to initialize.
      */
-    protected void initializeAnnouncement(Document gameDocument) {
-        //The prefix of all the redis keys for this game's announcement.
-        String keyPrefix = "TheFreeStuffBot:ongoing:" + gameDocument.getInteger("_id") + ":";
-        String keyActive = keyPrefix + "active";
+    protected void initializeAnnouncement(Announcement announcement) {
+        //The prefix of all the redis keys for this announcement.
+        String keyPrefix = announcement.keyPrefix;
         String keyPending = keyPrefix + "pending";
         String keyFailed = keyPrefix + "failed";
-        String keyAttempts = keyPrefix + "attempts";
-        String[] analyticsFields = {"users", "groups", "supergroups", "channels", "groupsUsers", "channelsUsers"};
+        String keyPendingUsers = keyPrefix + "pendingUsers";
+        boolean compact = chatIndex != null;
 
         //Check if the announcement was not already initialized.
-        if (redisCommands.exists(keyActive) == 0) {
-            //Create the set of chat ids to announce to.
-            //TODO: Use MongoDB's aggregation framework.
-            configCollection.find(eq("enabled", true)).forEach(configDocument ->
-                    redisCommands.sadd(keyPending, configDocument.getLong("_id").toString()));
+        if (!redisCommands.hexists(announcement.keyState, "active")) {
+            //Create the sorted set of chat ids to announce to, filtered on the server side and added in pipelined chunks,
+            //scored by their audience sizes.
+            List<Long> chunk = new ArrayList<>(seedingBatchSize);
+            List<CompletableFuture<?>> futures = new ArrayList<>();
+
+            //The indices of the chunk's chats, for the compact layout.
+            Map<Long, Integer> indices = new HashMap<>();
+
+            if (eligibilityIndex != null) {
+                //The eligible chats are known in memory, only their stored indices are read for the compact layout.
+                List<GameInfo> games = new ArrayList<>();
+                for (Game game : announcement.games) games.add(game.info);
+
+                for (long chatId : eligibilityIndex.eligibleChats(games)) {
+                    chunk.add(chatId);
+                    if (chunk.size() < seedingBatchSize) continue;
+
+                    futures.add(compact ? seedCompactChunk(keyPending, keyPendingUsers, List.copyOf(chunk), chatIndex.indicesOf(chunk))
+                            : seedChunk(keyPending, List.copyOf(chunk)));
+                    chunk.clear();
+                }
+
+                if (compact && !chunk.isEmpty()) indices.putAll(chatIndex.indicesOf(chunk));
+            } else {
+                configCollection.aggregate(List.of(
+                        match(audienceFilter(announcement)),
+                        project(include("_id", "index"))
+                )).batchSize(seedingBatchSize).forEach(configDocument -> {
+                    chunk.add(configDocument.getLong("_id"));
+                    Integer index = configDocument.getInteger("index");
+                    if (index != null) indices.put(configDocument.getLong("_id"), index);
+                    if (chunk.size() < seedingBatchSize) return;
+
+                    futures.add(compact ? seedCompactChunk(keyPending, keyPendingUsers, List.copyOf(chunk), Map.copyOf(indices))
+                            : seedChunk(keyPending, List.copyOf(chunk)));
+                    chunk.clear();
+                    indices.clear();
+                });
+            }
+
+            if (!chunk.isEmpty())
+                futures.add(compact ? seedCompactChunk(keyPending, keyPendingUsers, chunk, indices) : seedChunk(keyPending, chunk));
+            try {
+                if (!LettuceFutures.awaitAll(1, MINUTES, futures.toArray(new Future[0])))
+                    throw new RedisCommandTimeoutException("Seeding the chats of announcement " + announcement.id + " timed out");
+            } catch (RuntimeException e) {
+                //Don't leave a partially seeded announcement behind, it's not marked as active,
+                //so the next check seeds it again from scratch.
+                for (CompletableFuture<?> future : futures) future.cancel(false);
+                redisCommands.del(keyPending, keyPendingUsers);
+                throw e;
+            }
+
             //Make sure to wipe the failed chats ids set (if it was leftover by the system somehow).
             redisCommands.del(keyFailed);
-            //Set the attempts counter.
-            redisCommands.set(keyAttempts, String.valueOf(retryAttempts));
-            //Clear the analytics counters.
-            for (String field : analyticsFields) redisCommands.set(keyPrefix + field, "0");
-            //Set the announcement as initialized.
-            redisCommands.set(keyActive, "true");
+            //Clear the analytics counters of each game.
+            Map<String, String> counters = new HashMap<>();
+            for (String field : analyticsFields) counters.put(field, "0");
+            for (Game game : announcement.games) redisCommands.hset(game.keyAnalytics, counters);
+
+            //The games of the announcement.
+            StringJoiner gamesIds = new StringJoiner(",");
+            for (Game game : announcement.games) gamesIds.add(String.valueOf(game._id));
+
+            //Set the metadata, and set the announcement as initialized, at once.
+            Map<String, String> state = new LinkedHashMap<>();
+            state.put("attempts", String.valueOf(retryAttempts));
+            state.put("games", gamesIds.toString());
+            state.put("started", String.valueOf(System.currentTimeMillis())); //For the reach over time analytics.
+            if (compact) state.put("compact", "true");
+            state.put("active", "true");
+            redisCommands.hset(announcement.keyState, state);
+        }
+    }
+
+    /**
+     * Adds a chunk of chats to the pending set of an announcement, scored by their audience sizes.
+     *
+     * @param keyPending The key of the pending set.
+     * @param chatIds    The ids of the chats.
+     * @return A future completed once they are added.
+     */
+    protected CompletableFuture<Long> seedChunk(String keyPending, List<Long> chatIds) {
+        return memberCountCache.audienceScores(chatIds).thenCompose(scores -> addScored(keyPending, scores));
+    }
+
+    /**
+     * Adds a chunk of chats to the pending keys of an announcement in the compact layout, by their indices:
+     * the groups and channels into the pending set, scored by their audience sizes, and the private chats into the bitmap.
+     *
+     * @param keyPending      The key of the pending set.
+     * @param keyPendingUsers The key of the pending private chats bitmap.
+     * @param chatIds         The ids of the chats.
+     * @param indices         The indices of the chats which already have one, the rest get assigned.
+     * @return A future completed once they are added.
+     */
+    protected CompletableFuture<?> seedCompactChunk(String keyPending, String keyPendingUsers, List<Long> chatIds,
+                                                    Map<Long, Integer> indices) {
+        Map<Long, Integer> chunkIndices = new HashMap<>(indices);
+        List<Long> unindexed = new ArrayList<>();
+        for (long chatId : chatIds) if (!chunkIndices.containsKey(chatId)) unindexed.add(chatId);
+        chunkIndices.putAll(chatIndex.assign(unindexed));
+
+        return memberCountCache.audienceScores(chatIds).thenCompose(scores -> {
+            List<ScoredValue<String>> groups = new ArrayList<>();
+            List<CompletableFuture<?>> futures = new ArrayList<>();
+
+            for (ScoredValue<String> score : scores) {
+                Integer index = chunkIndices.get(Long.parseLong(score.getValue()));
+                if (index == null) continue; //The configuration was deleted meanwhile.
+
+                if (Long.parseLong(score.getValue()) > 0) //Private chats.
+                    futures.add(redisAsyncCommands.setbit(keyPendingUsers, index, 1).toCompletableFuture());
+                else
+                    groups.add(ScoredValue.just(score.getScore(), String.valueOf(index)));
+            }
+
+            if (!groups.isEmpty()) futures.add(addScored(keyPending, groups));
+            return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+        });
+    }
+
+    /**
+     * Adds scored values to a sorted set.
+     *
+     * @param key    The key of the sorted set.
+     * @param values The values with their scores.
+     * @return A future completed once they are added.
+     */
+    @SuppressWarnings("unchecked")
+    protected CompletableFuture<Long> addScored(String key, List<ScoredValue<String>> values) {
+        ScoredValue<String>[] scoredValues = values.toArray(new ScoredValue[0]);
+        return redisAsyncCommands.zadd(key, scoredValues).toCompletableFuture();
+    }
+
+    /**
+     * Gets the number of users reached in each minute of a game's announcement.
+     *
+     * @param reached The reached hash of the game.
+     * @return The users reached in each minute, indexed by the minute since the announcement has started.
+     */
+    protected static int[] usersReachedPerMinute(Map<String, String> reached) {
+        int minutes = 0;
+        for (String minute : reached.keySet()) minutes = Math.max(minutes, Integer.parseInt(minute) + 1);
+
+        int[] usersReachedPerMinute = new int[minutes];
+        reached.forEach((minute, users) -> usersReachedPerMinute[Integer.parseInt(minute)] = Integer.parseInt(users));
+        return usersReachedPerMinute;
+    }
+
+    /**
+     * Converts a flattened hash, as returned by HGETALL inside a script, into a map.
+     *
+     * @param flattened The fields and values of the hash, interleaved.
+     * @return The fields of the hash mapped to their values.
+     */
+    protected static Map<String, String> hashOf(Object flattened) {
+        List<?> list = (List<?>) flattened;
+        Map<String, String> hash = new HashMap<>();
+        for (int i = 0; i + 1 < list.size(); i += 2) hash.put(String.valueOf(list.get(i)), String.valueOf(list.get(i + 1)));
+        return hash;
+    }
+
+    /**
+     * Checks whether an announcement is completed, and reads the analytics of its games if so, in a single round trip.
+     *
+     * @param announcement The announcement to check.
+     * @return The analytics and reached hashes of each game (interleaved), {@code null} if it's not completed.
+     */
+    protected List<Object> completedAnalytics(Announcement announcement) {
+        List<String> keys = new ArrayList<>();
+        keys.add(announcement.keyPrefix + "pending");
+        keys.add(announcement.keyPrefix + "inflight");
+        keys.add(announcement.keyPrefix + "nodes");
+        keys.add(announcement.keyPrefix + "pendingUsers");
+        for (Game game : announcement.games) {
+            keys.add(game.keyAnalytics);
+            keys.add(game.keyPrefix + "reached");
         }
+
+        List<Object> result = redisCommands.eval(completionScript, ScriptOutputType.MULTI,
+                keys.toArray(new String[0]), String.valueOf(System.currentTimeMillis()));
+        if (result.isEmpty() || ((Number) result.get(0)).longValue() == 0) return null;
+        return result.subList(1, result.size());
     }
 
-    protected void deleteAnnouncement(Document gameDocument) {
-        String keyPrefix = "TheFreeStuffBot:ongoing:" + gameDocument.getInteger("_id") + ":";
-        String[] fields = {"active", "pending", "failed", "attempts",
-                "users", "groups", "supergroups", "channels", "groupsUsers", "channelsUsers"};
+    /**
+     * Saves the analytics of the announcement's games into MongoDB, marks them as announced,
+     * and deletes the announcement data from redis.
+     *
+     * @param announcement       The completed announcement.
+     * @param completedAnalytics The analytics of the announcement's games, as read by {@link #completedAnalytics(Announcement)}.
+     */
+    protected void finalizeAnnouncement(Announcement announcement, List<Object> completedAnalytics) {
+        for (int i = 0; i < announcement.games.size(); i++) {
+            Game game = announcement.games.get(i);
+            Map<String, String> counters = hashOf(completedAnalytics.get(i * 2));
+            Map<String, String> reached = hashOf(completedAnalytics.get(i * 2 + 1));
+
+            //Get the analytics data of the game.
+            TelegramAnalytics analytics = new TelegramAnalytics();
+
+            analytics.reach.users = Integer.parseInt(counters.getOrDefault("users", "0"));
+            analytics.reach.groups = Integer.parseInt(counters.getOrDefault("groups", "0"));
+            analytics.reach.supergroups = Integer.parseInt(counters.getOrDefault("supergroups", "0"));
+            analytics.reach.channels = Integer.parseInt(counters.getOrDefault("channels", "0"));
+            analytics.reach.groupsUsers = Integer.parseInt(counters.getOrDefault("groupsUsers", "0"));
+            analytics.reach.channelsUsers = Integer.parseInt(counters.getOrDefault("channelsUsers", "0"));
+            analytics.usersReachedPerMinute = usersReachedPerMinute(reached);
 
-        for (int i = 0; i < fields.length; i++) fields[i] = keyPrefix + fields[i];
+            //Mark the game as announced for Telegram, and set the analytics data.
+            gamesCollection.updateOne(eq("_id", game._id), combine(
+                    unset("outgoing.telegram"),
+                    set("analytics.telegram", analytics)
+            ));
+        }
 
-        System.out.println("Failed chats count: " + redisCommands.scard(fields[2]));
-        redisCommands.del(fields);
+        //Delete the announcement data from redis.
+        deleteAnnouncement(announcement);
+    }
+
+    protected void deleteAnnouncement(Announcement announcement) {
+        List<String> keys = new ArrayList<>();
+        for (String field : new String[]{"state", "pending", "pendingUsers", "failed", "nodes", "inflight"})
+            keys.add(announcement.keyPrefix + field);
+        for (Game game : announcement.games) {
+            keys.add(game.keyAnalytics);
+            keys.add(game.keyPrefix + "delivered");
+            keys.add(game.keyPrefix + "reached");
+        }
+
+        redisCommands.del(keys.toArray(new String[0]));
+
+        //Stop reporting the depths of the announcement's sets.
+        Metrics.announcementsPending.remove(announcement.id);
+        Metrics.announcementsFailed.remove(announcement.id);
+        Metrics.announcementsInflight.remove(announcement.id);
+    }
+
+    /**
+     * Announces an announcement's games to all the eligible chats, and finalizes it once it's completed.
+     * <p>
+     * Only the coordinator initializes and finalizes the announcement, the other nodes skip it if it's not initialized.
+     *
+     * @param announcement The announcement to process.
+     * @return {@code true} if the announcement was completed.
+     */
+    protected boolean processAnnouncement(Announcement announcement) {
+        if (coordinatorLease.isHeld()) {
+            //Make sure the announcement structure is initialized on the redis database.
+            initializeAnnouncement(announcement);
+        } else if (!redisCommands.hexists(announcement.keyState, "active")) {
+            return false; //Wait for the coordinator to initialize it.
+        }
+
+        //Prepare the captions and keyboards of the games once, for all the chats.
+        AnnouncementRenders renders = new AnnouncementRenders(announcement);
+        //Take a share of the rate limit, weighted by the number of games.
+        RateLimiter.Share share = rateLimiter.openShare(Math.max(announcement.games.size(), 1));
+
+        //Run the worker of the announcement, replaced by the supervisor if it crashes or gets stuck.
+        try {
+            if (!supervisor.supervise(announcement, () -> new AnnouncementWorker(announcement, renders,
+                    botApiClient, memberCountCache, chatIndex, db, share, redisCommands, redisAsyncCommands, batchSize, windowSize,
+                    coordinatorLease.nodeId, nodeTimeout)))
+                return false; //Gave up on the announcement, it's resumed by the next check.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            share.close();
+        }
+
+        //Only the coordinator finalizes the announcement.
+        if (!coordinatorLease.isHeld()) return false;
+
+        //Check if the pending or in-flight sets are not empty (the announcement was not completed, and the workers died for some reason),
+        //or if the workers of other nodes are still running.
+        List<Object> completedAnalytics = completedAnalytics(announcement);
+        if (completedAnalytics == null)
+            return false; //Prevent the games from being marked as announced. //TODO: Report the accident.
+
+        finalizeAnnouncement(announcement, completedAnalytics);
+
+        //Disable the chats which keep failing, so the next announcements don't waste sends on them.
+        Metrics.chatsPruned.inc(chatsPruner.prune());
+
+        return true;
+    }
+
+    /**
+     * Submits an announcement to be processed concurrently with the others, unless it's already submitted on this node.
+     *
+     * @param announcement The announcement to submit.
+     */
+    protected void submitAnnouncement(Announcement announcement) {
+        if (!runningAnnouncements.add(announcement.id)) return;
+        for (Game game : announcement.games) runningGames.add(game._id);
+
+        executor.execute(() -> {
+            try {
+                processAnnouncement(announcement);
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                for (Game game : announcement.games) runningGames.remove(game._id);
+                runningAnnouncements.remove(announcement.id);
+            }
+        });
     }
 
     @Override
-    public void run() {
+    public synchronized void run() {
         try {
-            //Search for a game announcement which is 'accepted' and set to be published on Telegram.
-            gamesCollection.find(and(
+            //Search for the game announcements which are 'accepted' and set to be published on Telegram.
+            Map<Integer, Game> games = new LinkedHashMap<>();
+            gamesCollection.withDocumentClass(GameData.class).find(and(
                     eq("status", "published"), //TODO: Change into 'accepted'.
                     eq("outgoing.telegram", true)
             ))
+                    .projection(include("_id", "info"))
                     .sort(ascending("published")) //Sort the results by the published time, for proper order.
-                    .forEach(gameDocument -> { //Now for each game that meets the criteria, announce it on Telegram.
-                        //The redis keys prefix for this game announcement.
-                        String keyPrefix = "TheFreeStuffBot:ongoing:" + gameDocument.getInteger("_id") + ":";
-
-                        //Deserialize the game's information.
-                        GameInfo gameInfo = gson.fromJson(gameDocument.get("info", Document.class).toJson(), GameInfo.class);
-
-                        //Make sure the announcement structure is initialized on the redis database.
-                        initializeAnnouncement(gameDocument);
-
-                        //Start the workers of the announcement.
-                        List<Future<?>> futures = new ArrayList<>();
-                        for (int i = 0; i < workersCount; i++)
-                            futures.add(executor.submit(new AnnouncementWorker(gameDocument.getInteger("_id"),
-                                    gameInfo, silent, db, rateLimitBucket, redisCommands)));
-
-                        //Wait for all the workers to finish.
-                        for (Future<?> future : futures) {
-                            try {
-                                future.get();
-                            } catch (InterruptedException e) {
-                                break;
-                            } catch (ExecutionException e) {
-                                System.err.println("An announcement worker has crashed!!!");
-                                e.printStackTrace();
-                                //TODO: Start a replacement worker.
-                            }
-                        }
-
-                        //Check if the pending set is not empty (the announcement was not completed, and the workers died for some reason).
-                        if (redisCommands.scard(keyPrefix + "pending") != 0)
-                            return; //Prevent the game from being marked as announced. //TODO: Report the accident.
-
-                        //Get the analytics data of the announcement.
-                        TelegramAnalytics analytics = new TelegramAnalytics();
-
-                        analytics.reach.users = Integer.parseInt(redisCommands.get(keyPrefix + "users"));
-                        analytics.reach.groups = Integer.parseInt(redisCommands.get(keyPrefix + "groups"));
-                        analytics.reach.supergroups = Integer.parseInt(redisCommands.get(keyPrefix + "supergroups"));
-                        analytics.reach.channels = Integer.parseInt(redisCommands.get(keyPrefix + "channels"));
-                        analytics.reach.groupsUsers = Integer.parseInt(redisCommands.get(keyPrefix + "groupsUsers"));
-                        analytics.reach.channelsUsers = Integer.parseInt(redisCommands.get(keyPrefix + "channelsUsers"));
-
-                        //Mark the game as announced for Telegram, and set the analytics data.
-                        gamesCollection.updateOne(gameDocument, combine(
-                                unset("outgoing.telegram"),
-                                set("analytics.telegram", Document.parse(gson.toJson(analytics)))
-                        ));
-
-                        //Delete the announcement data from redis.
-                        deleteAnnouncement(gameDocument);
-                    });
+                    .forEach(gameData -> games.put(gameData._id, new Game(gameData._id, gameData.info)));
+
+            //Resume the coalesced announcement if it was in progress.
+            String coalescedGames = redisCommands.hget(Announcement.keyPrefixOf(Announcement.coalescedId) + "state", "games");
+            if (coalescedGames != null) {
+                List<Game> coalesced = new ArrayList<>();
+                for (String gameId : coalescedGames.split(",")) {
+                    Game game = gameId.isEmpty() ? null : games.remove(Integer.parseInt(gameId));
+                    if (game != null) coalesced.add(game);
+                }
+
+                submitAnnouncement(new Announcement(Announcement.coalescedId, coalesced));
+            }
+
+            //Resume the games which were already being announced on their own, and collect the rest.
+            List<Game> newGames = new ArrayList<>();
+            for (Game game : games.values()) {
+                //Skip the games which are already submitted, but not initialized yet.
+                if (runningGames.contains(game._id)) continue;
+
+                if (redisCommands.hexists(Announcement.keyPrefixOf(String.valueOf(game._id)) + "state", "active"))
+                    submitAnnouncement(new Announcement(game));
+                else
+                    newGames.add(game);
+            }
+
+            //Only the coordinator starts new announcements.
+            if (!coordinatorLease.isHeld()) return;
+
+            //Now announce the new games, in a single coalesced announcement if there are multiple ones,
+            //and no coalesced announcement is in progress already (only one can be at a time).
+            //When there are too many of them to fit in a single message, each one is announced on its own instead.
+            Announcement coalesced = new Announcement(Announcement.coalescedId, newGames);
+            if (coalesceAnnouncements && newGames.size() > 1 && newGames.size() <= coalescedAnnouncementsLimit
+                    && coalescedGames == null && !runningAnnouncements.contains(Announcement.coalescedId)
+                    && new AnnouncementRenders(coalesced).fitsInCoalescedMessage())
+                submitAnnouncement(coalesced);
+            else
+                for (Game game : newGames) submitAnnouncement(new Announcement(game));
+
         } catch (Exception e) {
             e.printStackTrace();
         }
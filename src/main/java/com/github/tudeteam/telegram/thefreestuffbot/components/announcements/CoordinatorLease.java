@@ -0,0 +1,123 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components.announcements;
+
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.api.sync.RedisCommands;
+
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * A redis lease which elects a single coordinator out of the bot's running instances (nodes).
+ * <p>
+ * Only the coordinator seeds and finalizes the announcements, while all the nodes announce to their pending chats.
+ * <p>
+ * Each node keeps trying to acquire (or renew) the lease in the background, so when the coordinator dies
+ * another node takes over once its lease expires.
+ * <p>
+ * Key: TheFreeStuffBot:coordinator, holding the id of the coordinator node.
+ */
+public class CoordinatorLease {
+
+    /* Static Fields */
+
+    protected static final String keyCoordinator = "TheFreeStuffBot:coordinator";
+
+    /**
+     * Sets the lease to the node if it's free, or extends it if the node is already holding it.
+     */
+    protected static final String acquireScript = "local holder = redis.call('GET', KEYS[1]) " +
+            "if holder == ARGV[1] then redis.call('PEXPIRE', KEYS[1], ARGV[2]) return 1 end " +
+            "if not holder then redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[2]) return 1 end " +
+            "return 0";
+
+    /**
+     * Deletes the lease only if the node is holding it.
+     */
+    protected static final String releaseScript = "if redis.call('GET', KEYS[1]) == ARGV[1] then " +
+            "return redis.call('DEL', KEYS[1]) end return 0";
+
+    /* Instance Fields */
+
+    /**
+     * The unique id of this node.
+     */
+    public final String nodeId = UUID.randomUUID().toString();
+
+    /**
+     * The time of the lease in milliseconds.
+     */
+    public final long leaseTime;
+
+    protected final RedisCommands<String, String> redisCommands;
+
+    protected final ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "CoordinatorLease-Renewer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The time (of {@link System#nanoTime()}) which the lease held by this node expires at, assuming it's not renewed.
+     */
+    protected volatile long heldUntil = System.nanoTime();
+    protected volatile boolean held = false;
+
+    /* Constructor */
+
+    /**
+     * Creates a new lease, and starts competing for it in the background.
+     *
+     * @param redisCommands The redis commands to use.
+     * @param leaseTime     The time of the lease in milliseconds, it's renewed each third of it.
+     */
+    public CoordinatorLease(RedisCommands<String, String> redisCommands, long leaseTime) {
+        this.redisCommands = redisCommands;
+        this.leaseTime = leaseTime;
+
+        renewer.scheduleWithFixedDelay(this::tryAcquire, 0, leaseTime / 3, MILLISECONDS);
+    }
+
+    /* Instance Methods */
+
+    /**
+     * Tries to acquire the lease, or renew it if it's already held by this node.
+     *
+     * @return {@code true} if this node is holding the lease.
+     */
+    public boolean tryAcquire() {
+        long attemptTime = System.nanoTime();
+
+        try {
+            Long result = redisCommands.eval(acquireScript, ScriptOutputType.INTEGER,
+                    new String[]{keyCoordinator}, nodeId, String.valueOf(leaseTime));
+
+            held = result != null && result == 1;
+            if (held) heldUntil = attemptTime + MILLISECONDS.toNanos(leaseTime);
+        } catch (Exception e) {
+            e.printStackTrace(); //Keep the last state, the lease expires by itself if it's not renewed.
+        }
+
+        return isHeld();
+    }
+
+    /**
+     * Checks whether this node is the coordinator.
+     *
+     * @return {@code true} if this node is holding a non-expired lease.
+     */
+    public boolean isHeld() {
+        return held && System.nanoTime() - heldUntil < 0;
+    }
+
+    /**
+     * Stops competing for the lease, and releases it if it's held by this node.
+     */
+    public void close() {
+        renewer.shutdownNow();
+        held = false;
+        redisCommands.eval(releaseScript, ScriptOutputType.INTEGER, new String[]{keyCoordinator}, nodeId);
+    }
+}
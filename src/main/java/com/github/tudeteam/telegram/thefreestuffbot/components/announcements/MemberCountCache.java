@@ -0,0 +1,200 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components.announcements;
+
+import com.github.tudeteam.telegram.thefreestuffbot.components.BotApiClient;
+import io.lettuce.core.KeyValue;
+import io.lettuce.core.ScoredValue;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import org.telegram.telegrambots.meta.api.objects.ApiResponse;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.IntConsumer;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * A redis backed cache of the chats' members counts, with a time to live so they get refreshed eventually.
+ * <p>
+ * Missing counts are fetched by a low-priority background refresher, which has its own small rate budget,
+ * so the announcements never wait for {@code GetChatMembersCount} nor spend the messages rate limit on it.
+ * <p>
+ * Keys format: TheFreeStuffBot:members:{chat_id}
+ */
+public class MemberCountCache {
+
+    protected static final String keyPrefix = "TheFreeStuffBot:members:";
+
+    /**
+     * The maximum number of chats which can wait for a refresh at once, the extra requests are dropped.
+     */
+    protected static final int maximumQueued = 100_000;
+
+    /**
+     * The audience score of the groups and channels which their members count is not cached yet,
+     * which places them after the known groups and channels, but before the private chats.
+     */
+    public static final double unknownAudience = 2;
+
+    protected final BotApiClient botApiClient;
+    protected final RedisAsyncCommands<String, String> redisAsyncCommands;
+
+    /**
+     * The time to live of the cached counts in seconds.
+     */
+    protected final long timeToLive;
+
+    /**
+     * The rate budget of the refresher.
+     */
+    protected final TokenBucket refreshBudget;
+
+    /**
+     * The chats waiting for a refresh, in the order they were requested.
+     */
+    protected final BlockingQueue<Long> refreshQueue = new LinkedBlockingQueue<>(maximumQueued);
+
+    /**
+     * The callbacks of the chats waiting for a refresh, mapped by the chats' ids.
+     */
+    protected final Map<Long, IntConsumer> refreshCallbacks = new ConcurrentHashMap<>();
+
+    protected final Thread refresher = new Thread(this::refreshLoop, "MemberCountCache-Refresher");
+
+    /**
+     * Creates a new members count cache, and starts its refresher.
+     *
+     * @param botApiClient       The client to fetch the members counts with.
+     * @param redisAsyncCommands The redis commands to store the counts with.
+     * @param timeToLive         The time to live of the cached counts in seconds.
+     * @param refreshRate        The maximum number of counts to fetch each second.
+     */
+    public MemberCountCache(BotApiClient botApiClient, RedisAsyncCommands<String, String> redisAsyncCommands, long timeToLive, int refreshRate) {
+        this.botApiClient = botApiClient;
+        this.redisAsyncCommands = redisAsyncCommands;
+        this.timeToLive = timeToLive;
+        this.refreshBudget = new TokenBucket(refreshRate, 1, SECONDS);
+
+        refresher.setPriority(Thread.MIN_PRIORITY);
+        refresher.setDaemon(true);
+        refresher.start();
+    }
+
+    /**
+     * Gets the cached members count of a chat.
+     *
+     * @param chatId The id of the chat.
+     * @return A future of the members count, {@code null} if it's not cached.
+     */
+    public CompletableFuture<Integer> get(long chatId) {
+        return redisAsyncCommands.get(keyPrefix + chatId).toCompletableFuture()
+                .thenApply(count -> count == null ? null : Integer.valueOf(count));
+    }
+
+    /**
+     * Scores chats by the size of their audience: 1 for private chats, and the members count for groups and channels.
+     * The counts which are not cached are requested to be fetched in the background, for the next announcements.
+     *
+     * @param chatIds The ids of the chats.
+     * @return A future of the scored chat ids, in the same order.
+     */
+    public CompletableFuture<List<ScoredValue<String>>> audienceScores(List<Long> chatIds) {
+        List<String> keys = new ArrayList<>();
+        for (long chatId : chatIds) if (chatId < 0) keys.add(keyPrefix + chatId);
+
+        CompletableFuture<List<KeyValue<String, String>>> counts = keys.isEmpty()
+                ? CompletableFuture.completedFuture(List.of())
+                : redisAsyncCommands.mget(keys.toArray(new String[0])).toCompletableFuture();
+
+        return counts.thenApply(values -> {
+            List<ScoredValue<String>> scores = new ArrayList<>(chatIds.size());
+            Iterator<KeyValue<String, String>> iterator = values.iterator();
+
+            for (long chatId : chatIds) {
+                double score = 1; //Private chats.
+
+                if (chatId < 0) { //Groups and channels.
+                    KeyValue<String, String> count = iterator.next();
+                    if (count.hasValue()) {
+                        score = Math.max(Integer.parseInt(count.getValue()), 1);
+                    } else {
+                        score = unknownAudience;
+                        refresh(chatId, ignored -> {
+                        });
+                    }
+                }
+
+                scores.add(ScoredValue.just(score, String.valueOf(chatId)));
+            }
+
+            return scores;
+        });
+    }
+
+    /**
+     * Requests the members count of a chat to be fetched in the background.
+     *
+     * @param chatId   The id of the chat.
+     * @param callback Called with the count once it's fetched, not called if fetching it fails.
+     */
+    public void refresh(long chatId, IntConsumer callback) {
+        boolean[] queued = {true};
+        refreshCallbacks.compute(chatId, (id, existing) -> {
+            if (existing != null) return existing.andThen(callback); //Already queued.
+            queued[0] = false;
+            return callback;
+        });
+
+        if (!queued[0] && !refreshQueue.offer(chatId))
+            refreshCallbacks.remove(chatId); //The queue is full, drop the request.
+    }
+
+    /**
+     * Stores the members count of a chat in the cache.
+     *
+     * @param chatId The id of the chat.
+     * @param count  The members count.
+     */
+    public void put(long chatId, int count) {
+        redisAsyncCommands.setex(keyPrefix + chatId, timeToLive, String.valueOf(count));
+    }
+
+    protected void refreshLoop() {
+        try {
+            while (true) {
+                long chatId = refreshQueue.take();
+                refreshBudget.consume();
+
+                //A single failed refresh must not stop the refresher.
+                try {
+                    ApiResponse<Integer> response = botApiClient.getChatMembersCount(chatId)
+                            .exceptionally(error -> null).join();
+
+                    IntConsumer callback = refreshCallbacks.remove(chatId);
+                    if (response == null || !Boolean.TRUE.equals(response.getOk()) || response.getResult() == null)
+                        continue;
+
+                    put(chatId, response.getResult());
+                    if (callback != null) callback.accept(response.getResult());
+                } catch (Exception e) {
+                    refreshCallbacks.remove(chatId);
+                    e.printStackTrace();
+                }
+            }
+        } catch (InterruptedException e) {
+            //The cache has been closed.
+        }
+    }
+
+    /**
+     * Stops the background refresher.
+     */
+    public void close() {
+        refresher.interrupt();
+    }
+}
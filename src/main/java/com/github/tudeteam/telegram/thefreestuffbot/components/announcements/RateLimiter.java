@@ -0,0 +1,223 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components.announcements;
+
+import com.github.tudeteam.telegram.thefreestuffbot.components.Metrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * A layered rate limiter for the messages sent by the bot.
+ * <p>
+ * Each message consumes a token from the global bucket, the bucket of its chat,
+ * and the bucket of its group (for chats with negative ids: groups, supergroups and channels).
+ * The message can be sent once all the three tokens are available,
+ * the global token is reserved last, for the time which the chat's own buckets allow.
+ * <p>
+ * The chats and groups buckets are kept in bounded maps. Once a map is full, its full (idle) buckets are evicted,
+ * and if all of them are still in use, the least recently used ones are evicted too, so the bound is a hard one.
+ * <p>
+ * Concurrent announcements share the global rate through weighted {@link Share}s,
+ * each one gets a part of the global rate proportional to its weight out of the shares which are still open.
+ */
+public class RateLimiter {
+
+    /**
+     * The bucket shared by all the chats.
+     */
+    protected final TokenBucket global;
+
+    /**
+     * Creates the bucket of a chat when it's not tracked yet.
+     */
+    protected final Supplier<TokenBucket> chatBucketFactory;
+
+    /**
+     * Creates the bucket of a group when it's not tracked yet.
+     */
+    protected final Supplier<TokenBucket> groupBucketFactory;
+
+    /**
+     * The maximum number of buckets to keep in each of the chats and groups maps.
+     */
+    protected final int maximumBuckets;
+
+    protected final Map<Long, TokenBucket> chatBuckets = new ConcurrentHashMap<>();
+    protected final Map<Long, TokenBucket> groupBuckets = new ConcurrentHashMap<>();
+
+    /**
+     * The sum of the weights of the open shares.
+     */
+    protected final AtomicInteger totalWeight = new AtomicInteger();
+
+    public RateLimiter(TokenBucket global, Supplier<TokenBucket> chatBucketFactory, Supplier<TokenBucket> groupBucketFactory, int maximumBuckets) {
+        this.global = global;
+        this.chatBucketFactory = chatBucketFactory;
+        this.groupBucketFactory = groupBucketFactory;
+        this.maximumBuckets = maximumBuckets;
+    }
+
+    /**
+     * Gets the bucket of a chat from a buckets map, creates it if it didn't exist.
+     *
+     * @param buckets The buckets map.
+     * @param factory The buckets factory of the map.
+     * @param chatId  The id of the chat.
+     * @return The bucket of the chat.
+     */
+    protected TokenBucket bucketOf(Map<Long, TokenBucket> buckets, Supplier<TokenBucket> factory, long chatId) {
+        TokenBucket bucket = buckets.get(chatId);
+        if (bucket != null) return bucket;
+
+        if (buckets.size() >= maximumBuckets) {
+            synchronized (buckets) { //Only one of the threads which found it full evicts.
+                if (buckets.size() >= maximumBuckets) evict(buckets);
+            }
+        }
+
+        return buckets.computeIfAbsent(chatId, id -> factory.get());
+    }
+
+    /**
+     * Makes room in a full buckets map: evicts the idle buckets,
+     * then the least recently used ones down to 90% of the maximum, if there are still more.
+     * The headroom keeps the next evictions apart, instead of scanning the whole map for each new chat.
+     *
+     * @param buckets The buckets map.
+     */
+    protected void evict(Map<Long, TokenBucket> buckets) {
+        //Evicting a full bucket is safe, because it's equivalent to a newly created one.
+        buckets.values().removeIf(TokenBucket::isIdle);
+        int target = maximumBuckets * 9 / 10;
+        if (buckets.size() <= target) return;
+
+        //The buckets which become full the earliest are the least recently used ones,
+        //evicting them forgets their chats' latest messages, which is the least harmful option left.
+        //The arrival times are snapshotted first, as they keep changing while sorting.
+        long now = System.nanoTime();
+        List<long[]> arrivals = new ArrayList<>(buckets.size());
+        for (Map.Entry<Long, TokenBucket> entry : buckets.entrySet())
+            arrivals.add(new long[]{entry.getKey(), entry.getValue().theoreticalArrivalTime.get() - now});
+        arrivals.sort(Comparator.comparingLong(arrival -> arrival[1]));
+
+        int excess = arrivals.size() - target;
+        for (int i = 0; i < excess; i++) buckets.remove(arrivals.get(i)[0]);
+    }
+
+    /**
+     * Reserves the tokens needed for sending a message to a chat, without waiting for them.
+     *
+     * @param chatId The id of the chat.
+     * @return The time to wait before sending the message in nanoseconds, {@code 0} if it can be sent right away.
+     */
+    public long reserve(long chatId) {
+        long wait = bucketOf(chatBuckets, chatBucketFactory, chatId).reserve();
+        if (chatId < 0) wait = Math.max(wait, bucketOf(groupBuckets, groupBucketFactory, chatId).reserve());
+
+        //The global token is taken at the time the message is actually sent, so the delayed messages keep to the global rate too.
+        return global.reserve(wait);
+    }
+
+    /**
+     * Pauses all the messages, used when Telegram asks the bot to retry after some time.
+     *
+     * @param duration The duration of the pause.
+     * @param unit     The time unit of the duration.
+     */
+    public void pause(long duration, TimeUnit unit) {
+        global.pause(unit.toNanos(duration));
+    }
+
+    /**
+     * Opens a share of the global rate, which has to be closed once it's no longer used.
+     *
+     * @param weight The weight of the share, compared to the other open shares.
+     * @return The opened share.
+     */
+    public Share openShare(int weight) {
+        if (weight <= 0) throw new IllegalArgumentException("The weight should be positive!");
+        totalWeight.addAndGet(weight);
+        return new Share(weight);
+    }
+
+    /**
+     * Acquires the tokens needed for sending a message to a chat, sleeps until they can be used if needed.
+     *
+     * @param chatId The id of the chat.
+     * @throws InterruptedException If interrupted while waiting for the tokens.
+     */
+    public void consume(long chatId) throws InterruptedException {
+        long wait = reserve(chatId);
+        Metrics.rateLimiterWait.observe(wait / 1e9);
+        if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    /**
+     * A weighted share of the global rate, for one of the concurrent announcements.
+     * <p>
+     * It's a token bucket which its rate is recalculated on each reservation, out of the current total weight,
+     * so the rate of a closed share is redistributed over the remaining ones right away.
+     * The global bucket still applies, so the shares never exceed the global rate together.
+     */
+    public class Share extends TokenBucket {
+
+        /**
+         * The weight of the share, compared to the other open shares.
+         */
+        public final int weight;
+
+        protected boolean closed = false;
+
+        protected Share(int weight) {
+            super(global.emissionInterval, global.emissionInterval);
+            this.weight = weight;
+        }
+
+        @Override
+        public long reserve() {
+            //The interval grows with the weight of the other shares.
+            long interval = global.emissionInterval * Math.max(totalWeight.get(), weight) / weight;
+            return reserve(interval, interval, 0);
+        }
+
+        /**
+         * Acquires the share's token, then the tokens needed for sending a message to a chat,
+         * sleeps until they can be used if needed.
+         *
+         * @param chatId The id of the chat.
+         * @throws InterruptedException If interrupted while waiting for the tokens.
+         */
+        public void consume(long chatId) throws InterruptedException {
+            long shareWait = reserve();
+            if (shareWait > 0) TimeUnit.NANOSECONDS.sleep(shareWait);
+
+            long wait = RateLimiter.this.reserve(chatId);
+            Metrics.rateLimiterWait.observe((shareWait + wait) / 1e9);
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+        }
+
+        /**
+         * Pauses all the messages, of all the shares.
+         *
+         * @param duration The duration of the pause.
+         * @param unit     The time unit of the duration.
+         */
+        public void pause(long duration, TimeUnit unit) {
+            RateLimiter.this.pause(duration, unit);
+        }
+
+        /**
+         * Closes the share, so its rate is redistributed over the remaining shares.
+         */
+        public synchronized void close() {
+            if (closed) return;
+            closed = true;
+            totalWeight.addAndGet(-weight);
+        }
+    }
+}
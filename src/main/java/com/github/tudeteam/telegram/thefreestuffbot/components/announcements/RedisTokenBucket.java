@@ -0,0 +1,103 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components.announcements;
+
+import io.lettuce.core.RedisException;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.api.sync.RedisCommands;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket shared by all the nodes (instances) of the bot, implemented as a generic cell rate algorithm
+ * over a single redis key, which holds the theoretical arrival time in microseconds of the redis server's clock.
+ * <p>
+ * Each reservation and pause is a single Lua script round trip, so the rate is shared across the nodes
+ * however many of them are alive, and a pause made by one node holds back all of them.
+ * When redis can't be reached, the bucket falls back to its local (per node) state.
+ */
+public class RedisTokenBucket extends TokenBucket {
+
+    /* Static Fields */
+
+    /**
+     * Reserves a token: advances the theoretical arrival time (KEYS[1]) by the emission interval (ARGV[1]),
+     * starting no earlier than the delay (ARGV[3]), and returns the time to wait before using the token,
+     * after the burst tolerance (ARGV[2]), in microseconds.
+     */
+    protected static final String reserveScript = "redis.replicate_commands() " +
+            "local time = redis.call('TIME') " +
+            "local now = tonumber(time[1]) * 1000000 + tonumber(time[2]) " +
+            "local delay = tonumber(ARGV[3]) " +
+            "local tat = tonumber(redis.call('GET', KEYS[1]) or 0) " +
+            "if tat < now + delay then tat = now + delay end " +
+            "tat = tat + tonumber(ARGV[1]) " +
+            "redis.call('SET', KEYS[1], string.format('%.0f', tat), 'PX', math.ceil((tat - now) / 1000) + 1) " +
+            "return math.max(tat - now - tonumber(ARGV[2]), delay)";
+
+    /**
+     * Pauses the bucket: pushes the theoretical arrival time (KEYS[1]) to the end of the pause,
+     * given as its duration plus the burst tolerance minus the emission interval (ARGV[1]) in microseconds,
+     * unless it's already later.
+     */
+    protected static final String pauseScript = "redis.replicate_commands() " +
+            "local time = redis.call('TIME') " +
+            "local now = tonumber(time[1]) * 1000000 + tonumber(time[2]) " +
+            "local paused = now + tonumber(ARGV[1]) " +
+            "if tonumber(redis.call('GET', KEYS[1]) or 0) >= paused then return 0 end " +
+            "redis.call('SET', KEYS[1], string.format('%.0f', paused), 'PX', math.ceil((paused - now) / 1000) + 1) " +
+            "return 1";
+
+    /* Instance Fields */
+
+    protected final RedisCommands<String, String> redisCommands;
+
+    /**
+     * The key of the redis string which holds the theoretical arrival time.
+     */
+    protected final String key;
+
+    /* Constructor */
+
+    /**
+     * Creates a new shared token bucket which doesn't allow any bursts.
+     *
+     * @param redisCommands The redis commands to share the bucket through.
+     * @param key           The key of the bucket, the same on all the nodes.
+     * @param permits       The number of tokens refilled each period, on all the nodes together.
+     * @param period        The length of the period.
+     * @param unit          The time unit of the period.
+     */
+    public RedisTokenBucket(RedisCommands<String, String> redisCommands, String key, int permits, long period, TimeUnit unit) {
+        super(permits, period, unit);
+        this.redisCommands = redisCommands;
+        this.key = key;
+    }
+
+    /* Instance Methods */
+
+    @Override
+    protected long reserve(long emissionInterval, long burstTolerance, long delay) {
+        try {
+            Long wait = redisCommands.eval(reserveScript, ScriptOutputType.INTEGER, new String[]{key},
+                    String.valueOf(TimeUnit.NANOSECONDS.toMicros(emissionInterval)),
+                    String.valueOf(TimeUnit.NANOSECONDS.toMicros(burstTolerance)),
+                    String.valueOf(TimeUnit.NANOSECONDS.toMicros(delay)));
+            return TimeUnit.MICROSECONDS.toNanos(wait);
+        } catch (RedisException e) {
+            e.printStackTrace();
+            return super.reserve(emissionInterval, burstTolerance, delay);
+        }
+    }
+
+    @Override
+    public void pause(long duration) {
+        //Pause the local state too, for the reservations which fall back to it.
+        super.pause(duration);
+
+        try {
+            redisCommands.eval(pauseScript, ScriptOutputType.INTEGER, new String[]{key},
+                    String.valueOf(TimeUnit.NANOSECONDS.toMicros(duration + burstTolerance - emissionInterval)));
+        } catch (RedisException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components.announcements;
+
+import org.telegram.telegrambots.meta.api.objects.ApiResponse;
+import org.telegram.telegrambots.meta.api.objects.ResponseParameters;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.Locale.ROOT;
+
+/**
+ * The kinds of failures of sending an announcement, which decide what happens to the chat.
+ */
+public enum SendFailure {
+
+    /**
+     * The request might succeed when it's retried later (network errors, flood limits, server errors).
+     * The chat is added to the failed set, to be requeued.
+     */
+    TRANSIENT,
+
+    /**
+     * The request will never succeed for the chat (the bot was blocked or kicked, the chat was deleted...).
+     * The chat is dropped from the announcement.
+     */
+    PERMANENT,
+
+    /**
+     * The request was rejected for another reason (the message's content, the chat's settings...),
+     * which doesn't tell whether the chat can be reached anymore.
+     * The chat is dropped from the announcement, without counting it as undeliverable.
+     */
+    REJECTED,
+
+    /**
+     * The group was upgraded into a supergroup, which has a different id.
+     * The announcement is sent to the supergroup instead.
+     */
+    MIGRATED;
+
+    /**
+     * The reasons of the permanent failures, mapped by the descriptions (in lower case) of their errors.
+     */
+    protected static final Map<String, String> permanentReasons = new LinkedHashMap<>();
+
+    /**
+     * The reasons of the permanent failures which mean that the chat can't be reached anymore,
+     * which count it towards pruning, unlike missing rights, which the chat's admins can grant again.
+     */
+    public static final Set<String> unreachableReasons = Set.of("blocked", "kicked", "chat_not_found", "deactivated");
+
+    static {
+        permanentReasons.put("bot was blocked by the user", "blocked");
+        permanentReasons.put("bot was kicked", "kicked");
+        permanentReasons.put("chat not found", "chat_not_found");
+        permanentReasons.put("user is deactivated", "deactivated");
+        permanentReasons.put("not enough rights", "not_enough_rights");
+    }
+
+    /**
+     * Classifies a failed Bot API response.
+     *
+     * @param response The failed response, {@code null} if the request itself failed.
+     * @return The kind of the failure.
+     */
+    public static SendFailure classify(ApiResponse<?> response) {
+        if (response == null || response.getErrorCode() == null) return TRANSIENT;
+        if (migrateToChatId(response) != null) return MIGRATED;
+
+        int errorCode = response.getErrorCode();
+        if (errorCode != 400 && errorCode != 403) return TRANSIENT; //Too many requests, a server error, or anything else.
+
+        //A bad request or forbidden error is only permanent for the chat when its description says so.
+        return permanentReason(response) != null ? PERMANENT : REJECTED;
+    }
+
+    /**
+     * Gets the reason of a permanent failure out of its error description.
+     *
+     * @param response The failed response, {@code null} if the request itself failed.
+     * @return The reason: blocked, kicked, chat_not_found, deactivated or not_enough_rights,
+     * {@code null} if it's not a permanent failure.
+     */
+    public static String permanentReason(ApiResponse<?> response) {
+        if (response == null || response.getErrorDescription() == null) return null;
+
+        String description = response.getErrorDescription().toLowerCase(ROOT);
+        for (Map.Entry<String, String> permanentReason : permanentReasons.entrySet())
+            if (description.contains(permanentReason.getKey())) return permanentReason.getValue();
+        return null;
+    }
+
+    /**
+     * Gets the time to wait before making any more requests, as advertised by a failed response.
+     *
+     * @param response The failed response, {@code null} if the request itself failed.
+     * @return The time to wait in seconds, {@code null} if it wasn't flood limited.
+     */
+    public static Integer retryAfter(ApiResponse<?> response) {
+        ResponseParameters parameters = response == null ? null : response.getParameters();
+        return parameters == null ? null : parameters.getRetryAfter();
+    }
+
+    /**
+     * Gets the new id of a group which was upgraded into a supergroup, as advertised by a failed response.
+     *
+     * @param response The failed response, {@code null} if the request itself failed.
+     * @return The id of the supergroup, {@code null} if it wasn't migrated.
+     */
+    public static Long migrateToChatId(ApiResponse<?> response) {
+        ResponseParameters parameters = response == null ? null : response.getParameters();
+        return parameters == null ? null : parameters.getMigrateToChatId();
+    }
+}
@@ -0,0 +1,141 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components.announcements;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket, implemented as a generic cell rate algorithm over {@link System#nanoTime()}.
+ * <p>
+ * Instead of counting the tokens left, the bucket stores the theoretical time at which it becomes full again.
+ * Acquiring a token advances that time by one emission interval using a compare-and-set,
+ * and the caller waits (if needed) without holding any lock.
+ */
+public class TokenBucket {
+
+    /**
+     * The time it takes to refill a single token, in nanoseconds.
+     */
+    protected final long emissionInterval;
+
+    /**
+     * How far ahead of the current time the tokens can be reserved without waiting, in nanoseconds.
+     */
+    protected final long burstTolerance;
+
+    /**
+     * The theoretical time at which the bucket becomes full again, in {@link System#nanoTime()} units.
+     */
+    protected final AtomicLong theoreticalArrivalTime;
+
+    /**
+     * Creates a new token bucket which doesn't allow any bursts.
+     *
+     * @param permits The number of tokens refilled each period.
+     * @param period  The length of the period.
+     * @param unit    The time unit of the period.
+     */
+    public TokenBucket(int permits, long period, TimeUnit unit) {
+        this(permits, period, unit, 1);
+    }
+
+    /**
+     * Creates a new token bucket.
+     *
+     * @param permits The number of tokens refilled each period.
+     * @param period  The length of the period.
+     * @param unit    The time unit of the period.
+     * @param burst   The maximum number of tokens which can be acquired at once when the bucket is full.
+     */
+    public TokenBucket(int permits, long period, TimeUnit unit, int burst) {
+        if (permits <= 0 || period <= 0 || burst <= 0)
+            throw new IllegalArgumentException("The permits, period and burst should be positive!");
+
+        emissionInterval = unit.toNanos(period) / permits;
+        burstTolerance = emissionInterval * burst;
+        theoreticalArrivalTime = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Creates a new token bucket out of its generic cell rate algorithm parameters.
+     *
+     * @param emissionInterval The time it takes to refill a single token, in nanoseconds.
+     * @param burstTolerance   How far ahead of the current time the tokens can be reserved without waiting, in nanoseconds.
+     */
+    protected TokenBucket(long emissionInterval, long burstTolerance) {
+        this.emissionInterval = emissionInterval;
+        this.burstTolerance = burstTolerance;
+        theoreticalArrivalTime = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Reserves a token without waiting for it.
+     *
+     * @return The time to wait before using the reserved token in nanoseconds, {@code 0} if it can be used right away.
+     */
+    public long reserve() {
+        return reserve(emissionInterval, burstTolerance, 0);
+    }
+
+    /**
+     * Reserves a token for a message which can't be sent before a delay anyway, without waiting for it.
+     * The token is taken at the end of the delay, so the message doesn't use a token which was due earlier.
+     *
+     * @param delay The time before which the token won't be used in nanoseconds.
+     * @return The time to wait before using the reserved token in nanoseconds, at least the delay.
+     */
+    public long reserve(long delay) {
+        return reserve(emissionInterval, burstTolerance, delay);
+    }
+
+    /**
+     * Reserves a token without waiting for it, using custom parameters for this reservation.
+     *
+     * @param emissionInterval The time it takes to refill a single token, in nanoseconds.
+     * @param burstTolerance   How far ahead of the current time the tokens can be reserved without waiting, in nanoseconds.
+     * @param delay            The time before which the token won't be used in nanoseconds.
+     * @return The time to wait before using the reserved token in nanoseconds, {@code 0} if it can be used right away.
+     */
+    protected long reserve(long emissionInterval, long burstTolerance, long delay) {
+        while (true) {
+            long now = System.nanoTime();
+            long earliest = now + delay;
+            long current = theoreticalArrivalTime.get();
+            long next = (current - earliest > 0 ? current : earliest) + emissionInterval;
+
+            if (theoreticalArrivalTime.compareAndSet(current, next))
+                return Math.max(next - now - burstTolerance, delay);
+        }
+    }
+
+    /**
+     * Acquires a token, sleeps until it can be used if the bucket is empty.
+     *
+     * @throws InterruptedException If interrupted while waiting for the token.
+     */
+    public void consume() throws InterruptedException {
+        long wait = reserve();
+        if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    /**
+     * Stops handing out tokens for a duration, tokens reserved afterwards have to wait until it passes.
+     * Pausing an already paused bucket keeps the longer of the two pauses.
+     *
+     * @param duration The duration of the pause in nanoseconds.
+     */
+    public void pause(long duration) {
+        //The arrival time which makes the next reservation wait exactly until the pause ends.
+        long pausedArrivalTime = System.nanoTime() + duration + burstTolerance - emissionInterval;
+        theoreticalArrivalTime.accumulateAndGet(pausedArrivalTime,
+                (current, paused) -> current - paused > 0 ? current : paused);
+    }
+
+    /**
+     * Checks whether the bucket is full, which makes it equivalent to a newly created bucket.
+     *
+     * @return {@code true} if the bucket is full.
+     */
+    public boolean isIdle() {
+        return theoreticalArrivalTime.get() - System.nanoTime() <= 0;
+    }
+}
@@ -10,6 +10,12 @@ public class TelegramAnalytics {
      */
     public Reach reach = new Reach();
 
+    /**
+     * The number of users reached in each minute since the announcement has started,
+     * counting a user for each private chat, and the members of the groups and channels.
+     */
+    public int[] usersReachedPerMinute = new int[0];
+
     /**
      * TODO: The total clicks count on the announcements (not-implemented).
      */
@@ -0,0 +1,114 @@
+package com.github.tudeteam.telegram.thefreestuffbot.structures.codecs;
+
+import com.google.gson.annotations.SerializedName;
+import org.bson.BsonInvalidOperationException;
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+
+import java.net.URI;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads and writes the values of the structures' fields, with the same leniency as Gson had for them:
+ * the numbers are accepted in any of the BSON numeric types, and the enums are named by their {@link SerializedName}.
+ */
+final class BsonValues {
+
+    private BsonValues() {
+    }
+
+    static int readInt(BsonReader reader) {
+        switch (reader.getCurrentBsonType()) {
+            case INT32:
+                return reader.readInt32();
+            case INT64:
+                return (int) reader.readInt64();
+            case DOUBLE:
+                return (int) reader.readDouble();
+            case DECIMAL128:
+                return reader.readDecimal128().intValue();
+            default:
+                throw new BsonInvalidOperationException("Expected a number, found " + reader.getCurrentBsonType() + ".");
+        }
+    }
+
+    static long readLong(BsonReader reader) {
+        switch (reader.getCurrentBsonType()) {
+            case INT32:
+                return reader.readInt32();
+            case INT64:
+                return reader.readInt64();
+            case DOUBLE:
+                return (long) reader.readDouble();
+            case DECIMAL128:
+                return reader.readDecimal128().longValue();
+            default:
+                throw new BsonInvalidOperationException("Expected a number, found " + reader.getCurrentBsonType() + ".");
+        }
+    }
+
+    static double readDouble(BsonReader reader) {
+        switch (reader.getCurrentBsonType()) {
+            case INT32:
+                return reader.readInt32();
+            case INT64:
+                return reader.readInt64();
+            case DOUBLE:
+                return reader.readDouble();
+            case DECIMAL128:
+                return reader.readDecimal128().doubleValue();
+            default:
+                throw new BsonInvalidOperationException("Expected a number, found " + reader.getCurrentBsonType() + ".");
+        }
+    }
+
+    static URI readUri(BsonReader reader) {
+        return URI.create(reader.readString());
+    }
+
+    static void writeString(BsonWriter writer, String name, Object value) {
+        if (value != null) writer.writeString(name, value.toString());
+    }
+
+    /**
+     * The stored names of an enum's values, their {@link SerializedName} when present, or their Java names otherwise.
+     *
+     * @param <E> The enum type.
+     */
+    static final class EnumNames<E extends Enum<E>> {
+        protected final Map<String, E> values = new HashMap<>();
+        protected final Map<E, String> names;
+
+        EnumNames(Class<E> enumClass) {
+            names = new EnumMap<>(enumClass);
+            for (E value : enumClass.getEnumConstants()) {
+                String name = value.name();
+                try {
+                    SerializedName serializedName = enumClass.getField(name).getAnnotation(SerializedName.class);
+                    if (serializedName != null) name = serializedName.value();
+                } catch (NoSuchFieldException e) {
+                    throw new IllegalStateException(e);
+                }
+
+                values.put(name, value);
+                names.put(value, name);
+            }
+        }
+
+        /**
+         * Reads an enum value.
+         *
+         * @param reader The reader positioned at a string value.
+         * @return The enum value, {@code null} for unknown names (like Gson does).
+         */
+        E read(BsonReader reader) {
+            return values.get(reader.readString());
+        }
+
+        void write(BsonWriter writer, String name, E value) {
+            if (value != null) writer.writeString(name, names.get(value));
+        }
+    }
+}
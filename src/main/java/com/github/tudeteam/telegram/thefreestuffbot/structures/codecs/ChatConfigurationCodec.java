@@ -0,0 +1,79 @@
+package com.github.tudeteam.telegram.thefreestuffbot.structures.codecs;
+
+import com.github.tudeteam.telegram.thefreestuffbot.structures.ChatConfiguration;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.Currency;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.UntilFormat;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+import static com.github.tudeteam.telegram.thefreestuffbot.structures.codecs.BsonValues.*;
+
+/**
+ * Decodes the chats configurations straight from their documents in the {@code telegram-config} collection.
+ */
+public class ChatConfigurationCodec implements Codec<ChatConfiguration> {
+
+    protected static final EnumNames<Currency> currencies = new EnumNames<>(Currency.class);
+    protected static final EnumNames<UntilFormat> untilFormats = new EnumNames<>(UntilFormat.class);
+
+    @Override
+    public ChatConfiguration decode(BsonReader reader, DecoderContext decoderContext) {
+        ChatConfiguration config = new ChatConfiguration();
+
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String name = reader.readName();
+            if (reader.getCurrentBsonType() == BsonType.NULL) {
+                reader.readNull();
+                continue;
+            }
+
+            switch (name) {
+                case "_id":
+                    config._id = readLong(reader);
+                    break;
+                case "enabled":
+                    config.enabled = reader.readBoolean();
+                    break;
+                case "currency":
+                    config.currency = currencies.read(reader);
+                    break;
+                case "untilFormat":
+                    config.untilFormat = untilFormats.read(reader);
+                    break;
+                case "trash":
+                    config.trash = reader.readBoolean();
+                    break;
+                case "minPrice":
+                    config.minPrice = readDouble(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+
+        return config;
+    }
+
+    @Override
+    public void encode(BsonWriter writer, ChatConfiguration config, EncoderContext encoderContext) {
+        writer.writeStartDocument();
+        writer.writeInt64("_id", config._id);
+        writer.writeBoolean("enabled", config.enabled);
+        currencies.write(writer, "currency", config.currency);
+        untilFormats.write(writer, "untilFormat", config.untilFormat);
+        writer.writeBoolean("trash", config.trash);
+        writer.writeDouble("minPrice", config.minPrice);
+        writer.writeEndDocument();
+    }
+
+    @Override
+    public Class<ChatConfiguration> getEncoderClass() {
+        return ChatConfiguration.class;
+    }
+}
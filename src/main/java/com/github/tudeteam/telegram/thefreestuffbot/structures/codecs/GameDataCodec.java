@@ -0,0 +1,145 @@
+package com.github.tudeteam.telegram.thefreestuffbot.structures.codecs;
+
+import com.github.tudeteam.telegram.thefreestuffbot.structures.GameApprovalStatus;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.GameData;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.GameInfo;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.TelegramAnalytics;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+
+import static com.github.tudeteam.telegram.thefreestuffbot.structures.codecs.BsonValues.*;
+
+/**
+ * Decodes the games straight from their documents in the {@code games} collection,
+ * the {@code info} and {@code analytics.telegram} sub-documents are decoded by their own codecs.
+ */
+public class GameDataCodec implements Codec<GameData> {
+
+    protected static final EnumNames<GameApprovalStatus> statuses = new EnumNames<>(GameApprovalStatus.class);
+
+    protected final Codec<GameInfo> infoCodec;
+    protected final Codec<TelegramAnalytics> analyticsCodec;
+
+    public GameDataCodec(CodecRegistry registry) {
+        infoCodec = registry.get(GameInfo.class);
+        analyticsCodec = registry.get(TelegramAnalytics.class);
+    }
+
+    @Override
+    public GameData decode(BsonReader reader, DecoderContext decoderContext) {
+        GameData gameData = new GameData();
+
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String name = reader.readName();
+            if (reader.getCurrentBsonType() == BsonType.NULL) {
+                reader.readNull();
+                continue;
+            }
+
+            switch (name) {
+                case "_id":
+                    gameData._id = readInt(reader);
+                    break;
+                case "uuid":
+                    gameData.uuid = reader.readString();
+                    break;
+                case "published":
+                    gameData.published = readInt(reader);
+                    break;
+                case "responsible":
+                    gameData.responsible = reader.readString();
+                    break;
+                case "status":
+                    gameData.status = statuses.read(reader);
+                    break;
+                case "analytics":
+                    gameData.analytics = decodeAnalytics(reader, decoderContext);
+                    break;
+                case "info":
+                    gameData.info = decoderContext.decodeWithChildContext(infoCodec, reader);
+                    break;
+                case "outgoing":
+                    gameData.outgoing = decodeOutgoing(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+
+        return gameData;
+    }
+
+    protected GameData.Analytics decodeAnalytics(BsonReader reader, DecoderContext decoderContext) {
+        GameData.Analytics analytics = new GameData.Analytics();
+
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            if (reader.readName().equals("telegram") && reader.getCurrentBsonType() == BsonType.DOCUMENT)
+                analytics.telegram = decoderContext.decodeWithChildContext(analyticsCodec, reader);
+            else
+                reader.skipValue();
+        }
+        reader.readEndDocument();
+
+        return analytics;
+    }
+
+    protected GameData.Outgoing decodeOutgoing(BsonReader reader) {
+        GameData.Outgoing outgoing = new GameData.Outgoing();
+
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            if (reader.readName().equals("telegram") && reader.getCurrentBsonType() == BsonType.BOOLEAN)
+                outgoing.telegram = reader.readBoolean();
+            else
+                reader.skipValue();
+        }
+        reader.readEndDocument();
+
+        return outgoing;
+    }
+
+    @Override
+    public void encode(BsonWriter writer, GameData gameData, EncoderContext encoderContext) {
+        writer.writeStartDocument();
+        writer.writeInt32("_id", gameData._id);
+        writeString(writer, "uuid", gameData.uuid);
+        writer.writeInt32("published", gameData.published);
+        writeString(writer, "responsible", gameData.responsible);
+        statuses.write(writer, "status", gameData.status);
+
+        if (gameData.analytics != null) {
+            writer.writeStartDocument("analytics");
+            if (gameData.analytics.telegram != null) {
+                writer.writeName("telegram");
+                encoderContext.encodeWithChildContext(analyticsCodec, writer, gameData.analytics.telegram);
+            }
+            writer.writeEndDocument();
+        }
+
+        if (gameData.info != null) {
+            writer.writeName("info");
+            encoderContext.encodeWithChildContext(infoCodec, writer, gameData.info);
+        }
+
+        if (gameData.outgoing != null) {
+            writer.writeStartDocument("outgoing");
+            writer.writeBoolean("telegram", gameData.outgoing.telegram);
+            writer.writeEndDocument();
+        }
+
+        writer.writeEndDocument();
+    }
+
+    @Override
+    public Class<GameData> getEncoderClass() {
+        return GameData.class;
+    }
+}
@@ -0,0 +1,135 @@
+package com.github.tudeteam.telegram.thefreestuffbot.structures.codecs;
+
+import com.github.tudeteam.telegram.thefreestuffbot.structures.AnnouncementType;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.GameInfo;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.ScrapeableGameInfo.Price;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.Store;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+import static com.github.tudeteam.telegram.thefreestuffbot.structures.codecs.BsonValues.*;
+
+/**
+ * Decodes the {@code info} sub-document of the games.
+ */
+public class GameInfoCodec implements Codec<GameInfo> {
+
+    protected static final EnumNames<Store> stores = new EnumNames<>(Store.class);
+    protected static final EnumNames<AnnouncementType> types = new EnumNames<>(AnnouncementType.class);
+
+    @Override
+    public GameInfo decode(BsonReader reader, DecoderContext decoderContext) {
+        GameInfo info = new GameInfo();
+
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String name = reader.readName();
+            if (reader.getCurrentBsonType() == BsonType.NULL) {
+                reader.readNull();
+                continue;
+            }
+
+            switch (name) {
+                case "title":
+                    info.title = reader.readString();
+                    break;
+                case "org_price":
+                    info.org_price = decodePrice(reader);
+                    break;
+                case "price":
+                    info.price = decodePrice(reader);
+                    break;
+                case "thumbnail":
+                    info.thumbnail = readUri(reader);
+                    break;
+                case "until":
+                    info.until = readInt(reader);
+                    break;
+                case "steamSubids":
+                    info.steamSubids = reader.readString();
+                    break;
+                case "url":
+                    info.url = readUri(reader);
+                    break;
+                case "org_url":
+                    info.org_url = readUri(reader);
+                    break;
+                case "store":
+                    info.store = stores.read(reader);
+                    break;
+                case "flags":
+                    info.flags = readInt(reader);
+                    break;
+                case "type":
+                    info.type = types.read(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+
+        return info;
+    }
+
+    protected Price decodePrice(BsonReader reader) {
+        Price price = new Price();
+
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String name = reader.readName();
+            if (reader.getCurrentBsonType() == BsonType.NULL) {
+                reader.readNull();
+                continue;
+            }
+
+            switch (name) {
+                case "euro":
+                    price.euro = readDouble(reader);
+                    break;
+                case "dollar":
+                    price.dollar = readDouble(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+
+        return price;
+    }
+
+    @Override
+    public void encode(BsonWriter writer, GameInfo info, EncoderContext encoderContext) {
+        writer.writeStartDocument();
+        writeString(writer, "title", info.title);
+        encodePrice(writer, "org_price", info.org_price);
+        encodePrice(writer, "price", info.price);
+        writeString(writer, "thumbnail", info.thumbnail);
+        writer.writeInt32("until", info.until);
+        writeString(writer, "steamSubids", info.steamSubids);
+        writeString(writer, "url", info.url);
+        writeString(writer, "org_url", info.org_url);
+        stores.write(writer, "store", info.store);
+        writer.writeInt32("flags", info.flags);
+        types.write(writer, "type", info.type);
+        writer.writeEndDocument();
+    }
+
+    protected void encodePrice(BsonWriter writer, String name, Price price) {
+        if (price == null) return;
+        writer.writeStartDocument(name);
+        writer.writeDouble("euro", price.euro);
+        writer.writeDouble("dollar", price.dollar);
+        writer.writeEndDocument();
+    }
+
+    @Override
+    public Class<GameInfo> getEncoderClass() {
+        return GameInfo.class;
+    }
+}
@@ -0,0 +1,39 @@
+package com.github.tudeteam.telegram.thefreestuffbot.structures.codecs;
+
+import com.github.tudeteam.telegram.thefreestuffbot.structures.ChatConfiguration;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.GameData;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.GameInfo;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.TelegramAnalytics;
+import org.bson.codecs.Codec;
+import org.bson.codecs.configuration.CodecProvider;
+import org.bson.codecs.configuration.CodecRegistry;
+
+import static org.bson.codecs.configuration.CodecRegistries.fromProviders;
+import static org.bson.codecs.configuration.CodecRegistries.fromRegistries;
+
+/**
+ * Provides the codecs of the structures stored in MongoDB,
+ * so the collections can decode them directly, instead of converting the documents into JSON and parsing it with Gson.
+ */
+public class StructuresCodecProvider implements CodecProvider {
+
+    /**
+     * Creates a codec registry with the structures' codecs added to another one.
+     *
+     * @param registry The registry to extend, the database's default one usually.
+     * @return The extended codec registry.
+     */
+    public static CodecRegistry withStructures(CodecRegistry registry) {
+        return fromRegistries(fromProviders(new StructuresCodecProvider()), registry);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> Codec<T> get(Class<T> clazz, CodecRegistry registry) {
+        if (clazz == ChatConfiguration.class) return (Codec<T>) new ChatConfigurationCodec();
+        if (clazz == GameData.class) return (Codec<T>) new GameDataCodec(registry);
+        if (clazz == GameInfo.class) return (Codec<T>) new GameInfoCodec();
+        if (clazz == TelegramAnalytics.class) return (Codec<T>) new TelegramAnalyticsCodec();
+        return null;
+    }
+}
@@ -0,0 +1,130 @@
+package com.github.tudeteam.telegram.thefreestuffbot.structures.codecs;
+
+import com.github.tudeteam.telegram.thefreestuffbot.structures.TelegramAnalytics;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.TelegramAnalytics.Reach;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+import java.util.Arrays;
+
+import static com.github.tudeteam.telegram.thefreestuffbot.structures.codecs.BsonValues.readInt;
+
+/**
+ * Decodes and encodes the {@code analytics.telegram} sub-document of the games.
+ */
+public class TelegramAnalyticsCodec implements Codec<TelegramAnalytics> {
+
+    @Override
+    public TelegramAnalytics decode(BsonReader reader, DecoderContext decoderContext) {
+        TelegramAnalytics analytics = new TelegramAnalytics();
+
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String name = reader.readName();
+            if (reader.getCurrentBsonType() == BsonType.NULL) {
+                reader.readNull();
+                continue;
+            }
+
+            switch (name) {
+                case "reach":
+                    decodeReach(reader, analytics.reach);
+                    break;
+                case "usersReachedPerMinute":
+                    analytics.usersReachedPerMinute = decodeIntArray(reader);
+                    break;
+                case "clicks":
+                    analytics.clicks = readInt(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+
+        return analytics;
+    }
+
+    protected void decodeReach(BsonReader reader, Reach reach) {
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String name = reader.readName();
+            if (reader.getCurrentBsonType() == BsonType.NULL) {
+                reader.readNull();
+                continue;
+            }
+
+            switch (name) {
+                case "users":
+                    reach.users = readInt(reader);
+                    break;
+                case "groups":
+                    reach.groups = readInt(reader);
+                    break;
+                case "supergroups":
+                    reach.supergroups = readInt(reader);
+                    break;
+                case "channels":
+                    reach.channels = readInt(reader);
+                    break;
+                case "groupsUsers":
+                    reach.groupsUsers = readInt(reader);
+                    break;
+                case "channelsUsers":
+                    reach.channelsUsers = readInt(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+    }
+
+    protected int[] decodeIntArray(BsonReader reader) {
+        int[] values = new int[16];
+        int length = 0;
+
+        reader.readStartArray();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            if (length == values.length) values = Arrays.copyOf(values, length * 2);
+            values[length++] = readInt(reader);
+        }
+        reader.readEndArray();
+
+        return Arrays.copyOf(values, length);
+    }
+
+    @Override
+    public void encode(BsonWriter writer, TelegramAnalytics analytics, EncoderContext encoderContext) {
+        writer.writeStartDocument();
+
+        if (analytics.reach != null) {
+            writer.writeStartDocument("reach");
+            writer.writeInt32("users", analytics.reach.users);
+            writer.writeInt32("groups", analytics.reach.groups);
+            writer.writeInt32("supergroups", analytics.reach.supergroups);
+            writer.writeInt32("channels", analytics.reach.channels);
+            writer.writeInt32("groupsUsers", analytics.reach.groupsUsers);
+            writer.writeInt32("channelsUsers", analytics.reach.channelsUsers);
+            writer.writeEndDocument();
+        }
+
+        if (analytics.usersReachedPerMinute != null) {
+            writer.writeStartArray("usersReachedPerMinute");
+            for (int users : analytics.usersReachedPerMinute) writer.writeInt32(users);
+            writer.writeEndArray();
+        }
+
+        writer.writeInt32("clicks", analytics.clicks);
+        writer.writeEndDocument();
+    }
+
+    @Override
+    public Class<TelegramAnalytics> getEncoderClass() {
+        return TelegramAnalytics.class;
+    }
+}
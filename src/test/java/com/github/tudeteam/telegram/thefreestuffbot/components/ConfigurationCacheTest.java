@@ -0,0 +1,81 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components;
+
+import com.github.tudeteam.telegram.thefreestuffbot.TheFreeStuffBotOptions;
+import com.github.tudeteam.telegram.thefreestuffbot.components.announcements.LocalMongo;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.ChatConfiguration;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.Currency;
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.mongodb.client.model.Filters.eq;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConfigurationCacheTest {
+
+    static ChatConfiguration config(long chatId) {
+        ChatConfiguration config = new ChatConfiguration();
+        config._id = chatId;
+        config.enabled = true;
+        config.currency = Currency.EUR;
+        config.minPrice = 5.0;
+        return config;
+    }
+
+    @Test
+    void callersDontShareTheCachedConfigurations() {
+        ConfigurationCache cache = new ConfigurationCache(100, 60_000);
+
+        //The loaded configuration is modified by the caller after it's cached.
+        ChatConfiguration loaded = cache.get(1, chatId -> config(1));
+        loaded.enabled = false;
+
+        ChatConfiguration hit = cache.get(1, chatId -> fail("Loaded again"));
+        assertTrue(hit.enabled);
+        assertNotSame(loaded, hit);
+
+        //So are the configurations of the hits.
+        hit.minPrice = 0;
+        Map<Long, ChatConfiguration> configurations = new HashMap<>();
+        assertEquals(List.of(), cache.getCached(List.of(1L), configurations));
+        assertEquals(5.0, configurations.get(1L).minPrice);
+
+        configurations.get(1L).currency = Currency.USD;
+        assertEquals(Currency.EUR, cache.get(1, chatId -> fail("Loaded again")).currency);
+    }
+
+    @Test
+    void writeBehindDoesntLoadTheChangedConfigurations() {
+        try (LocalMongo mongo = new LocalMongo(false)) {
+            MongoCollection<Document> collection = mongo.collection("telegram-config");
+            collection.insertOne(new Document("_id", 1L).append("enabled", true).append("currency", "USD")
+                    .append("untilFormat", "DATE").append("trash", false).append("minPrice", 0.0));
+
+            ConfigurationDB db = new ConfigurationDB(collection, new TheFreeStuffBotOptions() {
+                @Override
+                public boolean configurationWriteBehind() {
+                    return true;
+                }
+            });
+
+            //The configuration is not cached, the change is queued without reading it.
+            double misses = Metrics.configurationCacheRequests.labels("miss").get();
+            assertTrue(db.setCurrency(1, Currency.EUR));
+            assertEquals(misses, Metrics.configurationCacheRequests.labels("miss").get());
+
+            //A chat which is known to have none is not changed.
+            assertNull(db.getConfiguration(2));
+            assertFalse(db.setTrash(2, true));
+
+            //It's applied once the configuration is read, and written when closing.
+            assertEquals(Currency.EUR, db.getConfiguration(1).currency);
+            db.close();
+            assertEquals("EUR", collection.find(eq("_id", 1L)).first().getString("currency"));
+            assertNull(collection.find(eq("_id", 2L)).first());
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components;
+
+import com.github.tudeteam.telegram.thefreestuffbot.structures.ChatConfiguration;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.Currency;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.GameInfo;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.ScrapeableGameInfo.Price;
+import org.junit.jupiter.api.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class EligibilityIndexTest {
+
+    static ChatConfiguration config(long chatId, Currency currency, double minPrice) {
+        ChatConfiguration config = new ChatConfiguration();
+        config._id = chatId;
+        config.enabled = true;
+        config.currency = currency;
+        config.minPrice = minPrice;
+        return config;
+    }
+
+    static GameInfo game(double euro, double dollar) {
+        GameInfo game = new GameInfo();
+        game.org_price = new Price();
+        game.org_price.euro = euro;
+        game.org_price.dollar = dollar;
+        return game;
+    }
+
+    static BitSet slots(EligibilityIndex.Columns columns, long... chatIds) {
+        BitSet slots = new BitSet();
+        for (long chatId : chatIds) slots.set(columns.slots.get(chatId));
+        return slots;
+    }
+
+    @Test
+    void closePricesAreComparedExactly() {
+        EligibilityIndex.Columns columns = new EligibilityIndex.Columns();
+        columns.put(config(1, Currency.EUR, 19.99));
+        columns.put(config(2, Currency.EUR, 19.990000001)); //The same float as 19.99.
+        columns.put(config(3, Currency.USD, 0.3));
+        columns.put(config(4, Currency.USD, -0.0));
+
+        assertEquals(slots(columns, 1, 4), columns.eligible(game(19.99, 0.1 + 0.2 - 1e-9)));
+        assertEquals(slots(columns, 1, 2, 3, 4), columns.eligible(game(19.990000001, 0.3)));
+        assertEquals(slots(columns, 4), columns.eligible(game(0, 0)));
+    }
+
+    @Test
+    void eligibilityMatchesTheMinimumPriceRule() {
+        Random random = new Random(20);
+        EligibilityIndex.Columns columns = new EligibilityIndex.Columns();
+        ChatConfiguration[] configs = new ChatConfiguration[2_000];
+        for (int i = 0; i < configs.length; i++) {
+            //Few distinct prices, some of them apart by less than a float can tell.
+            double minPrice = random.nextInt(20) + (random.nextBoolean() ? 1e-9 : 0);
+            configs[i] = config(i + 1, random.nextBoolean() ? Currency.USD : Currency.EUR, minPrice);
+            columns.put(configs[i]);
+        }
+
+        for (int i = 0; i < 200; i++) {
+            GameInfo game = game(random.nextInt(21) + (random.nextBoolean() ? 1e-9 : 0), random.nextInt(21));
+
+            BitSet expected = new BitSet();
+            for (ChatConfiguration config : configs)
+                if (config.minPrice <= game.org_price.inCurrency(config.currency)) expected.set(columns.slots.get(config._id));
+
+            assertEquals(expected, columns.eligible(game), "Euro " + game.org_price.euro + ", dollar " + game.org_price.dollar);
+        }
+    }
+}
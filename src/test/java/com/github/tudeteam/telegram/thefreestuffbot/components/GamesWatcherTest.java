@@ -0,0 +1,131 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components;
+
+import com.github.tudeteam.telegram.thefreestuffbot.components.announcements.LocalMongo;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.GameData;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Updates.set;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The watcher against an in-memory MongoDB with an oplog, which serves change streams like a single-node replica set,
+ * and against one which rejects them like a standalone server.
+ */
+class GamesWatcherTest {
+
+    static void awaitCondition(String description, long timeoutMillis, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) fail("Timed out waiting for " + description);
+            Thread.sleep(20);
+        }
+    }
+
+    static Document game(int id) {
+        return new Document("_id", id).append("outgoing", new Document("telegram", true));
+    }
+
+    @Test
+    @Timeout(30)
+    void changesReachEveryListener() throws InterruptedException {
+        try (LocalMongo mongo = new LocalMongo(true)) {
+            MongoCollection<Document> games = mongo.collection("games");
+            GamesWatcher watcher = new GamesWatcher(games.withDocumentClass(GameData.class));
+
+            List<OperationType> first = new CopyOnWriteArrayList<>();
+            List<OperationType> second = new CopyOnWriteArrayList<>();
+            watcher.addListener(change -> {
+                first.add(change.getOperationType());
+                throw new IllegalStateException("A failing listener");
+            });
+            Consumer<ChangeStreamDocument<GameData>> secondListener = change -> {
+                second.add(change.getOperationType());
+                if (change.getFullDocument() != null) assertTrue(change.getFullDocument().outgoing.telegram);
+            };
+            watcher.addListener(secondListener);
+            awaitCondition("the change stream", 5_000, watcher::isWatching);
+
+            games.insertOne(game(1));
+            games.updateOne(eq("_id", 1), set("status", "published"));
+            games.deleteOne(eq("_id", 1));
+
+            List<OperationType> expected = List.of(OperationType.INSERT, OperationType.UPDATE, OperationType.DELETE);
+            awaitCondition("the changes", 5_000, () -> second.size() == 3);
+            assertEquals(expected, first);
+            assertEquals(expected, second);
+
+            //A removed listener doesn't get the later changes.
+            watcher.removeListener(secondListener);
+            games.insertOne(game(2));
+            awaitCondition("the change after the removal", 5_000, () -> first.size() == 4);
+            assertEquals(3, second.size());
+
+            watcher.close();
+        }
+    }
+
+    @Test
+    @Timeout(60)
+    void changesAreResumedAfterAFailure() throws InterruptedException {
+        try (LocalMongo mongo = new LocalMongo(true)) {
+            MongoCollection<Document> games = mongo.collection("games");
+            GamesWatcher watcher = new GamesWatcher(games.withDocumentClass(GameData.class));
+
+            List<Integer> changed = new CopyOnWriteArrayList<>();
+            watcher.addListener(change -> changed.add(change.getDocumentKey().get("_id").asNumber().intValue()));
+            awaitCondition("the change stream", 5_000, watcher::isWatching);
+
+            games.insertOne(game(1));
+            awaitCondition("the first change", 5_000, () -> changed.size() == 1);
+
+            //The change stream fails, and a game is changed before it's reopened.
+            watcher.cursor.close();
+            games.insertOne(game(2));
+
+            //The reopened change stream resumes after the last seen change, so the change is not missed.
+            awaitCondition("the resumed change", GamesWatcher.retryDelay * 1000 + 10_000, () -> changed.size() == 2);
+            assertEquals(List.of(1, 2), changed);
+
+            watcher.close();
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    void givesUpWithoutChangeStreams() throws InterruptedException {
+        try (LocalMongo mongo = new LocalMongo(new LocalMongo.StandaloneBackend())) {
+            GamesWatcher watcher = new GamesWatcher(mongo.collection("games").withDocumentClass(GameData.class));
+
+            //The watcher gives up on the change stream right away, instead of retrying it.
+            watcher.watcher.join(10_000);
+            assertFalse(watcher.watcher.isAlive());
+            assertFalse(watcher.isWatching());
+
+            watcher.close();
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    void closeStopsTheWatcher() throws InterruptedException {
+        try (LocalMongo mongo = new LocalMongo(true)) {
+            GamesWatcher watcher = new GamesWatcher(mongo.collection("games").withDocumentClass(GameData.class));
+            awaitCondition("the change stream", 5_000, watcher::isWatching);
+
+            watcher.close();
+            watcher.watcher.join(10_000);
+            assertFalse(watcher.watcher.isAlive());
+        }
+    }
+}
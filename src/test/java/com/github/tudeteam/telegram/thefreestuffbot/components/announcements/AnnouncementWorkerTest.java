@@ -0,0 +1,337 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components.announcements;
+
+import com.github.tudeteam.telegram.thefreestuffbot.TheFreeStuffBotOptions;
+import com.github.tudeteam.telegram.thefreestuffbot.components.ConfigurationDB;
+import com.github.tudeteam.telegram.thefreestuffbot.components.Metrics;
+import com.github.tudeteam.telegram.thefreestuffbot.components.announcements.Announcement.Game;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.AnnouncementType;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.GameInfo;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.ScrapeableGameInfo.Price;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.Store;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.sync.RedisCommands;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.HTTPServer;
+import org.bson.Document;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+import static com.mongodb.client.model.Filters.eq;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Workers of multiple nodes in the same JVM, against a local redis and an in-memory MongoDB,
+ * announcing to a stub Bot API.
+ */
+class AnnouncementWorkerTest {
+
+    static LocalRedis redis;
+    static RedisCommands<String, String> redisCommands;
+    static LocalMongo mongo;
+    static ConfigurationDB db;
+
+    static final Announcement announcement = new Announcement(game());
+    static final List<Long> chatIds = new ArrayList<>();
+
+    @BeforeAll
+    static void startDatabases() throws IOException {
+        redis = new LocalRedis();
+        redisCommands = redis.connect().sync();
+        mongo = new LocalMongo(false);
+        db = new ConfigurationDB(mongo.collection("telegram-config"), new TheFreeStuffBotOptions());
+
+        for (long chatId = 1; chatId <= 200; chatId++) {
+            chatIds.add(chatId);
+            mongo.collection("telegram-config").insertOne(config(chatId));
+        }
+    }
+
+    static Document config(long chatId) {
+        return new Document("_id", chatId)
+                .append("enabled", true)
+                .append("currency", "EUR")
+                .append("untilFormat", "DATE")
+                .append("trash", false)
+                .append("minPrice", 0.0);
+    }
+
+    static String error(int errorCode, String description) {
+        return "{\"ok\":false,\"error_code\":" + errorCode + ",\"description\":\"" + description + "\"}";
+    }
+
+    @AfterAll
+    static void stopDatabases() throws IOException {
+        db.close();
+        mongo.close();
+        redis.close();
+    }
+
+    @BeforeEach
+    void seedAnnouncement() {
+        redis.flush();
+
+        for (long chatId : chatIds) redisCommands.zadd(announcement.keyPrefix + "pending", 1, String.valueOf(chatId));
+        for (Game game : announcement.games) redisCommands.hset(game.keyAnalytics, "users", "0");
+        redisCommands.hset(announcement.keyState, Map.of(
+                "attempts", "3",
+                "games", "1",
+                "started", String.valueOf(System.currentTimeMillis()),
+                "active", "true"
+        ));
+    }
+
+    static Game game() {
+        GameInfo info = new GameInfo();
+        info.title = "Test Game";
+        info.org_price = new Price();
+        info.org_price.euro = 19.99;
+        info.org_price.dollar = 24.99;
+        info.price = new Price();
+        info.thumbnail = URI.create("https://example.com/thumbnail.png");
+        info.until = (int) (System.currentTimeMillis() / 1000L) + 7 * 86400;
+        info.steamSubids = "";
+        info.url = URI.create("https://example.com/games/1");
+        info.org_url = URI.create("https://store.example.com/app/1");
+        info.store = Store.STEAM;
+        info.type = AnnouncementType.FREE;
+        return new Game(1, info);
+    }
+
+    /**
+     * Creates a worker of a separate node, with its own redis connection.
+     */
+    static AnnouncementWorker worker(StubBotApiClient botApiClient, String nodeId, long nodeTimeout) {
+        StatefulRedisConnection<String, String> connection = redis.connect();
+        RateLimiter rateLimiter = new RateLimiter(new TokenBucket(1_000, 1, SECONDS),
+                () -> new TokenBucket(1, 1, SECONDS), () -> new TokenBucket(20, 1, MINUTES), 10_000);
+
+        return new AnnouncementWorker(announcement, new AnnouncementRenders(announcement), botApiClient,
+                new MemberCountCache(botApiClient, connection.async(), 60, 1), null, db, rateLimiter.openShare(1),
+                connection.sync(), connection.async(), 10, 5, nodeId, nodeTimeout);
+    }
+
+    static void awaitCondition(String description, long timeoutMillis, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) fail("Timed out waiting for " + description);
+            Thread.sleep(10);
+        }
+    }
+
+    static long count(String key) {
+        return redisCommands.zcard(announcement.keyPrefix + key);
+    }
+
+    @Test
+    @Timeout(30)
+    void killedWorkerMidFanOut() throws InterruptedException {
+        long nodeTimeout = 1_000;
+        double reapedBefore = Metrics.announcementsReaped.get();
+
+        //The first node goes silent in the middle of the fan-out: its requests are lost, and its heartbeat stops.
+        StubBotApiClient killedApi = new StubBotApiClient();
+        AnnouncementWorker killed = worker(killedApi, "killed", nodeTimeout);
+        Thread killedThread = new Thread(killed);
+        killedThread.setDaemon(true);
+        killedThread.start();
+
+        awaitCondition("the first deliveries", 10_000, () -> killedApi.totalDeliveries() >= 50);
+        killedApi.hung = true;
+        awaitCondition("the window to fill up", 10_000, () -> killed.window.availablePermits() == 0);
+        killed.stop(); //Only stops the heartbeat, the worker stays blocked like a dead process.
+
+        //Its chats are held in-flight until their leases expire.
+        assertTrue(count("inflight") > 0);
+        Thread.sleep(nodeTimeout + 500);
+
+        //The second node takes over, and returns the expired chats to pending.
+        StubBotApiClient survivorApi = new StubBotApiClient();
+        worker(survivorApi, "survivor", nodeTimeout).run();
+
+        for (long chatId : chatIds)
+            assertEquals(1, killedApi.deliveries(chatId) + survivorApi.deliveries(chatId), "Deliveries to chat " + chatId);
+
+        assertEquals(0, count("pending"));
+        assertEquals(0, count("inflight"));
+        assertTrue(Metrics.announcementsReaped.get() > reapedBefore);
+
+        killedThread.interrupt();
+    }
+
+    @Test
+    @Timeout(30)
+    void slowWorkerKeepsItsLeases() throws InterruptedException {
+        long nodeTimeout = 600;
+        double reapedBefore = Metrics.announcementsReaped.get();
+
+        //The responses take longer than the lease of a popped batch.
+        StubBotApiClient slowApi = new StubBotApiClient();
+        slowApi.latency = 1_500;
+        AnnouncementWorker slow = worker(slowApi, "slow", nodeTimeout);
+        Thread slowThread = new Thread(slow);
+        slowThread.start();
+
+        //Another node keeps reaping the expired leases meanwhile.
+        AnnouncementWorker reaper = worker(new StubBotApiClient(), "reaper", nodeTimeout);
+        awaitCondition("the first batch", 5_000, () -> count("inflight") > 0);
+        for (int i = 0; i < 20; i++) {
+            Thread.sleep(100);
+            reaper.reapExpiredLeases();
+        }
+
+        //The slow worker's chats were never returned, so none of them got the announcement twice.
+        assertEquals(reapedBefore, Metrics.announcementsReaped.get());
+        slowApi.latency = 0;
+        slowThread.join();
+
+        for (long chatId : chatIds) assertEquals(1, slowApi.deliveries(chatId), "Deliveries to chat " + chatId);
+        assertEquals(0, count("inflight"));
+    }
+
+    @Test
+    @Timeout(30)
+    void failuresAreHandledByTheirKind() {
+        long groupId = -7, supergroupId = -1_000_000_000_007L;
+        mongo.collection("telegram-config").insertOne(config(groupId));
+        redisCommands.zadd(announcement.keyPrefix + "pending", 1, String.valueOf(groupId));
+        redisCommands.hset(announcement.keyState, "attempts", "0"); //No retries, so the failed set is kept.
+
+        StubBotApiClient botApiClient = new StubBotApiClient();
+        botApiClient.failures.put(1L, error(403, "Forbidden: bot was blocked by the user"));
+        botApiClient.failures.put(2L, error(400, "Bad Request: message caption is too long"));
+        botApiClient.failures.put(3L, error(502, "Bad Gateway"));
+        botApiClient.failures.put(4L, error(400, "Bad Request: not enough rights to send photos to the chat"));
+        botApiClient.failures.put(groupId, "{\"ok\":false,\"error_code\":400,\"description\":\"Bad Request: " +
+                "group chat was upgraded to a supergroup chat\",\"parameters\":{\"migrate_to_chat_id\":" + supergroupId + "}}");
+
+        try {
+            worker(botApiClient, "node", 10_000).run();
+
+            //Only the unreachable chat is counted towards pruning, the rejected one and the one missing rights are just dropped.
+            assertEquals("1", redisCommands.hget(ChatsPruner.keyUndeliverable, "1"));
+            assertNull(redisCommands.hget(ChatsPruner.keyUndeliverable, "2"));
+            assertNull(redisCommands.hget(ChatsPruner.keyUndeliverable, "4"));
+            assertEquals(Set.of("3"), redisCommands.smembers(announcement.keyPrefix + "failed"));
+
+            //The migrated group's configuration was moved, and the supergroup got the announcement instead.
+            assertNotNull(mongo.collection("telegram-config").find(eq("_id", supergroupId)).first());
+            assertEquals(1, botApiClient.deliveries(supergroupId));
+        } finally {
+            mongo.collection("telegram-config").deleteOne(eq("_id", groupId));
+            mongo.collection("telegram-config").deleteOne(eq("_id", supergroupId));
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    void replacedWorkerKeepsItsReplacementsHeartbeat() throws InterruptedException {
+        long nodeTimeout = 500;
+        String keyNodes = announcement.keyPrefix + "nodes";
+        redisCommands.del(announcement.keyPrefix + "pending");
+        for (long chatId = 1; chatId <= 3; chatId++) redisCommands.zadd(announcement.keyPrefix + "pending", 1, String.valueOf(chatId));
+
+        //The replaced worker's requests are never answered, so it's stuck waiting for its batch to be recorded.
+        StubBotApiClient hungApi = new StubBotApiClient();
+        hungApi.hung = true;
+        AnnouncementWorker replaced = worker(hungApi, "node", nodeTimeout);
+        replaced.photosFileIds.put(1, "photo");
+        Thread replacedThread = new Thread(replaced);
+        replacedThread.start();
+        awaitCondition("the hung batch", 5_000, () -> count("pending") == 0 && count("inflight") == 3
+                && replacedThread.getState() == Thread.State.WAITING);
+        replaced.stop();
+        Thread.sleep(nodeTimeout + 200);
+
+        //Its replacement on the same node takes over the expired chats.
+        StubBotApiClient slowApi = new StubBotApiClient();
+        slowApi.latency = 2_000;
+        AnnouncementWorker replacement = worker(slowApi, "node", 30_000); //No heartbeat again during the test.
+        Thread replacementThread = new Thread(replacement);
+        replacementThread.start();
+        awaitCondition("the replacement's heartbeat", 5_000, () -> {
+            String value = redisCommands.hget(keyNodes, "node");
+            return value != null && value.endsWith(":" + replacement.token);
+        });
+
+        //The replaced worker exits once it's interrupted, and leaves the replacement's heartbeat in place.
+        replacedThread.interrupt();
+        replacedThread.join(5_000);
+        assertFalse(replacedThread.isAlive(), "The replaced worker ignored the interruption");
+        assertTrue(replacementThread.isAlive());
+        String value = redisCommands.hget(keyNodes, "node");
+        assertNotNull(value, "The replaced worker removed its replacement's heartbeat");
+        assertTrue(value.endsWith(":" + replacement.token));
+
+        replacementThread.join();
+        assertNull(redisCommands.hget(keyNodes, "node"));
+        for (long chatId = 1; chatId <= 3; chatId++) assertEquals(1, slowApi.deliveries(chatId), "Deliveries to chat " + chatId);
+    }
+
+    @Test
+    @Timeout(30)
+    void rateLimiterPausesAreNotIdleTime() throws InterruptedException {
+        AnnouncementWorker worker = worker(new StubBotApiClient(), "node", 10_000);
+        worker.rateLimit.pause(3, SECONDS); //As requested by Telegram with retry_after.
+        Thread workerThread = new Thread(worker);
+        workerThread.start();
+
+        Thread.sleep(2_000);
+        assertEquals(0, worker.getHandledCount());
+        assertTrue(worker.throttled);
+        assertTrue(worker.idleTime() < 1_000, "Idle for " + worker.idleTime() + "ms while paused");
+
+        workerThread.join();
+        assertEquals(chatIds.size(), worker.getHandledCount());
+    }
+
+    static String scrape(HTTPServer server) throws IOException {
+        try (InputStream in = new URL("http://localhost:" + server.getPort() + "/metrics").openStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    void metricsAreScrapedDuringFanOut() throws IOException, InterruptedException {
+        HTTPServer server = new HTTPServer(new InetSocketAddress("localhost", 0), CollectorRegistry.defaultRegistry, true);
+        String pendingGauge = "announcements_pending_chats{announcement=\"" + announcement.id + "\",}";
+
+        try {
+            StubBotApiClient botApiClient = new StubBotApiClient();
+            botApiClient.latency = 50;
+            AnnouncementWorker worker = worker(botApiClient, "node", 300);
+            Thread workerThread = new Thread(worker);
+            workerThread.start();
+
+            //The sets' depths are reported while the fan-out is running.
+            awaitCondition("a few deliveries", 10_000, () -> botApiClient.totalDeliveries() >= 20);
+            String metrics = scrape(server);
+            assertTrue(workerThread.isAlive(), "The fan-out was over before the scrape");
+            assertTrue(metrics.contains(pendingGauge), "The pending gauge is missing from:\n" + metrics);
+            assertTrue(metrics.contains("announcements_inflight_chats{announcement=\"" + announcement.id + "\",}"));
+            assertTrue(metrics.contains("announcements_sent_total"));
+
+            //This node doesn't finalize the announcement, but its gauges are gone once its worker has exited.
+            workerThread.join();
+            Thread.sleep(100); //Any late replies of the last heartbeat.
+            metrics = scrape(server);
+            assertFalse(metrics.contains(pendingGauge), "The pending gauge is left in:\n" + metrics);
+            assertFalse(metrics.contains("announcement=\"" + announcement.id + "\""), "Gauges are left in:\n" + metrics);
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components.announcements;
+
+import com.github.tudeteam.telegram.thefreestuffbot.components.GamesWatcher;
+import com.github.tudeteam.telegram.thefreestuffbot.structures.GameData;
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.github.tudeteam.telegram.thefreestuffbot.components.announcements.AnnouncementWorkerTest.awaitCondition;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Updates.set;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The trigger against an in-memory MongoDB with an oplog, which serves change streams like a single-node replica set,
+ * and against one which rejects them like a standalone server.
+ */
+class AnnouncementsTriggerTest {
+
+    static Document game(int id, boolean announce) {
+        return new Document("_id", id).append("outgoing", new Document("telegram", announce));
+    }
+
+    static GamesWatcher watcher(LocalMongo mongo) {
+        return new GamesWatcher(mongo.collection("games").withDocumentClass(GameData.class));
+    }
+
+    @Test
+    @Timeout(30)
+    void changesWakeTheCheck() throws InterruptedException {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        AtomicInteger checks = new AtomicInteger();
+
+        try (LocalMongo mongo = new LocalMongo(true)) {
+            MongoCollection<Document> games = mongo.collection("games");
+            GamesWatcher gamesWatcher = watcher(mongo);
+            AnnouncementsTrigger trigger = new AnnouncementsTrigger(executor, checks::incrementAndGet, gamesWatcher, 60);
+
+            //The initial poll.
+            awaitCondition("the initial check", 5_000, () -> checks.get() == 1);
+            awaitCondition("the change stream", 5_000, gamesWatcher::isWatching);
+
+            //Games which are not set to be announced don't wake it, nor do deletes.
+            games.insertOne(game(1, false));
+            games.insertOne(game(3, true));
+            awaitCondition("the check of the game to announce", 5_000, () -> checks.get() == 2);
+            games.deleteOne(eq("_id", 3));
+            Thread.sleep(500);
+            assertEquals(2, checks.get());
+
+            games.updateOne(eq("_id", 1), set("outgoing.telegram", true));
+            awaitCondition("the check of the updated game", 5_000, () -> checks.get() == 3);
+
+            games.insertOne(game(2, true));
+            awaitCondition("the check of the inserted game", 5_000, () -> checks.get() == 4);
+
+            trigger.close();
+            gamesWatcher.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    void pollingIsKeptWithoutChangeStreams() throws InterruptedException {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        AtomicInteger checks = new AtomicInteger();
+
+        try (LocalMongo mongo = new LocalMongo(new LocalMongo.StandaloneBackend())) {
+            GamesWatcher gamesWatcher = watcher(mongo);
+            AnnouncementsTrigger trigger = new AnnouncementsTrigger(executor, checks::incrementAndGet, gamesWatcher, 60);
+
+            //The polling and the direct wakes still run the check.
+            awaitCondition("the initial check", 5_000, () -> checks.get() == 1);
+            trigger.wake();
+            awaitCondition("the woken check", 5_000, () -> checks.get() == 2);
+
+            trigger.close();
+            gamesWatcher.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void wakeAfterClose() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+        try (LocalMongo mongo = new LocalMongo(new LocalMongo.StandaloneBackend())) {
+            GamesWatcher gamesWatcher = watcher(mongo);
+            AnnouncementsTrigger trigger = new AnnouncementsTrigger(executor, () -> {
+            }, gamesWatcher, 60);
+
+            //Like the bot's shutdown, while the commands may still be handled.
+            trigger.close();
+            executor.shutdown();
+            assertDoesNotThrow(trigger::wake);
+            gamesWatcher.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components.announcements;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.github.tudeteam.telegram.thefreestuffbot.TheFreeStuffBotOptions;
+import com.github.tudeteam.telegram.thefreestuffbot.components.ConfigurationDB;
+import com.github.tudeteam.telegram.thefreestuffbot.components.announcements.Announcement.Game;
+import io.lettuce.core.ScoredValue;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.sync.RedisCommands;
+import org.bson.Document;
+import org.junit.jupiter.api.*;
+import org.telegram.telegrambots.meta.api.objects.ApiResponse;
+
+import java.io.IOException;
+import java.util.*;
+
+import static com.github.tudeteam.telegram.thefreestuffbot.components.announcements.AnnouncementWorkerTest.config;
+import static com.github.tudeteam.telegram.thefreestuffbot.components.announcements.AnnouncementWorkerTest.error;
+import static com.mongodb.client.model.Filters.eq;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Workers announcing in the compact layout, where the chats are identified by their {@link ChatIndex} indices,
+ * against a local redis and an in-memory MongoDB.
+ */
+class CompactLayoutTest {
+
+    static LocalRedis redis;
+    static RedisCommands<String, String> redisCommands;
+    static LocalMongo mongo;
+    static ConfigurationDB db;
+    static ChatIndex chatIndex;
+
+    static final Announcement announcement = new Announcement(AnnouncementWorkerTest.game());
+
+    @BeforeAll
+    static void startDatabases() throws IOException {
+        redis = new LocalRedis();
+        redisCommands = redis.connect().sync();
+        mongo = new LocalMongo(false);
+        db = new ConfigurationDB(mongo.collection("telegram-config"), new TheFreeStuffBotOptions());
+    }
+
+    @AfterAll
+    static void stopDatabases() throws IOException {
+        db.close();
+        mongo.close();
+        redis.close();
+    }
+
+    @BeforeEach
+    void resetDatabases() {
+        redis.flush();
+        mongo.collection("telegram-config").deleteMany(new Document());
+        chatIndex = new ChatIndex(mongo.collection("telegram-config"), redisCommands);
+    }
+
+    /**
+     * Seeds the announcement in the compact layout, the same way as {@link CheckDatabase} does:
+     * the groups into the pending set scored by their members counts, and the private chats into the bitmap.
+     *
+     * @param chatIds The ids of the chats, configurations are created for them.
+     * @return The assigned indices of the chats, mapped by their ids.
+     */
+    static Map<Long, Integer> seedCompact(List<Long> chatIds) {
+        for (long chatId : chatIds) mongo.collection("telegram-config").insertOne(config(chatId));
+        Map<Long, Integer> indices = chatIndex.assign(chatIds);
+
+        for (long chatId : chatIds) {
+            int index = indices.get(chatId);
+            if (chatId > 0)
+                redisCommands.setbit(announcement.keyPrefix + "pendingUsers", index, 1);
+            else
+                redisCommands.zadd(announcement.keyPrefix + "pending", -chatId * 10, String.valueOf(index));
+        }
+
+        for (Game game : announcement.games) redisCommands.hset(game.keyAnalytics, "users", "0");
+        redisCommands.hset(announcement.keyState, Map.of(
+                "attempts", "3",
+                "games", "1",
+                "started", String.valueOf(System.currentTimeMillis()),
+                "compact", "true",
+                "active", "true"
+        ));
+
+        return indices;
+    }
+
+    static AnnouncementWorker worker(StubBotApiClient botApiClient, String nodeId, long nodeTimeout) {
+        StatefulRedisConnection<String, String> connection = redis.connect();
+        RateLimiter rateLimiter = new RateLimiter(new TokenBucket(1_000, 1, SECONDS),
+                () -> new TokenBucket(1, 1, SECONDS), () -> new TokenBucket(20, 1, MINUTES), 10_000);
+
+        return new AnnouncementWorker(announcement, new AnnouncementRenders(announcement), botApiClient,
+                new MemberCountCache(botApiClient, connection.async(), 60, 1), chatIndex, db, rateLimiter.openShare(1),
+                connection.sync(), connection.async(), 10, 5, nodeId, nodeTimeout);
+    }
+
+    static List<Long> range(long from, long to) {
+        List<Long> chatIds = new ArrayList<>();
+        for (long chatId = from; chatId <= to; chatId++) chatIds.add(chatId);
+        return chatIds;
+    }
+
+    static void assertDrained() {
+        assertEquals(0, redisCommands.zcard(announcement.keyPrefix + "pending"));
+        assertEquals(0, redisCommands.bitcount(announcement.keyPrefix + "pendingUsers"));
+        assertEquals(0, redisCommands.zcard(announcement.keyPrefix + "inflight"));
+        assertEquals(0, redisCommands.scard(announcement.keyPrefix + "failed"));
+    }
+
+    @Test
+    @Timeout(30)
+    void privateChatsAreDrainedFromTheBitmap() {
+        List<Long> chatIds = new ArrayList<>(range(-5, -1));
+        chatIds.addAll(range(1, 43));
+        Map<Long, Integer> indices = seedCompact(chatIds);
+
+        //The groups come first by their audiences, then the private chats by their indices once the pending set is empty.
+        StubBotApiClient botApiClient = new StubBotApiClient();
+        AnnouncementWorker worker = worker(botApiClient, "node", 10_000);
+        List<String> expected = new ArrayList<>();
+        for (long chatId = -5; chatId <= -1; chatId++) expected.add(String.valueOf(indices.get(chatId)));
+        for (long chatId = 1; chatId <= 5; chatId++) expected.add(String.valueOf(indices.get(chatId)));
+
+        List<ScoredValue<String>> batch = worker.popBatch();
+        List<String> popped = new ArrayList<>();
+        for (ScoredValue<String> chat : batch) popped.add(chat.getValue());
+        assertEquals(expected, popped);
+        assertEquals(38, redisCommands.bitcount(announcement.keyPrefix + "pendingUsers"));
+
+        //Return the batch, as a stopped worker would.
+        worker.requeueRemaining(batch);
+        redisCommands.del(announcement.keyPrefix + "inflight");
+
+        //The rest of the bitmap is drained in batches, across the bytes of the bitmap.
+        worker.run();
+
+        for (long chatId : chatIds) assertEquals(1, botApiClient.deliveries(chatId), "Deliveries to chat " + chatId);
+        assertDrained();
+    }
+
+    @Test
+    @Timeout(30)
+    void expiredAndFailedIndicesAreRequeued() throws InterruptedException {
+        long nodeTimeout = 300;
+        List<Long> chatIds = new ArrayList<>(range(-2, -1));
+        chatIds.addAll(range(1, 3));
+        Map<Long, Integer> indices = seedCompact(chatIds);
+
+        //A node pops all the chats, then dies before sending to any of them.
+        AnnouncementWorker killed = worker(new StubBotApiClient(), "killed", nodeTimeout);
+        assertEquals(chatIds.size(), killed.popBatch().size());
+        Thread.sleep(nodeTimeout + 200);
+
+        //Their indices are returned to the pending set, including the private chats which came from the bitmap.
+        StubBotApiClient botApiClient = new StubBotApiClient() {
+            @Override
+            protected <T> ApiResponse<T> respond(String method, long chatId, TypeReference<ApiResponse<T>> responseType) {
+                //Each failure happens only once, so the chat is delivered to after it's requeued.
+                ApiResponse<T> response = super.respond(method, chatId, responseType);
+                if (method.equals("sendPhoto")) failures.remove(chatId);
+                return response;
+            }
+        };
+        botApiClient.failures.put(2L, error(502, "Bad Gateway"));
+        AnnouncementWorker survivor = worker(botApiClient, "survivor", 10_000);
+        survivor.reapExpiredLeases();
+
+        Set<String> members = new HashSet<>();
+        for (long chatId : chatIds) members.add(String.valueOf(indices.get(chatId)));
+        assertEquals(members, new HashSet<>(redisCommands.zrange(announcement.keyPrefix + "pending", 0, -1)));
+        assertEquals(0, redisCommands.zcard(announcement.keyPrefix + "inflight"));
+
+        //The failed chat goes into the failed set by its index, and is requeued after the backoff.
+        survivor.run();
+
+        for (long chatId : chatIds) assertEquals(1, botApiClient.deliveries(chatId), "Deliveries to chat " + chatId);
+        assertEquals("2", redisCommands.hget(announcement.keyState, "attempts"));
+        assertDrained();
+    }
+
+    @Test
+    @Timeout(30)
+    void migratedGroupKeepsItsIndex() {
+        long groupId = -7, supergroupId = -1_000_000_000_007L;
+        int index = seedCompact(List.of(groupId, 1L)).get(groupId);
+        assertEquals(groupId, chatIndex.chatIdOf(index));
+
+        StubBotApiClient botApiClient = new StubBotApiClient();
+        botApiClient.failures.put(groupId, "{\"ok\":false,\"error_code\":400,\"description\":\"Bad Request: " +
+                "group chat was upgraded to a supergroup chat\",\"parameters\":{\"migrate_to_chat_id\":" + supergroupId + "}}");
+        worker(botApiClient, "node", 10_000).run();
+
+        //The index moved along with the configuration, and the supergroup got the announcement through it.
+        Document supergroupConfig = mongo.collection("telegram-config").find(eq("_id", supergroupId)).first();
+        assertNotNull(supergroupConfig);
+        assertEquals(index, supergroupConfig.getInteger("index"));
+        assertNull(mongo.collection("telegram-config").find(eq("_id", groupId)).first());
+
+        assertEquals(1, botApiClient.deliveries(supergroupId));
+        assertEquals(1, botApiClient.deliveries(1L));
+        assertEquals(supergroupId, chatIndex.chatIdOf(index));
+        assertFalse(chatIndex.indices.containsKey(groupId), "The group is still mapped to its old index");
+        assertDrained();
+    }
+
+    @Test
+    void forgottenChatsAreLookedUpAgain() {
+        Map<Long, Integer> indices = seedCompact(range(1, 3));
+
+        chatIndex.forget(2);
+        assertEquals(0, chatIndex.chatIds[indices.get(2L)]);
+        assertEquals(indices.get(1L), chatIndex.indices.get(1L));
+        assertEquals(indices.get(3L), chatIndex.indices.get(3L));
+
+        //The mapping is refreshed from the stored index on the next lookup.
+        assertEquals(2, chatIndex.chatIdOf(indices.get(2L)));
+        assertEquals(indices.get(2L), chatIndex.indices.get(2L));
+    }
+}
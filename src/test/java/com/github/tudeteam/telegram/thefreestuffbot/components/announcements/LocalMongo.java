@@ -0,0 +1,87 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components.announcements;
+
+import com.github.tudeteam.telegram.thefreestuffbot.structures.codecs.StructuresCodecProvider;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import de.bwaldvogel.mongo.exception.MongoServerError;
+import io.netty.channel.Channel;
+import org.bson.Document;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * An in-memory MongoDB server for the tests, speaking the wire protocol, with the bot's structures codecs.
+ */
+public class LocalMongo implements AutoCloseable {
+
+    /**
+     * A backend which rejects the change streams, like a standalone server does.
+     */
+    public static class StandaloneBackend extends MemoryBackend {
+        @Override
+        public de.bwaldvogel.mongo.bson.Document handleCommand(Channel channel, String databaseName, String command,
+                                                              de.bwaldvogel.mongo.bson.Document query) {
+            if (command.equals("aggregate") && query.get("pipeline") instanceof List) {
+                for (Object stage : (List<?>) query.get("pipeline"))
+                    if (stage instanceof de.bwaldvogel.mongo.bson.Document
+                            && ((de.bwaldvogel.mongo.bson.Document) stage).containsKey("$changeStream"))
+                        throw new MongoServerError(40573, "The $changeStream stage is only supported on replica sets");
+            }
+            return super.handleCommand(channel, databaseName, command, query);
+        }
+    }
+
+    protected final MongoServer server;
+    protected final MongoClient client;
+    public final MongoDatabase database;
+
+    /**
+     * Starts a server on a free port.
+     *
+     * @param oplog Whether to enable the oplog, which the change streams are served from.
+     */
+    public LocalMongo(boolean oplog) {
+        this(backend(oplog));
+    }
+
+    /**
+     * Starts a server on a free port.
+     *
+     * @param backend The backend of the server.
+     */
+    public LocalMongo(MemoryBackend backend) {
+        server = new MongoServer(backend);
+
+        InetSocketAddress address = server.bind();
+        client = MongoClients.create("mongodb://" + address.getHostString() + ":" + address.getPort());
+        database = client.getDatabase("test");
+    }
+
+    protected static MemoryBackend backend(boolean oplog) {
+        MemoryBackend backend = new MemoryBackend();
+        if (oplog) backend.enableOplog();
+        return backend;
+    }
+
+    /**
+     * Gets a collection, with the bot's structures codecs.
+     *
+     * @param name The name of the collection.
+     * @return The collection.
+     */
+    public MongoCollection<Document> collection(String name) {
+        return database.getCollection(name)
+                .withCodecRegistry(StructuresCodecProvider.withStructures(database.getCodecRegistry()));
+    }
+
+    @Override
+    public void close() {
+        client.close();
+        server.shutdownNow();
+    }
+}
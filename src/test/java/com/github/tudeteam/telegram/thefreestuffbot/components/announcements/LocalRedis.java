@@ -0,0 +1,63 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components.announcements;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.api.StatefulRedisConnection;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A local redis server for the tests, with a separate client for each simulated node.
+ */
+public class LocalRedis implements AutoCloseable {
+
+    protected final RedisServer server;
+    protected final RedisClient client;
+    protected final List<StatefulRedisConnection<String, String>> connections = new ArrayList<>();
+
+    /**
+     * Starts a redis server on a free port.
+     *
+     * @throws IOException If the server couldn't be started.
+     */
+    public LocalRedis() throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        server = new RedisServer(port);
+        server.start();
+        client = RedisClient.create("redis://localhost:" + port);
+    }
+
+    /**
+     * Opens a new connection, as a separate node would.
+     *
+     * @return The connection, closed with the server.
+     */
+    public synchronized StatefulRedisConnection<String, String> connect() {
+        StatefulRedisConnection<String, String> connection = client.connect();
+        connections.add(connection);
+        return connection;
+    }
+
+    /**
+     * Deletes all the keys.
+     */
+    public void flush() {
+        try (StatefulRedisConnection<String, String> connection = client.connect()) {
+            connection.sync().flushall();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (StatefulRedisConnection<String, String> connection : connections) connection.close();
+        client.shutdown();
+        server.stop();
+    }
+}
@@ -0,0 +1,68 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components.announcements;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.util.concurrent.TimeUnit.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RateLimiterTest {
+
+    static RateLimiter rateLimiter(int maximumBuckets) {
+        return new RateLimiter(new TokenBucket(1_000_000, 1, SECONDS),
+                () -> new TokenBucket(1, 1, SECONDS), () -> new TokenBucket(20, 1, MINUTES), maximumBuckets);
+    }
+
+    @Test
+    void bucketsAreBounded() {
+        RateLimiter rateLimiter = rateLimiter(1_000);
+
+        for (long chatId = 1; chatId <= 10_000; chatId++) {
+            rateLimiter.reserve(chatId);
+            rateLimiter.reserve(-chatId);
+            assertTrue(rateLimiter.chatBuckets.size() <= 1_000);
+            assertTrue(rateLimiter.groupBuckets.size() <= 1_000);
+        }
+    }
+
+    @Test
+    void evictionLeavesHeadroom() {
+        RateLimiter rateLimiter = rateLimiter(1_000);
+        for (long chatId = 1; chatId <= 1_000; chatId++) rateLimiter.reserve(chatId);
+
+        //Expire a single bucket, so evicting the idle ones alone would leave the map full again after the next chat.
+        rateLimiter.chatBuckets.put(1L, new TokenBucket(1, 1, SECONDS));
+        rateLimiter.reserve(1_001);
+
+        assertEquals(900 + 1, rateLimiter.chatBuckets.size());
+    }
+
+    /**
+     * Reserves a chat's second message, which waits for the chat's bucket, then the messages of other chats meanwhile,
+     * and checks that their send times keep to the global rate, give or take the redis round trips.
+     *
+     * @param rateLimiter The rate limiter, with a global rate of 10 messages per second, and 1 per second for each chat.
+     */
+    static void assertDelayedMessagesKeepToTheGlobalRate(RateLimiter rateLimiter) {
+        List<Long> sendTimes = new ArrayList<>();
+        sendTimes.add(System.nanoTime() + rateLimiter.reserve(1));
+        sendTimes.add(System.nanoTime() + rateLimiter.reserve(1));
+        for (long chatId = 2; chatId <= 12; chatId++) sendTimes.add(System.nanoTime() + rateLimiter.reserve(chatId));
+
+        Collections.sort(sendTimes);
+        for (int i = 1; i < sendTimes.size(); i++) {
+            long gap = sendTimes.get(i) - sendTimes.get(i - 1);
+            assertTrue(gap >= MILLISECONDS.toNanos(90), "Messages sent only " + NANOSECONDS.toMillis(gap) + "ms apart");
+        }
+    }
+
+    @Test
+    void delayedMessagesKeepToTheGlobalRate() {
+        assertDelayedMessagesKeepToTheGlobalRate(new RateLimiter(new TokenBucket(10, 1, SECONDS),
+                () -> new TokenBucket(1, 1, SECONDS), () -> new TokenBucket(20, 1, MINUTES), 1_000));
+    }
+}
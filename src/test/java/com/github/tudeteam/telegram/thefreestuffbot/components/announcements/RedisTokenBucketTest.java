@@ -0,0 +1,113 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components.announcements;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.*;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Several nodes in the same JVM, each one with its own redis connection and rate limiter, against a local redis.
+ */
+class RedisTokenBucketTest {
+
+    static LocalRedis redis;
+
+    @BeforeAll
+    static void startRedis() throws IOException {
+        redis = new LocalRedis();
+    }
+
+    @AfterAll
+    static void stopRedis() throws IOException {
+        redis.close();
+    }
+
+    @BeforeEach
+    void flushRedis() {
+        redis.flush();
+    }
+
+    static RateLimiter nodeLimiter() {
+        return new RateLimiter(
+                new RedisTokenBucket(redis.connect().sync(), CheckDatabase.keyRateLimit, 30, 1, SECONDS),
+                () -> new TokenBucket(1, 1, SECONDS),
+                () -> new TokenBucket(20, 1, MINUTES),
+                10_000
+        );
+    }
+
+    @Test
+    void nodesShareTheGlobalRate() throws InterruptedException {
+        int nodes = 3;
+        long duration = SECONDS.toNanos(2);
+        AtomicInteger sent = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<>();
+        long deadline = System.nanoTime() + duration;
+        for (int node = 0; node < nodes; node++) {
+            RateLimiter rateLimiter = nodeLimiter();
+            long firstChatId = node * 1_000_000L;
+
+            threads.add(new Thread(() -> {
+                try {
+                    for (long chatId = firstChatId; ; chatId++) {
+                        rateLimiter.consume(chatId); //A new chat each time, so only the global rate applies.
+                        if (System.nanoTime() - deadline > 0) return;
+                        sent.incrementAndGet();
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            }));
+        }
+
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+
+        //30 messages per second on all the nodes together, plus the first one which is allowed right away.
+        //Per node buckets would have let about 180 through.
+        assertTrue(sent.get() <= 30 * 2 + 1, "Sent " + sent.get() + " messages in 2 seconds");
+        assertTrue(sent.get() >= 30 * 2 * 8 / 10, "Sent only " + sent.get() + " messages in 2 seconds");
+    }
+
+    @Test
+    void pauseReachesAllNodes() {
+        RateLimiter pausingNode = nodeLimiter();
+        RateLimiter otherNode = nodeLimiter();
+
+        pausingNode.pause(2, SECONDS);
+
+        long wait = otherNode.reserve(1);
+        assertTrue(wait > MILLISECONDS.toNanos(1_900), "Waited only " + NANOSECONDS.toMillis(wait) + "ms");
+        assertTrue(wait <= SECONDS.toNanos(2), "Waited " + NANOSECONDS.toMillis(wait) + "ms");
+    }
+
+    @Test
+    void shorterPauseKeepsTheLongerOne() {
+        RateLimiter firstNode = nodeLimiter();
+        RateLimiter secondNode = nodeLimiter();
+
+        firstNode.pause(3, SECONDS);
+        secondNode.pause(1, SECONDS);
+
+        long wait = nodeLimiter().reserve(1);
+        assertTrue(wait > MILLISECONDS.toNanos(2_900), "Waited only " + NANOSECONDS.toMillis(wait) + "ms");
+    }
+
+    @Test
+    void delayedMessagesKeepToTheSharedRate() {
+        RateLimiterTest.assertDelayedMessagesKeepToTheGlobalRate(new RateLimiter(
+                new RedisTokenBucket(redis.connect().sync(), CheckDatabase.keyRateLimit, 10, 1, SECONDS),
+                () -> new TokenBucket(1, 1, SECONDS),
+                () -> new TokenBucket(20, 1, MINUTES),
+                10_000
+        ));
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components.announcements;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.telegram.telegrambots.meta.api.objects.ApiResponse;
+import org.telegram.telegrambots.meta.api.objects.Message;
+
+import static com.github.tudeteam.telegram.thefreestuffbot.components.announcements.SendFailure.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SendFailureTest {
+
+    static final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    static ApiResponse<Message> error(int errorCode, String description) throws JsonProcessingException {
+        return objectMapper.readValue("{\"ok\":false,\"error_code\":" + errorCode + ",\"description\":\"" + description + "\"}",
+                new TypeReference<ApiResponse<Message>>() {
+                });
+    }
+
+    @Test
+    void unreachableChatsArePermanent() throws JsonProcessingException {
+        assertEquals(PERMANENT, classify(error(403, "Forbidden: bot was blocked by the user")));
+        assertEquals(PERMANENT, classify(error(403, "Forbidden: bot was kicked from the supergroup chat")));
+        assertEquals(PERMANENT, classify(error(400, "Bad Request: chat not found")));
+        assertEquals(PERMANENT, classify(error(403, "Forbidden: user is deactivated")));
+        assertEquals(PERMANENT, classify(error(400, "Bad Request: not enough rights to send photos to the chat")));
+    }
+
+    @Test
+    void onlyUnreachableChatsArePruned() throws JsonProcessingException {
+        assertEquals("blocked", permanentReason(error(403, "Forbidden: bot was blocked by the user")));
+        assertEquals("not_enough_rights", permanentReason(error(400, "Bad Request: not enough rights to send photos to the chat")));
+        assertNull(permanentReason(error(400, "Bad Request: message caption is too long")));
+
+        assertTrue(unreachableReasons.contains("kicked"));
+        assertFalse(unreachableReasons.contains("not_enough_rights"));
+    }
+
+    @Test
+    void otherBadRequestsAreRejected() throws JsonProcessingException {
+        assertEquals(REJECTED, classify(error(400, "Bad Request: message caption is too long")));
+        assertEquals(REJECTED, classify(error(400, "Bad Request: can't parse entities: unsupported start tag")));
+        assertEquals(REJECTED, classify(error(400, "Bad Request: wrong file identifier/HTTP URL specified")));
+        assertEquals(REJECTED, classify(error(403, "Forbidden: bot can't send messages to bots")));
+    }
+
+    @Test
+    void otherErrorsAreTransient() throws JsonProcessingException {
+        assertEquals(TRANSIENT, classify(null));
+        assertEquals(TRANSIENT, classify(error(429, "Too Many Requests: retry after 5")));
+        assertEquals(TRANSIENT, classify(error(502, "Bad Gateway")));
+        assertEquals(TRANSIENT, classify(error(409, "Conflict: terminated by other getUpdates request")));
+    }
+
+    @Test
+    void migratedGroups() throws JsonProcessingException {
+        ApiResponse<Message> response = objectMapper.readValue("{\"ok\":false,\"error_code\":400," +
+                        "\"description\":\"Bad Request: group chat was upgraded to a supergroup chat\"," +
+                        "\"parameters\":{\"migrate_to_chat_id\":-1001234}}",
+                new TypeReference<ApiResponse<Message>>() {
+                });
+
+        assertEquals(MIGRATED, classify(response));
+        assertEquals(-1001234L, migrateToChatId(response));
+    }
+}
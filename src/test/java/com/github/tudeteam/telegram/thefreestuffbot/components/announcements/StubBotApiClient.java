@@ -0,0 +1,95 @@
+package com.github.tudeteam.telegram.thefreestuffbot.components.announcements;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.github.tudeteam.telegram.thefreestuffbot.components.BotApiClient;
+import org.telegram.telegrambots.meta.api.objects.ApiResponse;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * A Bot API client which answers in memory, and counts the messages delivered to each chat.
+ */
+public class StubBotApiClient extends BotApiClient {
+
+    /**
+     * The number of messages delivered to each chat, mapped by the chats' ids.
+     */
+    public final Map<Long, AtomicInteger> delivered = new ConcurrentHashMap<>();
+
+    /**
+     * The error responses (as JSON) of the chats which the messages fail for, mapped by the chats' ids.
+     */
+    public final Map<Long, String> failures = new ConcurrentHashMap<>();
+
+    /**
+     * The time to wait before answering each request in milliseconds.
+     */
+    public volatile long latency = 0;
+
+    /**
+     * Whether the requests are never answered, as if they were lost along with a killed node.
+     */
+    public volatile boolean hung = false;
+
+    public StubBotApiClient() {
+        super("http://localhost/", "stub");
+    }
+
+    /**
+     * Gets the number of messages delivered to a chat.
+     *
+     * @param chatId The id of the chat.
+     * @return The number of messages.
+     */
+    public int deliveries(long chatId) {
+        AtomicInteger count = delivered.get(chatId);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Gets the total number of messages delivered.
+     *
+     * @return The number of messages.
+     */
+    public int totalDeliveries() {
+        return delivered.values().stream().mapToInt(AtomicInteger::get).sum();
+    }
+
+    @Override
+    public <T> CompletableFuture<ApiResponse<T>> executeAsync(String method, Map<String, Object> parameters,
+                                                              TypeReference<ApiResponse<T>> responseType) {
+        if (hung) return new CompletableFuture<>();
+
+        long chatId = ((Number) parameters.get("chat_id")).longValue();
+        Executor executor = latency == 0 ? Runnable::run : CompletableFuture.delayedExecutor(latency, MILLISECONDS);
+        return CompletableFuture.supplyAsync(() -> respond(method, chatId, responseType), executor);
+    }
+
+    protected <T> ApiResponse<T> respond(String method, long chatId, TypeReference<ApiResponse<T>> responseType) {
+        String json = failures.get(chatId);
+
+        if (json == null && method.equals("getChatMembersCount")) {
+            json = "{\"ok\":true,\"result\":10}";
+        } else if (json == null) {
+            delivered.computeIfAbsent(chatId, id -> new AtomicInteger()).incrementAndGet();
+            String photo = method.equals("sendPhoto")
+                    ? ",\"photo\":[{\"file_id\":\"photo\",\"file_unique_id\":\"photo\",\"width\":460,\"height\":215}]" : "";
+            json = "{\"ok\":true,\"result\":{\"message_id\":1,\"date\":0,\"chat\":{\"id\":" + chatId
+                    + ",\"type\":\"" + (chatId > 0 ? "private" : "supergroup") + "\"}" + photo + "}}";
+        }
+
+        try {
+            return objectMapper.readValue(json, responseType);
+        } catch (JsonProcessingException e) {
+            throw new CompletionException(e);
+        }
+    }
+}